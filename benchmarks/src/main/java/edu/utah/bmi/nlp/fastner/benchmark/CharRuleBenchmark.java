@@ -0,0 +1,83 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner.benchmark;
+
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCRule;
+import edu.utah.bmi.nlp.fastcner.FastCRuleCN;
+import edu.utah.bmi.nlp.fastcner.FastCRuleSB;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing time of one document by the character-based rule engines.
+ * <p>
+ * e.g. java -jar target/benchmarks.jar CharRuleBenchmark -p engine=FastCRuleSB -p documentSize=65536
+ *
+ * @author Jianlin Shi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CharRuleBenchmark {
+
+    @Param({"FastCRule", "FastCRuleSB", "FastCRuleCN"})
+    public String engine;
+
+    @Param({"1000", "10000", "100000"})
+    public int ruleCount;
+
+    @Param({"1024", "65536", "1048576"})
+    public int documentSize;
+
+    @Param({SyntheticRules.LITERAL, SyntheticRules.WILDCARD})
+    public String mix;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    protected FastCRule fastRule;
+    protected String document;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticRules generator = new SyntheticRules(20170430L, 5000);
+        switch (engine) {
+            case "FastCRule":
+                fastRule = new FastCRule(generator.charRules(ruleCount, mix, false));
+                break;
+            case "FastCRuleSB":
+                fastRule = new FastCRuleSB(generator.charRules(ruleCount, mix, true));
+                break;
+            default:
+                fastRule = new FastCRuleCN(generator.charRules(ruleCount, mix, true));
+        }
+        fastRule.setReplicationSupport(true);
+        fastRule.setCompiled(compiled);
+        document = generator.document(documentSize);
+    }
+
+    @Benchmark
+    public HashMap<String, ArrayList<Span>> processString() {
+        return fastRule.processString(document);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner.benchmark;
+
+import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
+import edu.utah.bmi.nlp.core.NERRule;
+import edu.utah.bmi.nlp.core.Rule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Generate reproducible synthetic rule sets and documents for the benchmarks.
+ * The rules and the documents are drawn from the same vocabulary, so that the documents hit the rules.
+ *
+ * @author Jianlin Shi
+ */
+public class SyntheticRules {
+    public static final String LITERAL = "literal", WILDCARD = "wildcard";
+    protected static final String[] PUNCTUATIONS = {",", ".", ";", ":", "(", ")", "/", "-"};
+    protected static final String[] CHAR_WILDCARD_SUFFIXES = {"\\s+\\d+", "\\s+\\c+", "\\p", "\\s\\d+.\\d+", "\\s+\\C\\c+"};
+    protected static final int CONCEPT_TYPES = 20;
+
+    protected final Random random;
+    protected final String[] vocabulary;
+
+    public SyntheticRules(long seed, int vocabularySize) {
+        random = new Random(seed);
+        HashSet<String> words = new HashSet<>();
+        while (words.size() < vocabularySize) {
+            words.add(randomWord());
+        }
+        vocabulary = words.toArray(new String[0]);
+    }
+
+    /**
+     * @param ruleCount number of rules
+     * @param mix       LITERAL or WILDCARD
+     * @param groups    whether to add capturing groups (FastRuleWG and above)
+     * @param numerics  whether to add numeric comparisons (FastRuleWGN)
+     * @return a ruleStore of token-based rules
+     */
+    public HashMap<Integer, Rule> tokenRules(int ruleCount, String mix, boolean groups, boolean numerics) {
+        boolean wildcard = WILDCARD.equals(mix);
+        HashSet<String> ruleStrings = new HashSet<>();
+        HashMap<Integer, Rule> ruleStore = new HashMap<>();
+        while (ruleStore.size() < ruleCount) {
+            int length = 1 + random.nextInt(4);
+            ArrayList<String> tokens = new ArrayList<>();
+            tokens.add(word());
+            for (int i = 1; i < length; i++) {
+                if (wildcard && random.nextInt(10) < 4)
+                    tokens.add(random.nextBoolean() ? "\\w+" : "\\d+");
+                else
+                    tokens.add(word());
+            }
+            if (groups && length > 1 && random.nextBoolean()) {
+                int begin = random.nextInt(length);
+                int end = begin + 1 + random.nextInt(length - begin);
+                tokens.add(end, "\\)");
+                tokens.add(begin, "\\(");
+            }
+            if (numerics && random.nextInt(10) < 3) {
+                tokens.add(random.nextBoolean() ? "\\>" : "\\<");
+                tokens.add(Integer.toString(random.nextInt(1000)));
+            }
+            addRule(ruleStore, ruleStrings, String.join(" ", tokens));
+        }
+        return ruleStore;
+    }
+
+    /**
+     * @param ruleCount      number of rules
+     * @param mix            LITERAL or WILDCARD
+     * @param squareBrackets whether to add square-bracket alternatives (FastCRuleSB and above)
+     * @return a ruleStore of character-based rules
+     */
+    public HashMap<Integer, Rule> charRules(int ruleCount, String mix, boolean squareBrackets) {
+        boolean wildcard = WILDCARD.equals(mix);
+        HashSet<String> ruleStrings = new HashSet<>();
+        HashMap<Integer, Rule> ruleStore = new HashMap<>();
+        while (ruleStore.size() < ruleCount) {
+            StringBuilder sb = new StringBuilder(word());
+            if (random.nextBoolean())
+                sb.append(' ').append(word());
+            if (squareBrackets && random.nextInt(10) < 3) {
+                int pos = random.nextInt(sb.length());
+                char ch = sb.charAt(pos);
+                if (ch != ' ')
+                    sb.replace(pos, pos + 1, "[" + ch + "|" + (char) ('a' + random.nextInt(26)) + "]");
+            }
+            if (wildcard && random.nextInt(10) < 6) {
+                if (random.nextBoolean())
+                    sb.append(CHAR_WILDCARD_SUFFIXES[random.nextInt(CHAR_WILDCARD_SUFFIXES.length)]);
+                else
+                    sb.insert(0, "\\b(").append(")\\w");
+            }
+            addRule(ruleStore, ruleStrings, sb.toString());
+        }
+        return ruleStore;
+    }
+
+    /**
+     * @param size number of characters
+     * @return a document of vocabulary words, numbers and punctuations
+     */
+    public String document(int size) {
+        StringBuilder sb = new StringBuilder(size + 16);
+        while (sb.length() < size) {
+            int dice = random.nextInt(20);
+            if (dice < 14) {
+                String word = word();
+                if (dice == 0)
+                    word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+                sb.append(word);
+            } else if (dice < 17) {
+                sb.append(random.nextInt(1000));
+                if (dice == 16)
+                    sb.append('.').append(random.nextInt(10));
+            } else {
+                sb.append(PUNCTUATIONS[random.nextInt(PUNCTUATIONS.length)]);
+            }
+            sb.append(dice == 19 ? '\n' : ' ');
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    protected void addRule(HashMap<Integer, Rule> ruleStore, HashSet<String> ruleStrings, String ruleString) {
+        if (!ruleStrings.add(ruleString))
+            return;
+        int id = ruleStore.size() + 1;
+        ruleStore.put(id, new NERRule(id, ruleString, "Concept" + (id % CONCEPT_TYPES), 1 + random.nextInt(3),
+                Determinants.ACTUAL));
+    }
+
+    protected String word() {
+        return vocabulary[random.nextInt(vocabulary.length)];
+    }
+
+    protected String randomWord() {
+        int length = 3 + random.nextInt(7);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
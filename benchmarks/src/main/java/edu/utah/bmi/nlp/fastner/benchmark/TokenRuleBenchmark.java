@@ -0,0 +1,83 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner.benchmark;
+
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastner.FastRuleWG;
+import edu.utah.bmi.nlp.fastner.FastRuleWGN;
+import edu.utah.bmi.nlp.fastner.FastRuleWOG;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing time of one tokenized document by the token-based rule engines.
+ * <p>
+ * e.g. java -jar target/benchmarks.jar TokenRuleBenchmark -p engine=FastRuleWG -p ruleCount=10000
+ *
+ * @author Jianlin Shi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenRuleBenchmark {
+
+    @Param({"FastRuleWOG", "FastRuleWG", "FastRuleWGN"})
+    public String engine;
+
+    @Param({"1000", "10000", "100000"})
+    public int ruleCount;
+
+    @Param({"1024", "65536", "1048576"})
+    public int documentSize;
+
+    @Param({SyntheticRules.LITERAL, SyntheticRules.WILDCARD})
+    public String mix;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    protected FastRuleWOG fastRule;
+    protected ArrayList<Span> tokens;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticRules generator = new SyntheticRules(20170725L, 5000);
+        switch (engine) {
+            case "FastRuleWOG":
+                fastRule = new FastRuleWOG(generator.tokenRules(ruleCount, mix, false, false));
+                break;
+            case "FastRuleWG":
+                fastRule = new FastRuleWG(generator.tokenRules(ruleCount, mix, true, false));
+                break;
+            default:
+                fastRule = new FastRuleWGN(generator.tokenRules(ruleCount, mix, true, true));
+        }
+        fastRule.setCompiled(compiled);
+        tokens = SimpleParser.tokenize2Spans(generator.document(documentSize), false);
+    }
+
+    @Benchmark
+    public HashMap<String, ArrayList<Span>> processSpans() {
+        return fastRule.processSpans(tokens);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastcner;
+
+import edu.utah.bmi.nlp.fastner.MatchStack;
+
+/**
+ * The MatchStack of FastCRule's walk, which also holds the literal matches of the walked text.
+ *
+ * @author Jianlin Shi
+ */
+public class CharMatchStack extends MatchStack {
+    //  the literal matches of the walked text and the automaton that found them (null if the walk does not add them)
+    public LiteralAutomaton automaton;
+    public LiteralAutomaton.Hits hits;
+}
@@ -18,11 +18,20 @@ package edu.utah.bmi.nlp.fastcner;
 import edu.utah.bmi.nlp.core.NERRule;
 import edu.utah.bmi.nlp.core.Rule;
 import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.core.TypeDefinition;
 import edu.utah.bmi.nlp.fastner.FastNER;
+import edu.utah.bmi.nlp.fastner.FastRule;
+import edu.utah.bmi.nlp.fastner.MatchContext;
+import edu.utah.bmi.nlp.fastner.MatchSink;
 import org.apache.uima.jcas.tcas.Annotation;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * This class is an extension of FastRulesProcessor, so that it supports capturing group within rule.
@@ -48,6 +57,10 @@ public class FastCNER extends FastNER {
 
     }
 
+    public FastCNER(FastRule fastRule, LinkedHashMap<String, TypeDefinition> typeDefinition) {
+        super(fastRule, typeDefinition);
+    }
+
     protected void initiate(HashMap<Integer, Rule> ruleStore) {
         fastRule = new FastCRuleSB(ruleStore);
     }
@@ -66,27 +79,106 @@ public class FastCNER extends FastNER {
         return ((FastCRule) fastRule).processSpan(span);
     }
 
+    /**
+     * Process a span, and pass the matches to a sink, so that no result map is built.
+     *
+     * @param span    input Span (a range of text for process)
+     * @param context a MatchContext that can be reused by the following calls of the same thread
+     * @param sink    receives the matches
+     */
+    public void processSpan(Span span, MatchContext context, MatchSink sink) {
+        ((FastCRule) fastRule).processRules(span.text, span.begin, context, sink);
+    }
+
+    /**
+     * Process a span through a reusable context. With a pooled context (e.g. MatchContext.forThread()), the
+     * matches are kept in arrays that are reused by the following calls, and only the returned Spans are created.
+     *
+     * @param span    input Span (a range of text for process)
+     * @param context a MatchContext that can be reused by the following calls of the same thread
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processSpan(Span span, MatchContext context) {
+        return ((FastCRule) fastRule).processRules(span.text, span.begin, context);
+    }
+
+    /**
+     * Process multiple text spans (e.g. sentences or documents) in parallel, like processDocuments but with the
+     * offsets of each span. The rules are shared by all the worker threads.
+     *
+     * @param spans input Spans
+     * @return matched results of each span, in the same order as the input
+     */
+    public ArrayList<HashMap<String, ArrayList<Span>>> processTextSpans(List<Span> spans) {
+        return processInParallel(spans, this::processSpan);
+    }
+
+    /**
+     * Character rules do not match token lists, use processTextSpans or processDocuments instead.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public ArrayList<HashMap<String, ArrayList<Span>>> processSpanLists(List<ArrayList<Span>> tokenLists) {
+        throw new UnsupportedOperationException("FastCNER does not process token lists, use processTextSpans instead.");
+    }
+
+    /**
+     * Process a long text through a sliding window, so that the whole text does not need to be in memory.
+     *
+     * @param reader   input text
+     * @param callback receives the concept name and each matched span, as soon as the span is final
+     * @throws IOException if the reader fails
+     */
+    public void processReader(Reader reader, BiConsumer<String, Span> callback) throws IOException {
+        ((FastCRule) fastRule).processReader(reader, 0, callback);
+    }
+
+    public void processReader(Reader reader, MatchSink sink) throws IOException {
+        ((FastCRule) fastRule).processReader(reader, 0, sink);
+    }
+
+    public void processCharSequence(CharSequence text, BiConsumer<String, Span> callback) {
+        ((FastCRule) fastRule).processCharSequence(text, 0, callback);
+    }
+
     public HashMap<String, ArrayList<Span>> processAnnotation(Annotation sentence) {
         Span span = new Span(sentence.getBegin(), sentence.getEnd(), sentence.getCoveredText());
         return processSpan(span);
     }
 
+    /**
+     * @param sentence input Annotation
+     * @param context  a MatchContext that can be reused by the following calls of the same thread
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processAnnotation(Annotation sentence, MatchContext context) {
+        Span span = new Span(sentence.getBegin(), sentence.getEnd(), sentence.getCoveredText());
+        return processSpan(span, context);
+    }
+
 
     public void setReplicationSupport(boolean support) {
-        ((FastCRule) fastRule).setReplicationSupport(support);
+        updateSettings((version) -> ((FastCRule) version).setReplicationSupport(support));
     }
 
     public void setCompareMethod(String method) {
-        ((FastCRule) fastRule).setCompareMethod(method);
+        updateSettings((version) -> ((FastCRule) version).setCompareMethod(method));
     }
 
     public void setSpecialCharacterSupport(Boolean scSupport) {
-        ((FastCRule) fastRule).setSpecialCharacterSupport(scSupport);
+        updateSettings((version) -> ((FastCRule) version).setSpecialCharacterSupport(scSupport));
     }
 
 
     public void setMaxRepeatLength(int maxRepeatLength) {
-        ((FastCRule) fastRule).setMaxRepeatLength(maxRepeatLength);
+        updateSettings((version) -> ((FastCRule) version).setMaxRepeatLength(maxRepeatLength));
+    }
+
+    /**
+     * @param useLiteralAutomaton true: match literal rules through an Aho-Corasick automaton
+     */
+    public void setLiteralAutomaton(boolean useLiteralAutomaton) {
+        updateSettings((version) -> ((FastCRule) version).setLiteralAutomaton(useLiteralAutomaton));
     }
 
 
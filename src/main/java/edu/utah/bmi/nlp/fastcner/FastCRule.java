@@ -17,10 +17,22 @@ package edu.utah.bmi.nlp.fastcner;
 
 import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
 import edu.utah.bmi.nlp.core.*;
+import edu.utah.bmi.nlp.fastner.CompiledTrie;
 import edu.utah.bmi.nlp.fastner.FastRuleWG;
-
-import java.util.ArrayList;
-import java.util.HashMap;
+import edu.utah.bmi.nlp.fastner.MatchContext;
+import edu.utah.bmi.nlp.fastner.MatchSink;
+import edu.utah.bmi.nlp.fastner.MatchStack;
+import edu.utah.bmi.nlp.fastner.MetricsRegistry;
+import edu.utah.bmi.nlp.fastner.OverlapResolver;
+import edu.utah.bmi.nlp.fastner.StartIndex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
 import java.util.logging.Level;
 
 import static java.lang.Character.*;
@@ -62,17 +74,35 @@ import static java.lang.Character.*;
 
 public class FastCRule extends FastRuleWG {
     //  other  fields are defined in abstract class
-    protected HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
     protected final Determinants END = Determinants.END;
     //  max length of repeat char---to prevent overflow 25 works perfect, 10 is optimized for speed
     protected int maxRepeatLength = 30;
     protected boolean supportReplications = false, scSupport = false;
     protected String method = "width";
-    protected int offset = 0;
+    //  when enabled, literal rules are matched by an Aho-Corasick automaton instead of the trie walk
+    protected boolean useLiteralAutomaton;
+    protected LiteralAutomaton literalAutomaton;
+    //  number of begin positions processed per window when processing a Reader
+    protected int streamChunkSize = 1 << 16;
+    //  the wildcards that are looked up in charClasses, and the bit of each wildcard (indexed by the wildcard char)
+    protected static final String CLASS_WILD_CARDS = "sndCcpauw";
+    protected static final short[] WILD_CARD_BITS = new short[128];
+    //  the child positions of the "\\" nodes of compiledTrie, in the order that the HashMap walk tries the wildcards
+    //  (indexed like the children of the trie, see initiateCompiledKeys)
+    protected int[] wildCardOrder = new int[0];
+    //  the charClasses of each engine class, which are built once
+    protected static final ConcurrentHashMap<Class<?>, short[]> charClassTables = new ConcurrentHashMap<>();
+    //  the wildcard bits of every char, so that a wildcard check is one array load (see isWildCard)
+    protected final short[] charClasses = charClassTables.computeIfAbsent(getClass(), c -> buildCharClasses());
+
+    static {
+        for (int i = 0; i < CLASS_WILD_CARDS.length(); i++) {
+            WILD_CARD_BITS[CLASS_WILD_CARDS.charAt(i)] = (short) (1 << i);
+        }
+    }
 
     //    Because the match branches caused by wildcards, some right matches can be found before left matches
-//    A segment tree is maintained to check the overlapping among matches within a same type of concept
-    protected HashMap<String, IntervalST> overlapCheckers = new HashMap<>();
+//    A segment tree is maintained (per call, see MatchContext) to check the overlapping among matches within a same type of concept
 
 
     protected FastCRule() {
@@ -88,6 +118,100 @@ public class FastCRule extends FastRuleWG {
         initiate(ruleStore);
     }
 
+    public void initiate(HashMap<Integer, Rule> ruleStore) {
+        literalAutomaton = useLiteralAutomaton ? new LiteralAutomaton() : null;
+        super.initiate(ruleStore);
+        if (literalAutomaton != null)
+            literalAutomaton.build();
+    }
+
+    public void initiate(HashMap<Integer, Rule> ruleStore, CompiledTrie compiledTrie, List<String> vocabularyTokens) {
+        literalAutomaton = useLiteralAutomaton ? new LiteralAutomaton() : null;
+        super.initiate(ruleStore, compiledTrie, vocabularyTokens);
+        if (literalAutomaton != null)
+            literalAutomaton.build();
+    }
+
+    protected void addRuleMetadata(Rule rule) {
+        if (literalAutomaton != null && LiteralAutomaton.isLiteral(rule.rule))
+            literalAutomaton.addRule(rule.rule, ruleConcepts[rule.id], rule.id);
+        setScore(rule.id, rule.score);
+    }
+
+    /**
+     * Match the literal rules (rules without wildcards, groups or replications) through an Aho-Corasick automaton,
+     * which consumes each character only once. The other rules are still matched by the trie walk.
+     *
+     * @param useLiteralAutomaton whether to use the automaton for literal rules
+     */
+    public void setLiteralAutomaton(boolean useLiteralAutomaton) {
+        this.useLiteralAutomaton = useLiteralAutomaton;
+        if (useLiteralAutomaton != (literalAutomaton != null))
+            initiate(ruleStore);
+    }
+
+    public boolean isLiteralAutomaton() {
+        return useLiteralAutomaton;
+    }
+
+    protected boolean hasFrozenRules() {
+        return compiledTrie != null || literalAutomaton != null;
+    }
+
+    protected Object[] ruleKeys(Rule rule) {
+        return charKeys(rule.rule);
+    }
+
+    /**
+     * Character-based rules can always be split at the square brackets, as every char is a key. The rules that
+     * have literal expansions are still expanded while the literal automaton is being built, so that the literal
+     * expansions are matched by the automaton.
+     */
+    protected List<Object[][]> ruleSegments(Rule rule) {
+        if (rule.rule.indexOf("[") == -1)
+            return null;
+        List<List<String>> segments = splitAlternations(rule.rule);
+        if (segments == null)
+            return null;
+        if (literalAutomaton != null && !literalAutomaton.isBuilt() && hasLiteralExpansion(segments))
+            return null;
+        List<Object[][]> keys = new ArrayList<>();
+        for (List<String> alternatives : segments) {
+            Object[][] segment = new Object[alternatives.size()][];
+            for (int a = 0; a < segment.length; a++) {
+                segment[a] = charKeys(alternatives.get(a));
+            }
+            keys.add(segment);
+        }
+        return keys;
+    }
+
+    private boolean hasLiteralExpansion(List<List<String>> segments) {
+        boolean nonEmpty = false;
+        for (List<String> alternatives : segments) {
+            boolean literal = false;
+            for (String alternative : alternatives) {
+                if (alternative.isEmpty()) {
+                    literal = true;
+                } else if (LiteralAutomaton.isLiteral(alternative)) {
+                    literal = true;
+                    nonEmpty = true;
+                }
+            }
+            if (!literal)
+                return false;
+        }
+        return nonEmpty;
+    }
+
+    private Character[] charKeys(String ruleString) {
+        Character[] keys = new Character[ruleString.length()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ruleString.charAt(i);
+        }
+        return keys;
+    }
+
 
     /**
      * Override addRule method
@@ -97,10 +221,16 @@ public class FastCRule extends FastRuleWG {
      */
     @SuppressWarnings("unchecked")
     protected boolean addRule(Rule rule) {
+//      once the automaton is built, the rules added by updateRules go to the rulesMap
+        if (literalAutomaton != null && !literalAutomaton.isBuilt() && LiteralAutomaton.isLiteral(rule.rule)) {
+            literalAutomaton.addRule(rule.rule, ruleConcepts[rule.id], rule.id);
+            setScore(rule.id, rule.score);
+            return true;
+        }
 //      use to store the HashMap sub-chain that have the key chain that overlap with the current rule
 //      rule1 to temporally store the hinges of existing HashMap chain that overlap with current rule
         char[] crule = rule.rule.toCharArray();
-        String determinant = rule.ruleName;
+        Integer determinant = ruleConcepts[rule.id];
         HashMap rule1 = rulesMap;
 //      rule2 to construct the new HashMap sub-chain that doesn't overlap with existing chain
         HashMap rule2 = new HashMap();
@@ -159,14 +289,18 @@ public class FastCRule extends FastRuleWG {
         return null;
     }
 
+    public HashMap<String, ArrayList<Span>> processTokens(String[] texts, int[] begins, int[] ends) {
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("This method is not used in character-based ruleStore");
+        return null;
+    }
+
     public HashMap<String, ArrayList<Span>> processString(String text) {
-        offset = 0;
-        return processRules(text);
+        return processRules(text, 0);
     }
 
     public HashMap<String, ArrayList<Span>> processString(String text, int offset) {
-        this.offset = offset;
-        return processRules(text);
+        return processRules(text, offset);
     }
 
     public HashMap<String, ArrayList<Span>> processSpan(Span span) {
@@ -175,85 +309,721 @@ public class FastCRule extends FastRuleWG {
 
 
     public HashMap<String, ArrayList<Span>> processRules(String text) {
-        // use the first "startposition" to remember the original start matching
-        // position.
-        // use the 2nd one to remember the start position in which recursion.
-        HashMap<String, ArrayList<Span>> matches = new HashMap<>();
+        return processRules(text, 0);
+    }
+
+    /**
+     * @param text   input text
+     * @param offset the offset of the text in the document, which will be added to the matched spans
+     * @return matched spans grouped by concept names
+     */
+    public HashMap<String, ArrayList<Span>> processRules(String text, int offset) {
+        MatchContext context = new MatchContext(offset);
+        char[] textChars = text.toCharArray();
+        processText(text, textChars, context);
+        return collectMatches(context);
+
+    }
+
+    /**
+     * Process a text, and pass the final matches to a sink instead of returning them.
+     * The context is reset before processing, so a caller can reuse one context (per thread) for many calls.
+     *
+     * @param text    input text
+     * @param offset  the offset of the text in the document, which will be added to the matched spans
+     * @param context a reusable MatchContext
+     * @param sink    receives the matches
+     */
+    public void processRules(String text, int offset, MatchContext context, MatchSink sink) {
+        context.reset(offset);
+        char[] textChars = text.toCharArray();
+        processText(text, textChars, context);
+        emitMatches(context, sink);
+    }
+
+    /**
+     * Process a text through a reusable context, e.g. MatchContext.forThread().
+     *
+     * @param text    input text
+     * @param offset  the offset of the text in the document, which will be added to the matched spans
+     * @param context a MatchContext, which is reset before processing
+     * @return matched spans grouped by concept names, created from the pooled matches if the context is pooled
+     */
+    public HashMap<String, ArrayList<Span>> processRules(String text, int offset, MatchContext context) {
+        context.reset(offset);
         char[] textChars = text.toCharArray();
-        for (int i = 0; i < textChars.length; i++) {
-            char previousChar = i > 0 ? textChars[i - 1] : ' ';
-            processRules(text, textChars, rulesMap, i, -1, i, matches, previousChar, false, ' ');
+        processText(text, textChars, context);
+        return getMatches(context);
+    }
+
+    /**
+     * Try the rules at each position of a whole text, and resolve the overlaps of the matches after the walk if an
+     * OverlapResolver is set. (The streaming processReader keeps checking the overlaps as the matches are found,
+     * because it flushes the matches of each chunk.)
+     */
+    protected void processText(String text, char[] textChars, MatchContext context) {
+        OverlapResolver resolver = resolverOf(context);
+        context.text = text;
+        if (resolver == null) {
+            processRange(text, textChars, 0, textChars.length, context);
+            return;
         }
-        if (removePseudo)
-            removePseudoMatches(matches);
-        return matches;
+        context.startCandidates();
+        processRange(text, textChars, 0, textChars.length, context);
+        resolveCandidates(resolver, context);
+    }
 
+    /**
+     * Try the rules at each begin position between from (inclusive) and to (exclusive).
+     *
+     * @param text      input text
+     * @param textChars chars of the input text
+     * @param from      first begin position
+     * @param to        end of the begin positions
+     * @param context   per-call match state
+     */
+    protected void processRange(String text, char[] textChars, int from, int to, MatchContext context) {
+        MetricsRegistry metrics = this.metrics;
+        if (metrics == null) {
+            matchRange(text, textChars, from, to, context);
+            return;
+        }
+        long start = System.nanoTime(), visitedNodes = context.visitedNodes;
+        matchRange(text, textChars, from, to, context);
+        metrics.recordCall(System.nanoTime() - start, to - from, 0, context.visitedNodes - visitedNodes);
+    }
+
+    protected void matchRange(String text, char[] textChars, int from, int to, MatchContext context) {
+        LiteralAutomaton automaton = literalAutomaton;
+        LiteralAutomaton.Hits hits = automaton == null ? null : automaton.match(textChars);
+//      all the rules might be literal
+        boolean walk = compiledTrie != null || !rulesMap.isEmpty();
+        StartIndex index = walk ? getStartIndex() : null;
+//      the next position where a rule can begin, found by a scan of the chars instead of a trie lookup per char
+        int start = walk ? nextStart(index, textChars, from, to) : to;
+        if (hits == null) {
+            for (int i = start; i < to; i = nextStart(index, textChars, i + 1, to))
+                walkRules(text, textChars, i, context);
+            return;
+        }
+//      the walk adds the literal matches that begin at its start, where the trie walk would reach them (see stepRules)
+        CharMatchStack stack = (CharMatchStack) context.getStack(CharMatchStack::new);
+        stack.automaton = automaton;
+        stack.hits = hits;
+        for (int i = from; i < to; i++) {
+            if (i == start) {
+                walkRules(text, textChars, i, context);
+                start = nextStart(index, textChars, i + 1, to);
+                continue;
+            }
+//          no other rule begins at i: literal matches from the shortest to the longest, as the trie walk would add them
+            for (int h = hits.offsets[i]; h < hits.offsets[i + 1]; h++) {
+                addLiteralDeterminants(text, automaton, hits.nodes[h], context, i, hits.ends[h]);
+            }
+        }
+        stack.automaton = null;
+        stack.hits = null;
     }
 
+    /**
+     * Try the rules that begin at position i.
+     */
+    protected void walkRules(String text, char[] textChars, int i, MatchContext context) {
+        char previousChar = i > 0 ? textChars[i - 1] : ' ';
+        CharMatchStack stack = (CharMatchStack) context.getStack(CharMatchStack::new);
+        LiteralAutomaton.Hits hits = stack.hits;
+        if (compiledTrie != null) {
+            processCompiledRules(text, textChars, CompiledTrie.ROOT, i, -1, i, context, previousChar, false, ' ');
+//          the literal matches have been added by the compiled walk
+            stack.hits = null;
+        }
+//      the rulesMap holds the rules added by updateRules after the rules were compiled
+        if (compiledTrie == null || !rulesMap.isEmpty())
+            processRules(text, textChars, rulesMap, i, -1, i, context, previousChar, false, ' ');
+        stack.hits = hits;
+    }
 
+    /**
+     * @return the first position between from (inclusive) and to (exclusive) where a rule can begin, or to if none
+     */
+    protected int nextStart(StartIndex index, char[] textChars, int from, int to) {
+        if (index.any || (from == 0 && index.textBegin))
+            return from;
+        return index.nextStart(textChars, from, to);
+    }
+
+    /**
+     * Read the first chars and wildcards of the rules. A rule that starts with a group begin starts with the first
+     * element of the group.
+     */
+    protected StartIndex buildStartIndex() {
+        StartIndex index = new StartIndex();
+        addStartChars(index, rulesMap);
+        if (compiledTrie != null)
+            addStartChars(index, compiledTrie, CompiledTrie.ROOT);
+//      merge the chars of the wildcard classes into the bitmap, so that the scan of the text tests one bit per char
+        if (index.charClasses != 0) {
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                if ((charClasses[c] & index.charClasses) != 0)
+                    index.addChar((char) c);
+            }
+        }
+        return index;
+    }
+
+    protected void addStartChars(StartIndex index, HashMap rule) {
+        for (Object key : rule.keySet()) {
+            if (!(key instanceof Character)) {
+                index.any = true;
+                continue;
+            }
+            char c = (Character) key;
+            if (c == '(') {
+                addStartChars(index, (HashMap) rule.get(key));
+            } else if (c == '\\') {
+                for (Object wildCard : ((HashMap) rule.get(key)).keySet())
+                    addStartWildCard(index, (Character) wildCard);
+            } else if (c == ')' || c == '+') {
+                index.any = true;
+            } else {
+                index.addChar(c);
+            }
+        }
+    }
+
+    protected void addStartChars(StartIndex index, CompiledTrie trie, int node) {
+        if (trie.hasEnd(node))
+            index.any = true;
+        for (int i = trie.childBegin(node); i < trie.childEnd(node); i++) {
+            char c = (char) trie.childKey(i);
+            if (c == '(') {
+                addStartChars(index, trie, trie.childNode(i));
+            } else if (c == '\\') {
+                int wildCards = trie.childNode(i);
+                for (int j = trie.childBegin(wildCards); j < trie.childEnd(wildCards); j++)
+                    addStartWildCard(index, (char) trie.childKey(j));
+            } else if (c == ')' || c == '+') {
+                index.any = true;
+            } else {
+                index.addChar(c);
+            }
+        }
+    }
+
+    /**
+     * @param wildCard the char following "\\" at the first level of the rules
+     */
+    protected void addStartWildCard(StartIndex index, char wildCard) {
+        switch (wildCard) {
+            case '(':
+            case ')':
+            case '+':
+            case '\\':
+                index.addChar(wildCard);
+                break;
+            case 'b':
+                index.textBegin = true;
+                break;
+            default:
+                if (wildCard < WILD_CARD_BITS.length && WILD_CARD_BITS[wildCard] != 0)
+                    index.charClasses |= WILD_CARD_BITS[wildCard];
+                else
+                    index.any = true;
+        }
+    }
+
+    /**
+     * Process a long text from a Reader without loading it into memory as a whole.
+     * <p>
+     * The text is read into a sliding window. The rules are tried at the begin positions of a chunk, while the window
+     * keeps enough chars after the chunk for the longest possible match (see getMaxMatchLength), and one char before
+     * it for the previous char checks. A matched span is passed to the callback as soon as no later match can
+     * overlap it, so the results are the same as processString(text, offset) on the whole text.
+     *
+     * @param reader   input text
+     * @param offset   the offset of the text in the document, which will be added to the matched spans
+     * @param callback receives the concept name and the matched span
+     * @throws IOException if the reader fails
+     */
+    public void processReader(Reader reader, int offset, BiConsumer<String, Span> callback) throws IOException {
+        streamMatches(reader, offset, (span, conceptId) -> callback.accept(conceptNames.get(conceptId), span));
+    }
+
+    /**
+     * @see #processReader(Reader, int, BiConsumer)
+     */
+    public void processReader(Reader reader, int offset, MatchSink sink) throws IOException {
+        streamMatches(reader, offset, (span, conceptId) ->
+                sink.match(conceptId, span.begin, span.end, span.ruleId, span.score));
+    }
+
+    /**
+     * The sliding window of processReader. The callback receives each final span and its concept id.
+     */
+    protected void streamMatches(Reader reader, int offset, ObjIntConsumer<Span> callback) throws IOException {
+        int lookahead = getMaxMatchLength();
+        char[] buffer = new char[streamChunkSize + lookahead + 1];
+        MatchContext context = new MatchContext(offset);
+//      stream position of buffer[0], number of chars in the buffer, and the first begin position in the buffer
+        int bufferStart = 0, length = 0, from = 0;
+        boolean eof = false;
+        while (true) {
+            while (length < buffer.length) {
+                int read = reader.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    eof = true;
+                    break;
+                }
+                length += read;
+            }
+            int to = eof ? length : length - lookahead;
+            char[] textChars = Arrays.copyOf(buffer, length);
+            context.offset = offset + bufferStart;
+            processRange(new String(textChars), textChars, from, to, context);
+            if (eof) {
+                flushMatches(context, Integer.MAX_VALUE, callback);
+                return;
+            }
+            flushMatches(context, context.offset + to, callback);
+//          keep the previous char of the next chunk, and the lookahead chars
+            int shift = to - 1;
+            System.arraycopy(buffer, shift, buffer, 0, length - shift);
+            bufferStart += shift;
+            length -= shift;
+            from = 1;
+        }
+    }
+
+    /**
+     * @see #processReader(Reader, int, BiConsumer)
+     */
+    public void processCharSequence(CharSequence text, int offset, BiConsumer<String, Span> callback) {
+        try {
+            processReader(new CharSequenceReader(text), offset, callback);
+        } catch (IOException e) {
+//          reading from a CharSequence does not throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Pass the matched spans that end before the frontier to the callback, and remove them from the context.
+     * Later matches begin at or after the frontier, so they cannot overlap these spans any more.
+     */
+    protected void flushMatches(MatchContext context, int frontier, ObjIntConsumer<Span> callback) {
+        for (int conceptId = 0; conceptId < context.matches.size(); conceptId++) {
+            ArrayList<Span> spans = context.matches.get(conceptId);
+            if (spans == null)
+                continue;
+            ArrayList<Span> remaining = new ArrayList<>();
+            IntervalST<Integer> overlapChecker = new IntervalST<>();
+            for (Span span : spans) {
+                if (span.end <= frontier) {
+                    if (!removePseudo || !pseudoRules[span.ruleId])
+                        callback.accept(span, conceptId);
+                } else {
+                    overlapChecker.put(new Interval1D(span.begin, span.end - 1), remaining.size());
+                    remaining.add(span);
+                }
+            }
+            context.matches.set(conceptId, remaining);
+            context.overlapCheckers.set(conceptId, overlapChecker);
+        }
+    }
+
+    /**
+     * @return the longest text that a rule can match: the rule length, plus maxRepeatLength for each replication
+     */
+    public int getMaxMatchLength() {
+        int maxLength = 1;
+        for (Rule rule : ruleStore.values()) {
+            int length = rule.rule.length();
+            if (supportReplications) {
+                for (int i = 0; i < rule.rule.length(); i++) {
+                    if (rule.rule.charAt(i) == '+')
+                        length += maxRepeatLength;
+                }
+            }
+            maxLength = Math.max(maxLength, length);
+        }
+        return maxLength;
+    }
+
+    /**
+     * @param streamChunkSize number of begin positions processed per window by processReader
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    /**
+     * A Reader over a CharSequence, which copies the requested chars only.
+     */
+    protected static class CharSequenceReader extends Reader {
+        protected final CharSequence text;
+        protected int position = 0;
+
+        public CharSequenceReader(CharSequence text) {
+            this.text = text;
+        }
+
+        public int read(char[] cbuf, int off, int len) {
+            if (position >= text.length())
+                return -1;
+            int end = Math.min(text.length(), position + len);
+            for (int i = position; i < end; i++) {
+                cbuf[off++] = text.charAt(i);
+            }
+            int read = end - position;
+            position = end;
+            return read;
+        }
+
+        public void close() {
+        }
+    }
+
+
+    /**
+     * Walk the rulesMap from a rule node. The walk keeps its pending steps on the MatchStack of the context,
+     * instead of one recursive call per matched char, so that long replications and wildcard fan-out cannot
+     * overflow the call stack.
+     */
     protected void processRules(String text, char[] textChars, HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                                HashMap<String, ArrayList<Span>> matches,
+                                MatchContext context,
                                 char previousChar, boolean wildcard, char previousKey) {
+        CharMatchStack stack = (CharMatchStack) context.getStack(CharMatchStack::new);
+        int bottom = stack.size;
+        stack.push(MatchStack.RULES, 0, rule, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+        if (stack.hits != null)
+            stack.markLiteralPath();
+        walk(text, textChars, context, bottom);
+    }
+
+    /**
+     * The compiled counterpart of processRules, walking the node ids of compiledTrie instead of the HashMap chain.
+     */
+    protected void processCompiledRules(String text, char[] textChars, int node, int matchBegin, int matchEnd, int currentPosition,
+                                        MatchContext context,
+                                        char previousChar, boolean wildcard, char previousKey) {
+        CharMatchStack stack = (CharMatchStack) context.getStack(CharMatchStack::new);
+        int bottom = stack.size;
+        stack.push(MatchStack.RULES, node, null, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+        if (stack.hits != null)
+            stack.markLiteralPath();
+        walk(text, textChars, context, bottom);
+    }
+
+    /**
+     * Run the steps on the stack above bottom. Each step pushes the steps that follow it in the order of the
+     * recursive walk, which are then reversed, so that the matches are added in the same order as before.
+     *
+     * @param bottom the size of the stack before the first step was pushed
+     */
+    protected void walk(String text, char[] textChars, MatchContext context, int bottom) {
+        CharMatchStack stack = (CharMatchStack) context.getStack(CharMatchStack::new);
+        while (stack.size > bottom) {
+            int top = stack.pop();
+//          read the frame before the following steps overwrite it
+            int task = stack.tasks[top];
+            int node = stack.nodes[top];
+            HashMap rule = stack.rules[top];
+            int matchBegin = stack.matchBegins[top];
+            int matchEnd = stack.matchEnds[top];
+            int currentPosition = stack.positions[top];
+            char previousChar = stack.previousChars[top];
+            boolean wildcard = stack.wildcards[top];
+            char previousKey = stack.previousKeys[top];
+            boolean literalPath = stack.literalPaths[top];
+            stack.rules[top] = null;
+            switch (task) {
+                case MatchStack.RULES:
+                    context.visitedNodes++;
+                    if (rule == null)
+                        stepCompiledRules(stack, textChars, node, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey,
+                                literalPath);
+                    else
+                        stepRules(stack, textChars, rule, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey,
+                                literalPath);
+                    break;
+                case MatchStack.LITERALS:
+                    addLiteralHits(text, stack, context, matchBegin, currentPosition, matchEnd);
+                    break;
+                case MatchStack.WILD_CARDS:
+                    if (rule == null)
+                        processCompiledWildCards(stack, textChars, node, matchBegin, matchEnd, currentPosition, previousChar);
+                    else
+                        processWildCards(stack, textChars, rule, matchBegin, matchEnd, currentPosition, previousChar);
+                    break;
+                default:
+                    if (rule == null)
+                        addCompiledDeterminants(text, node, context, matchBegin, matchEnd, currentPosition);
+                    else
+                        addDeterminants(text, rule, context, matchBegin, matchEnd, currentPosition);
+            }
+            stack.reverse(top);
+        }
+    }
+
+    /**
+     * Push the steps that follow a rule node of rulesMap at currentPosition.
+     * <p>
+     * The literal rules of the LiteralAutomaton are not in the trie, so along the plain chars from matchBegin
+     * (literalPath) their matches are pushed where their nodes would be: the ones that end here after the END of
+     * the node, and the longer ones in place of the char edge once the trie has no node for the next char.
+     */
+    protected void stepRules(CharMatchStack stack, char[] textChars, HashMap rule, int matchBegin, int matchEnd, int currentPosition,
+                             char previousChar, boolean wildcard, char previousKey, boolean literalPath) {
         // when reach the end of the tunedcontext, end the iteration
         if (currentPosition < textChars.length) {
             char thisChar = textChars[currentPosition];
 
             if (rule.containsKey('\\')) {
-                processWildCards(text, textChars, (HashMap) rule.get('\\'), matchBegin, matchEnd, currentPosition, matches, previousChar, true, '\\');
+                stack.push(MatchStack.WILD_CARDS, 0, (HashMap) rule.get('\\'), matchBegin, matchEnd, currentPosition,
+                        previousChar, true, '\\');
             }
             if (rule.containsKey('(') && previousKey != '\\') {
-                processRules(text, textChars, (HashMap) rule.get('('), currentPosition, matchEnd, currentPosition, matches,
+                stack.push(MatchStack.RULES, 0, (HashMap) rule.get('('), currentPosition, matchEnd, currentPosition,
                         previousChar, false, '(');
             }
             if (rule.containsKey(')') && previousKey != '\\') {
-                processRules(text, textChars, (HashMap) rule.get(')'), matchBegin, currentPosition, currentPosition, matches,
+                stack.push(MatchStack.RULES, 0, (HashMap) rule.get(')'), matchBegin, currentPosition, currentPosition,
                         previousChar, false, ')');
 
             }
             // if the end of a rule is met
 
             if (rule.containsKey(END)) {
-                addDeterminants(text, rule, matches, matchBegin, matchEnd, currentPosition);
+                stack.push(MatchStack.DETERMINANTS, 0, rule, matchBegin, matchEnd, currentPosition,
+                        previousChar, wildcard, previousKey);
             }
+            if (literalPath && endsLiteral(stack, matchBegin, currentPosition))
+                stack.push(MatchStack.LITERALS, 0, null, matchBegin, currentPosition, currentPosition, previousChar, false, previousKey);
             // if the current token match the element of a rule
             if (rule.containsKey(thisChar) && (thisChar != ')' && thisChar != '(')) {
-                processRules(text, textChars, (HashMap) rule.get(thisChar), matchBegin, matchEnd, currentPosition + 1, matches,
+                stack.push(MatchStack.RULES, 0, (HashMap) rule.get(thisChar), matchBegin, matchEnd, currentPosition + 1,
                         thisChar, false, thisChar);
+                if (literalPath)
+                    stack.markLiteralPath();
+            } else if (literalPath) {
+                stack.push(MatchStack.LITERALS, 0, null, matchBegin, Integer.MAX_VALUE, currentPosition + 1,
+                        previousChar, false, previousKey);
             }
 
-//            if(currentRepeats>0)
-//                currentRepeats=currentRepeats;
 //          Replications of current char
             if (supportReplications && rule.containsKey('+')) {
-//                processRules(textChars, (HashMap) rule.get('+'), matchBegin, matchEnd, currentPosition, matches,
-//                        previousChar, false, ' ');
-                processRules(text, textChars, (HashMap) rule.get('+'), matchBegin, matchEnd, currentPosition, matches,
+                stack.push(MatchStack.RULES, 0, (HashMap) rule.get('+'), matchBegin, matchEnd, currentPosition,
                         thisChar, false, '+');
-                processReplicants(text, textChars, (HashMap) rule.get('+'), matchBegin, matchEnd, currentPosition, matches,
+                processReplicants(stack, textChars, (HashMap) rule.get('+'), matchBegin, matchEnd, currentPosition,
                         thisChar, wildcard, previousKey);
             }
 
 
+        } else if (currentPosition == textChars.length && literalPath && endsLiteral(stack, matchBegin, currentPosition)) {
+//          the literal rule ends at this node
+            if (rule.containsKey(END))
+                stack.push(MatchStack.DETERMINANTS, 0, rule, matchBegin, matchEnd == -1 ? currentPosition : matchEnd, currentPosition,
+                        previousChar, wildcard, previousKey);
+            stack.push(MatchStack.LITERALS, 0, null, matchBegin, currentPosition, currentPosition, previousChar, false, previousKey);
         } else if (currentPosition == textChars.length && rule.containsKey(END)) {
-            if (matchEnd == -1)
-                addDeterminants(text, rule, matches, matchBegin, currentPosition, currentPosition);
-            else
-                addDeterminants(text, rule, matches, matchBegin, matchEnd, currentPosition);
+            stack.push(MatchStack.DETERMINANTS, 0, rule, matchBegin, matchEnd == -1 ? currentPosition : matchEnd, currentPosition,
+                    previousChar, wildcard, previousKey);
         } else if (currentPosition == textChars.length && rule.containsKey('\\') && ((HashMap) rule.get('\\')).containsKey('e')) {
             HashMap deterRule = ((HashMap) ((HashMap) rule.get('\\')).get('e'));
-            if (matchEnd == -1)
-                addDeterminants(text, deterRule, matches, matchBegin, currentPosition, currentPosition);
-            else
-                addDeterminants(text, deterRule, matches, matchBegin, matchEnd, currentPosition);
+            stack.push(MatchStack.DETERMINANTS, 0, deterRule, matchBegin, matchEnd == -1 ? currentPosition : matchEnd, currentPosition,
+                    previousChar, wildcard, previousKey);
         } else if (currentPosition == textChars.length && rule.containsKey(')')) {
             HashMap deterRule = (HashMap) rule.get(')');
             if (deterRule.containsKey(END)) {
-                addDeterminants(text, deterRule, matches, matchBegin, currentPosition, currentPosition);
+                stack.push(MatchStack.DETERMINANTS, 0, deterRule, matchBegin, currentPosition, currentPosition,
+                        previousChar, wildcard, previousKey);
             } else if (deterRule.containsKey('\\') && ((HashMap) deterRule.get('\\')).containsKey('e'))
-                processRules(text, textChars, (HashMap) ((HashMap) deterRule.get('\\')).get('e'), matchBegin, matchEnd, currentPosition, matches, previousChar, false, ' ');
+                stack.push(MatchStack.RULES, 0, (HashMap) ((HashMap) deterRule.get('\\')).get('e'), matchBegin, matchEnd, currentPosition,
+                        previousChar, false, ' ');
         } else if (currentPosition == textChars.length && rule.containsKey('+')) {
             HashMap deterRule = (HashMap) rule.get('+');
-            processRules(text, textChars, deterRule, matchBegin, matchEnd, currentPosition, matches, previousChar, wildcard, previousKey);
+            stack.push(MatchStack.RULES, 0, deterRule, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+        }
+    }
+
+    /**
+     * The compiled counterpart of stepRules.
+     */
+    protected void stepCompiledRules(CharMatchStack stack, char[] textChars, int node, int matchBegin, int matchEnd, int currentPosition,
+                                     char previousChar, boolean wildcard, char previousKey, boolean literalPath) {
+        CompiledTrie trie = compiledTrie;
+        int next;
+        if (currentPosition < textChars.length) {
+            char thisChar = textChars[currentPosition];
+
+            if ((next = trie.child(node, '\\')) != CompiledTrie.NONE) {
+                stack.push(MatchStack.WILD_CARDS, next, null, matchBegin, matchEnd, currentPosition, previousChar, true, '\\');
+            }
+            if (previousKey != '\\' && (next = trie.child(node, '(')) != CompiledTrie.NONE) {
+                stack.push(MatchStack.RULES, next, null, currentPosition, matchEnd, currentPosition, previousChar, false, '(');
+            }
+            if (previousKey != '\\' && (next = trie.child(node, ')')) != CompiledTrie.NONE) {
+                stack.push(MatchStack.RULES, next, null, matchBegin, currentPosition, currentPosition, previousChar, false, ')');
+            }
+            if (trie.hasEnd(node)) {
+                stack.push(MatchStack.DETERMINANTS, node, null, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+            }
+            if (literalPath && endsLiteral(stack, matchBegin, currentPosition))
+                stack.push(MatchStack.LITERALS, node, null, matchBegin, currentPosition, currentPosition, previousChar, false, previousKey);
+            if (thisChar != ')' && thisChar != '(' && (next = trie.child(node, thisChar)) != CompiledTrie.NONE) {
+                stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition + 1, thisChar, false, thisChar);
+                if (literalPath)
+                    stack.markLiteralPath();
+            } else if (literalPath) {
+                stack.push(MatchStack.LITERALS, node, null, matchBegin, Integer.MAX_VALUE, currentPosition + 1, previousChar, false, previousKey);
+            }
+            if (supportReplications && (next = trie.child(node, '+')) != CompiledTrie.NONE) {
+                stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition, thisChar, false, '+');
+                int nextPosition = skipReplicants(textChars, currentPosition, wildcard, previousKey);
+                if (nextPosition != -1)
+                    stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, nextPosition, thisChar, false, '+');
+            }
+        } else if (currentPosition == textChars.length) {
+            int escape = trie.child(node, '\\');
+            if (literalPath && endsLiteral(stack, matchBegin, currentPosition)) {
+//              the literal rule ends at this node
+                if (trie.hasEnd(node))
+                    stack.push(MatchStack.DETERMINANTS, node, null, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+                stack.push(MatchStack.LITERALS, node, null, matchBegin, currentPosition, currentPosition, previousChar, false, previousKey);
+            } else if (trie.hasEnd(node)) {
+                stack.push(MatchStack.DETERMINANTS, node, null, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+            } else if (escape != CompiledTrie.NONE && (next = trie.child(escape, 'e')) != CompiledTrie.NONE) {
+                stack.push(MatchStack.DETERMINANTS, next, null, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+            } else if ((next = trie.child(node, ')')) != CompiledTrie.NONE) {
+                int e;
+                if (trie.hasEnd(next)) {
+                    stack.push(MatchStack.DETERMINANTS, next, null, matchBegin, currentPosition, currentPosition, previousChar, wildcard, previousKey);
+                } else if ((escape = trie.child(next, '\\')) != CompiledTrie.NONE
+                        && (e = trie.child(escape, 'e')) != CompiledTrie.NONE) {
+                    stack.push(MatchStack.RULES, e, null, matchBegin, matchEnd, currentPosition, previousChar, false, ' ');
+                }
+            } else if ((next = trie.child(node, '+')) != CompiledTrie.NONE) {
+                stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition, previousChar, wildcard, previousKey);
+            }
+        }
+    }
+
+    /**
+     * Order the children of the "\\" nodes of compiledTrie like processWildCards, which tries the wildcards in the
+     * iteration order of the HashMap node, as kept by the child ranks of the trie (also for a trie loaded from a
+     * snapshot).
+     */
+    protected void initiateCompiledKeys() {
+        super.initiateCompiledKeys();
+        CompiledTrie trie = compiledTrie;
+        int nodeCount = trie.getNodeCount();
+        int[] order = new int[trie.childEnd(nodeCount - 1)];
+        for (int n = 0; n < nodeCount; n++) {
+            int escape = trie.child(n, '\\');
+            if (escape == CompiledTrie.NONE)
+                continue;
+            int from = trie.childBegin(escape), to = trie.childEnd(escape);
+            long[] packed = new long[to - from];
+            for (int i = from; i < to; i++)
+                packed[i - from] = ((long) trie.childRank(i) << 32) | i;
+            Arrays.sort(packed);
+            for (int i = from; i < to; i++)
+                order[i] = (int) packed[i - from];
+        }
+        wildCardOrder = order;
+    }
+
+    /**
+     * Push the steps of the wildcards under a "\\" node of compiledTrie that match the char at currentPosition,
+     * in the order of wildCardOrder.
+     */
+    protected void processCompiledWildCards(CharMatchStack stack, char[] textChars, int node, int matchBegin, int matchEnd, int currentPosition,
+                                            char previousChar) {
+        CompiledTrie trie = compiledTrie;
+        int[] order = wildCardOrder;
+        char thisChar = textChars[currentPosition];
+        for (int k = trie.childBegin(node); k < trie.childEnd(node); k++) {
+            int i = order[k];
+            char thisRuleChar = (char) trie.childKey(i);
+            int next = trie.childNode(i);
+            switch (thisRuleChar) {
+                case '(':
+                case ')':
+                case '+':
+                    if (thisChar == thisRuleChar)
+                        stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition + 1,
+                                thisChar, true, thisRuleChar);
+                    break;
+                case '\\':
+                    if (thisChar == '\\')
+                        stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition + 1,
+                                thisChar, false, '\\');
+                    break;
+                case 'b':
+                    if (currentPosition == 0)
+                        stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition,
+                                previousChar, false, 'b');
+                    break;
+                default:
+                    if (isWildCard(thisRuleChar, thisChar))
+                        stack.push(MatchStack.RULES, next, null, matchBegin, matchEnd, currentPosition + 1,
+                                thisChar, true, thisRuleChar);
+            }
+        }
+    }
+    /**
+     * @param wildCard the char following "\\" in a rule
+     * @param thisChar the char of the input text
+     * @return true if thisChar belongs to the class of the wildcard
+     */
+    protected boolean isWildCard(char wildCard, char thisChar) {
+        return wildCard < WILD_CARD_BITS.length && (charClasses[thisChar] & WILD_CARD_BITS[wildCard]) != 0;
+    }
+
+    /**
+     * Look up the wildcard predicates (iss, isd...) of every char. The predicates of an engine class must only
+     * depend on the char, because the table is shared by all the instances of the class.
+     *
+     * @return the wildcard bits of each char, indexed by the char
+     */
+    protected short[] buildCharClasses() {
+        short[] classes = new short[Character.MAX_VALUE + 1];
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            int bits = 0;
+            for (int i = 0; i < CLASS_WILD_CARDS.length(); i++) {
+                if (checkWildCard(CLASS_WILD_CARDS.charAt(i), (char) c))
+                    bits |= 1 << i;
+            }
+            classes[c] = (short) bits;
+        }
+        return classes;
+    }
+
+    /**
+     * The definitions of the wildcards, which are looked up once per char by buildCharClasses.
+     */
+    protected boolean checkWildCard(char wildCard, char thisChar) {
+        switch (wildCard) {
+            case 's':
+                return iss(thisChar);
+            case 'n':
+                return thisChar == '\n' || thisChar == '\r';
+            case 'd':
+                return isd(thisChar);
+            case 'C':
+                return isC(thisChar);
+            case 'c':
+                return isc(thisChar);
+            case 'p':
+                return isp(thisChar);
+            case 'a':
+                return isa(thisChar);
+            case 'u':
+                return isu(thisChar);
+            case 'w':
+                return isw(thisChar);
+            default:
+                return false;
         }
     }
 
@@ -290,228 +1060,90 @@ public class FastCRule extends FastRuleWG {
     }
 
 
-    protected void processWildCards(String text, char[] textChars, HashMap rule, int matchBegin, int matchEnd, int currentPosition, HashMap<String, ArrayList<Span>> matches, char previousChar, boolean wildcard, char previousKey) {
+    /**
+     * Push the steps of the wildcards under a "\\" node of rulesMap that match the char at currentPosition.
+     * The wildcards are tried in the iteration order of the node, which decides the kept span when two matches tie
+     * (the compiled walk follows the same order, see initiateCompiledKeys).
+     */
+    protected void processWildCards(CharMatchStack stack, char[] textChars, HashMap rule, int matchBegin, int matchEnd, int currentPosition, char previousChar) {
         char thisChar = textChars[currentPosition];
         for (Object rulechar : rule.keySet()) {
             char thisRuleChar = (Character) rulechar;
             switch (thisRuleChar) {
-                case 's':
-//                    if (thisChar == ' ' || thisChar == '\t' || (scSupport && !(isLetterOrDigit(thisChar) || isWhitespace(thisChar) || WildCardChecker.isPunctuation(thisChar)))) {
-                    if (iss(thisChar)) {
-                        processRules(text, textChars, (HashMap) rule.get('s'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 's');
-                    }
-                    break;
-                case 'n':
-                    if (thisChar == '\n' || thisChar == '\r') {
-                        processRules(text, textChars, (HashMap) rule.get('n'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'n');
-                    }
-                    break;
                 case '(':
-                    if (thisChar == '(')
-                        processRules(text, textChars, (HashMap) rule.get('('), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, '(');
-                    break;
                 case ')':
-                    if (thisChar == ')')
-                        processRules(text, textChars, (HashMap) rule.get(')'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, ')');
-                    break;
-                case 'd':
-                    if (isd(thisChar)) {
-                        processRules(text, textChars, (HashMap) rule.get('d'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'd');
-                    }
-                    break;
-                case 'C':
-                    if (isC(thisChar)) {
-                        processRules(text, textChars, (HashMap) rule.get('C'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'C');
-                    }
-                    break;
-                case 'c':
-                    if (isc(thisChar)) {
-                        processRules(text, textChars, (HashMap) rule.get('c'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'c');
-                    }
-                    break;
-                case 'p':
-                    if (isp(thisChar)) {
-                        processRules(text, textChars, (HashMap) rule.get('p'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'p');
-                    }
-                    break;
                 case '+':
-                    if (thisChar == '+') {
-                        processRules(text, textChars, (HashMap) rule.get('+'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, '+');
-                    }
+                    if (thisChar == thisRuleChar)
+                        stack.push(MatchStack.RULES, 0, (HashMap) rule.get(thisRuleChar), matchBegin, matchEnd, currentPosition + 1,
+                                thisChar, true, thisRuleChar);
                     break;
                 case '\\':
-                    if (thisChar == '\\') {
-                        processRules(text, textChars, (HashMap) rule.get('\\'), matchBegin, matchEnd, currentPosition + 1, matches,
+                    if (thisChar == '\\')
+                        stack.push(MatchStack.RULES, 0, (HashMap) rule.get('\\'), matchBegin, matchEnd, currentPosition + 1,
                                 thisChar, false, '\\');
-                    }
                     break;
                 case 'b':
                     if (currentPosition == 0)
-                        processRules(text, textChars, (HashMap) rule.get('b'), matchBegin, matchEnd, currentPosition, matches,
+                        stack.push(MatchStack.RULES, 0, (HashMap) rule.get('b'), matchBegin, matchEnd, currentPosition,
                                 previousChar, false, 'b');
                     break;
-                case 'a':
-                    if (isa(thisChar))
-//                    if(thisChar!=' ' && thisChar!='\t' && thisChar!='\r' && thisChar!='\n')
-                        processRules(text, textChars, (HashMap) rule.get('a'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'a');
-                    break;
-                case 'u':
-                    if (isu(thisChar))
-                        processRules(text, textChars, (HashMap) rule.get('u'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'u');
-                    break;
-
-                case 'w':
-                    if (isw(thisChar)) {
-                        processRules(text, textChars, (HashMap) rule.get('w'), matchBegin, matchEnd, currentPosition + 1, matches,
-                                thisChar, true, 'w');
-                    }
-                    break;
 //                TODO negation rule
 //                case '^':
 //                    break;
-
+                default:
+//                  the class wildcards: s, n, d, C, c, p, a, u, w
+                    if (isWildCard(thisRuleChar, thisChar))
+                        stack.push(MatchStack.RULES, 0, (HashMap) rule.get(thisRuleChar), matchBegin, matchEnd, currentPosition + 1,
+                                thisChar, true, thisRuleChar);
             }
         }
 
     }
 
-    protected void processReplicants(String text, char[] textChars, HashMap rule, int matchBegin, int matchEnd, int currentPosition, HashMap<String, ArrayList<Span>> matches, char previousChar, boolean wildcard, char previousKey) {
+    /**
+     * Push the step after the replications of the previous rule element, if there are any at currentPosition.
+     */
+    protected void processReplicants(CharMatchStack stack, char[] textChars, HashMap rule, int matchBegin, int matchEnd, int currentPosition, char previousChar, boolean wildcard, char previousKey) {
+        int nextPosition = skipReplicants(textChars, currentPosition, wildcard, previousKey);
+        if (nextPosition != -1)
+            stack.push(MatchStack.RULES, 0, rule, matchBegin, matchEnd, nextPosition,
+                    previousChar, false, '+');
+    }
+
+    /**
+     * Skip the replications of the previous rule element (a wildcard or a plain char), up to maxRepeatLength.
+     *
+     * @return the position after the replications, or -1 if a plain char is not replicated at currentPosition
+     */
+    protected int skipReplicants(char[] textChars, int currentPosition, boolean wildcard, char previousKey) {
         char thisChar = textChars[currentPosition];
         int currentRepeats = 0;
         if (wildcard) {
-            switch (previousKey) {
-                case 's':
-                    //                        if (thisChar == ' ' || thisChar == '\t' || (int)thisChar==160 || (scSupport && !(isLetterOrDigit(thisChar) || isWhitespace(thisChar) || WildCardChecker.isPunctuation(thisChar)))) {
-                    if (iss(thisChar)) {
-                        while (iss(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'n':
-                    if ((thisChar == '\n' || thisChar == '\r')) {
-                        while ((thisChar == '\n' || thisChar == '\r') && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'd':
-                    if (isd(thisChar)) {
-                        while (isd(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'C':
-                    if (isC(thisChar)) {
-                        while (isC(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'c':
-                    if (isc(thisChar)) {
-                        while (isc(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }//
-                    }
-                    break;
-                case 'p':
-                    if (isp(thisChar)) {
-                        while (isp(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'a':
-                    if (isa(thisChar)) {
-                        while (isa(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'u':
-                    if (isu(thisChar)) {
-                        while (isu(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
-                    break;
-                case 'w':
-                    if (isw(thisChar)) {
-                        while (isw(thisChar) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
-                            currentPosition++;
-                            currentRepeats++;
-                            if (currentPosition == textChars.length)
-                                break;
-                            thisChar = textChars[currentPosition];
-                        }
-                    }
+            while (isWildCard(previousKey, thisChar) && currentRepeats < maxRepeatLength) {
+                currentPosition++;
+                currentRepeats++;
+                if (currentPosition == textChars.length)
                     break;
+                thisChar = textChars[currentPosition];
             }
-            processRules(text, textChars, rule, matchBegin, matchEnd, currentPosition, matches,
-                    previousChar, false, '+');
+            return currentPosition;
         } else if (thisChar == previousKey) {
-            while ((thisChar == previousKey) && currentRepeats < maxRepeatLength && currentPosition < textChars.length) {
+            while ((thisChar == previousKey) && currentRepeats < maxRepeatLength) {
                 currentPosition++;
                 currentRepeats++;
                 if (currentPosition == textChars.length)
                     break;
                 thisChar = textChars[currentPosition];
-
             }
-            processRules(text, textChars, rule, matchBegin, matchEnd, currentPosition, matches,
-                    previousChar, false, '+');
+            return currentPosition;
         }
+        return -1;
     }
 
 
-    protected void addDeterminants(String text, HashMap rule, HashMap<String, ArrayList<Span>> matches,
+    protected void addDeterminants(String text, HashMap rule, MatchContext context,
                                    int matchBegin, int matchEnd, int currentPosition) {
-        HashMap<Determinants, Integer> deterRule = (HashMap<Determinants, Integer>) rule.get(END);
+        HashMap<Integer, Integer> deterRule = (HashMap<Integer, Integer>) rule.get(END);
         int end = matchEnd == -1 ? currentPosition : matchEnd;
         if (matchBegin > end) {
             StringBuilder sb = new StringBuilder();
@@ -520,74 +1152,213 @@ public class FastCRule extends FastRuleWG {
                 sb.append(getRule(rulePos).toString());
                 sb.append("\n");
             }
-            logger.warning("Rule definition error ----matched begin > matched end\n" +
-                    "check the following rules: \n" + sb.toString());
-            int snippetBegin = matchBegin - 100;
-            snippetBegin = snippetBegin < 0 ? 0 : snippetBegin;
-            int snippetEnd = end + 100;
-            snippetEnd = snippetEnd > text.length() ? text.length() : snippetEnd;
-            logger.warning("try to match span: " + text.substring(snippetBegin, end) + "<*>"
-                    + text.substring(end, matchBegin) + "<*>" + text.substring(matchBegin, snippetEnd));
+            logMatchError(text, sb.toString(), matchBegin, end);
             return;
 
         }
-        Span currentSpan = new Span(matchBegin + offset, end + offset, text.substring(matchBegin, end));
+//      the matched text is only read from the text for the spans that are returned (see collectMatches)
+        Span currentSpan = new Span(matchBegin + context.offset, end + context.offset);
         if (logger.isLoggable(Level.FINEST))
-            logger.finest("Try to addDeterminants: " + currentSpan.begin + ", " + currentSpan.end + "\t" + currentSpan.text);
-
-        for (Object key : deterRule.keySet()) {
-            ArrayList<Span> currentSpanList = new ArrayList<>();
-            int rulePos = deterRule.get(key);
-            double score = getScore(rulePos);
-            currentSpan.ruleId = rulePos;
-            currentSpan.score = score;
-            if (logger.isLoggable(Level.FINEST))
-                logger.finest("\t\tRule Id: " + rulePos + "\t" + key + "\t" + getRule(rulePos).type + "\t" + getRuleString(rulePos));
+            logger.finest("Try to addDeterminants: " + currentSpan.begin + ", " + currentSpan.end + "\t" + text.substring(matchBegin, end));
+
+        for (Map.Entry<Integer, Integer> deter : deterRule.entrySet()) {
+            addDeterminant(text, currentSpan, deter.getKey(), deter.getValue(), context);
+        }
+    }
+
+    protected void addCompiledDeterminants(String text, int node, MatchContext context,
+                                           int matchBegin, int matchEnd, int currentPosition) {
+        CompiledTrie trie = compiledTrie;
+        int end = matchEnd == -1 ? currentPosition : matchEnd;
+        if (matchBegin > end) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = trie.endBegin(node); i < trie.endEnd(node); i++) {
+                sb.append(getRule(trie.endRule(i)).toString());
+                sb.append("\n");
+            }
+            logMatchError(text, sb.toString(), matchBegin, end);
+            return;
+        }
+//      the matched text is only read from the text for the spans that are returned (see collectMatches)
+        Span currentSpan = new Span(matchBegin + context.offset, end + context.offset);
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("Try to addDeterminants: " + currentSpan.begin + ", " + currentSpan.end + "\t" + text.substring(matchBegin, end));
+        for (int i = trie.endBegin(node); i < trie.endEnd(node); i++) {
+            if (!isRemoved(trie.endRule(i)))
+                addDeterminant(text, currentSpan, trie.endConcept(i), trie.endRule(i), context);
+        }
+    }
+
+    /**
+     * @return true if a literal match of the walked text spans from matchBegin to end
+     */
+    protected boolean endsLiteral(CharMatchStack stack, int matchBegin, int end) {
+        LiteralAutomaton.Hits hits = stack.hits;
+        for (int h = hits.offsets[matchBegin]; h < hits.offsets[matchBegin + 1]; h++) {
+            if (hits.ends[h] == end)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the literal matches that begin at matchBegin and end between minEnd and maxEnd (both inclusive).
+     */
+    protected void addLiteralHits(String text, CharMatchStack stack, MatchContext context, int matchBegin, int minEnd, int maxEnd) {
+        LiteralAutomaton.Hits hits = stack.hits;
+        for (int h = hits.offsets[matchBegin]; h < hits.offsets[matchBegin + 1]; h++) {
+            if (hits.ends[h] >= minEnd && hits.ends[h] <= maxEnd)
+                addLiteralDeterminants(text, stack.automaton, hits.nodes[h], context, matchBegin, hits.ends[h]);
+        }
+    }
+
+    protected void addLiteralDeterminants(String text, LiteralAutomaton automaton, int node, MatchContext context,
+                                          int matchBegin, int end) {
+//      the matched text is only read from the text for the spans that are returned (see collectMatches)
+        Span currentSpan = new Span(matchBegin + context.offset, end + context.offset);
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("Try to addDeterminants: " + currentSpan.begin + ", " + currentSpan.end + "\t" + text.substring(matchBegin, end));
+        for (int i = automaton.endBegin(node); i < automaton.endEnd(node); i++) {
+            if (!isRemoved(automaton.endRule(i)))
+                addDeterminant(text, currentSpan, automaton.endConcept(i), automaton.endRule(i), context);
+        }
+    }
+
+    protected void logMatchError(String text, String rules, int matchBegin, int end) {
+        logger.warning("Rule definition error ----matched begin > matched end\n" +
+                "check the following rules: \n" + rules);
+        int snippetBegin = matchBegin - 100;
+        snippetBegin = snippetBegin < 0 ? 0 : snippetBegin;
+        int snippetEnd = end + 100;
+        snippetEnd = snippetEnd > text.length() ? text.length() : snippetEnd;
+        logger.warning("try to match span: " + text.substring(snippetBegin, end) + "<*>"
+                + text.substring(end, matchBegin) + "<*>" + text.substring(matchBegin, snippetEnd));
+    }
+
+    protected void addDeterminant(String text, Span currentSpan, int conceptId, int rulePos, MatchContext context) {
+        MetricsRegistry metrics = this.metrics;
+        if (metrics != null)
+            metrics.recordMatch(rulePos);
+        if (context.candidates != null) {
+            context.candidates.add(conceptId, currentSpan.begin, currentSpan.end, rulePos);
+            return;
+        }
+        ArrayList<Span> currentSpanList = context.getSpans(conceptId);
+        double score = getScore(rulePos);
+        currentSpan.ruleId = rulePos;
+        currentSpan.score = score;
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("\t\tRule Id: " + rulePos + "\t" + conceptNames.get(conceptId) + "\t" + getRule(rulePos).type + "\t" + getRuleString(rulePos));
 //          If needed, implement your own selection ruleStore and score updating logic below
-            if (matches.containsKey(key)) {
+        IntervalST<Integer> overlapChecker = context.getOverlapChecker(conceptId);
 //              because the ruleStore are all processed at the same time from the input left to the input right,
 //                it becomes more efficient to compare the overlaps
-                currentSpanList = matches.get(key);
-                IntervalST<Integer> overlapChecker = overlapCheckers.get(key);
-                Object overlappedPos = overlapChecker.get(new Interval1D(currentSpan.begin, currentSpan.end - 1));
-                if (overlappedPos != null) {
-                    int pos = (int) overlappedPos;
-                    Span overlappedSpan = currentSpanList.get(pos);
-                    if (logger.isLoggable(Level.FINEST))
-                        logger.finest("\t\tOverlapped with: " + overlappedSpan.begin + ", " + overlappedSpan.end + "\t" +
-                                text.substring(overlappedSpan.begin - offset, overlappedSpan.end - offset));
-                    if (!compareSpan(currentSpan, overlappedSpan)) {
-                        if (logger.isLoggable(Level.FINEST))
-                            logger.finest("\t\tSkip this span ...");
-                        continue;
-                    }
-                    currentSpanList.set(pos, currentSpan);
-                    overlapChecker.remove(new Interval1D(overlappedSpan.begin, overlappedSpan.end - 1));
-                    overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), pos);
-                } else {
-                    overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), currentSpanList.size());
-                    currentSpanList.add(currentSpan);
-                }
-            } else {
-                currentSpanList.add(currentSpan);
-                matches.put((String) key, currentSpanList);
-                IntervalST<Integer> overlapChecker = new IntervalST<Integer>();
-                overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), 0);
-                overlapCheckers.put((String) key, overlapChecker);
+        Object overlappedPos = currentSpanList.isEmpty() ? null : overlapChecker.get(new Interval1D(currentSpan.begin, currentSpan.end - 1));
+        if (overlappedPos != null) {
+            int pos = (int) overlappedPos;
+            Span overlappedSpan = currentSpanList.get(pos);
+            if (logger.isLoggable(Level.FINEST))
+                logger.finest("\t\tOverlapped with: " + overlappedSpan.begin + ", " + overlappedSpan.end);
+            if (!compareSpan(currentSpan, overlappedSpan)) {
+                if (logger.isLoggable(Level.FINEST))
+                    logger.finest("\t\tSkip this span ...");
+                if (metrics != null)
+                    metrics.recordOverlap(overlappedSpan.ruleId, rulePos);
+                return;
+            }
+            if (metrics != null)
+                metrics.recordOverlap(rulePos, overlappedSpan.ruleId);
+            keepText(text, currentSpan, context);
+            currentSpanList.set(pos, currentSpan);
+            overlapChecker.remove(new Interval1D(overlappedSpan.begin, overlappedSpan.end - 1));
+            overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), pos);
+        } else {
+            keepText(text, currentSpan, context);
+            overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), currentSpanList.size());
+            currentSpanList.add(currentSpan);
+        }
+    }
+
+    /**
+     * The streaming processReader does not keep the whole text, so the matched text of a kept span is read from the
+     * current chunk right away. Otherwise, it is read from context.text when the matches are collected.
+     */
+    protected void keepText(String text, Span span, MatchContext context) {
+        if (context.text == null && (span.text == null || span.text.isEmpty()) && context.spanText)
+            span.text = text.substring(span.begin - context.offset, span.end - context.offset);
+    }
+
+    /**
+     * The choice of addDeterminant (see compareSpan), without creating the spans.
+     */
+    public boolean preferMatch(int ruleId, int begin, int end, int keptRuleId, int keptBegin, int keptEnd) {
+        double score = getScore(ruleId), keptScore = getScore(keptRuleId);
+        int width = end - begin, keptWidth = keptEnd - keptBegin;
+        switch (method) {
+            case "score":
+                if (score < 0)
+                    return true;
+                if (keptScore < 0)
+                    return false;
+                return score > keptScore;
+            case "scorewidth":
+                if (score < 0)
+                    return true;
+                if (keptScore < 0)
+                    return false;
+                return score > keptScore || (score >= keptScore && width > keptWidth);
+            case "widthscore":
+                return width > keptWidth || (width == keptWidth && score > keptScore);
+            default:
+                return width > keptWidth;
+        }
+    }
+
+    protected Span newSpan(MatchContext context, int begin, int end, int ruleId) {
+        Span span = new Span(begin, end);
+        span.ruleId = ruleId;
+        span.score = getScore(ruleId);
+        return span;
+    }
+
+    /**
+     * Read the matched texts of the returned spans from the processed text, unless the context does not need them
+     * (see MatchContext.spanText).
+     */
+    protected HashMap<String, ArrayList<Span>> collectMatches(MatchContext context) {
+        HashMap<String, ArrayList<Span>> matches = super.collectMatches(context);
+        String text = context.text;
+        if (text == null || !context.spanText)
+            return matches;
+        int offset = context.offset;
+        for (ArrayList<Span> spans : matches.values()) {
+            for (Span span : spans) {
+                if (span.text == null || span.text.isEmpty())
+                    span.text = text.substring(span.begin - offset, span.end - offset);
             }
         }
+        return matches;
+    }
+
+    /**
+     * Rule keys are chars, use them as the keys of the compiled trie directly.
+     */
+    protected int encodeKey(Object key) {
+        return (Character) key;
     }
 
     public double getScore(Span span) {
-        return scores.get(span.ruleId);
+        return ruleScores[span.ruleId];
     }
 
     public double getScore(int ruleId) {
-        return scores.get(ruleId);
+        return ruleScores[ruleId];
     }
 
     public void setScore(int ruleId, double score) {
-        scores.put(ruleId, score);
+        if (ruleId >= ruleScores.length)
+            ruleScores = Arrays.copyOf(ruleScores, ruleId + 1);
+        ruleScores[ruleId] = score;
     }
 
     /**
@@ -600,10 +1371,18 @@ public class FastCRule extends FastRuleWG {
         this.supportReplications = support;
     }
 
+    public boolean getReplicationSupport() {
+        return supportReplications;
+    }
+
     public void setCompareMethod(String method) {
         this.method = method;
     }
 
+    public String getCompareMethod() {
+        return method;
+    }
+
     protected boolean compareScoreOnly(Span a, Span b) {
         if (getScore(a) < 0)
             return true;
@@ -659,8 +1438,16 @@ public class FastCRule extends FastRuleWG {
         this.scSupport = scSupport;
     }
 
+    public boolean getSpecialCharacterSupport() {
+        return scSupport;
+    }
+
     public void setMaxRepeatLength(int maxRepeatLength) {
         this.maxRepeatLength = maxRepeatLength;
     }
 
+    public int getMaxRepeatLength() {
+        return maxRepeatLength;
+    }
+
 }
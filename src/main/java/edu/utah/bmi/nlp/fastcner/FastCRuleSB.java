@@ -20,7 +20,6 @@ import edu.utah.bmi.nlp.core.NERRule;
 import edu.utah.bmi.nlp.core.Rule;
 import edu.utah.bmi.nlp.fastner.FastRuleFactory;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -51,30 +50,33 @@ public class FastCRuleSB extends FastCRule {
     }
 
     public void initiate(HashMap<Integer, Rule> ruleStore) {
+        rulesMap.clear();
+        compiledTrie = null;
+        startIndex = null;
+        literalAutomaton = useLiteralAutomaton ? new LiteralAutomaton() : null;
         this.ruleStore = ruleStore;
+        indexRules();
         for (Map.Entry<Integer, Rule> ent : ruleStore.entrySet()) {
             addSBRule(ent.getValue());
         }
+        if (literalAutomaton != null)
+            literalAutomaton.build();
+        if (compiled)
+            compile();
     }
 
     public FastCRuleSB(HashMap<Integer, Rule> ruleStore) {
         method = "scorewidth";
 //        initiate(ruleStore);
         this.ruleStore = ruleStore;
+        indexRules();
         for (Map.Entry<Integer, Rule> ent : ruleStore.entrySet()) {
             addSBRule(ent.getValue());
         }
     }
 
     public boolean addSBRule(Rule rule) {
-        if (rule.rule.indexOf("[") != -1) {
-            ArrayList<Rule> rules = expandSB(rule);
-            for (Rule subrule : rules) {
-                addRule(subrule);
-            }
-        } else {
-            addRule(rule);
-        }
+        putRule(rule);
         return true;
     }
 
@@ -86,10 +88,10 @@ public class FastCRuleSB extends FastCRule {
         HashMap ruleMap2 = new HashMap();
         if (i == crule.length) {
             if (parentMap.containsKey(END)) {
-                ((HashMap) parentMap.get(END)).put(rule.ruleName, rule.id);
+                ((HashMap) parentMap.get(END)).put(ruleConcepts[rule.id], rule.id);
             } else {
                 HashMap ruleMap1 = new HashMap();
-                ruleMap1.put(rule.ruleName, rule.id);
+                ruleMap1.put(ruleConcepts[rule.id], rule.id);
                 ruleMap2.put(END, ruleMap1.clone());
             }
             setScore(rule.id, rule.score);
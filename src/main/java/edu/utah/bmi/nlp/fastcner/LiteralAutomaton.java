@@ -0,0 +1,277 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastcner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An Aho-Corasick automaton of the literal character rules (rules without wildcards, groups or replications).
+ * <p>
+ * Instead of restarting a trie walk at every character offset, the automaton consumes each character once and follows
+ * the failure links, so that all the literal matches are found in O(n + number of matches).
+ * Rules are added through addRule, then build() freezes the automaton into arrays.
+ *
+ * @author Jianlin Shi
+ */
+public class LiteralAutomaton {
+    public static final int ROOT = 0, NONE = -1;
+    protected static final int LINEAR_SCAN_LIMIT = 8;
+
+    //  building stage
+    protected ArrayList<HashMap<Character, Integer>> children = new ArrayList<>();
+    protected ArrayList<HashMap<Integer, Integer>> determinants = new ArrayList<>();
+    protected ArrayList<Integer> depths = new ArrayList<>();
+
+    //  frozen stage
+    protected int[] childOffsets, childKeys, childNodes;
+    protected int[] fail, outputLink, depth;
+    protected int[] endOffsets, endConcepts, endRules;
+    protected boolean built = false;
+
+    public LiteralAutomaton() {
+        newNode(0);
+    }
+
+    /**
+     * @param rule a rule string
+     * @return true if the rule can be matched literally: no wildcards, groups, replications or square brackets
+     */
+    public static boolean isLiteral(String rule) {
+        for (int i = 0; i < rule.length(); i++) {
+            switch (rule.charAt(i)) {
+                case '\\':
+                case '(':
+                case ')':
+                case '+':
+                case '[':
+                case ']':
+                    return false;
+            }
+        }
+        return rule.length() > 0;
+    }
+
+    /**
+     * Add a literal rule.
+     *
+     * @param rule      literal rule string
+     * @param conceptId the concept id (determinant)
+     * @param ruleId    rule id in the ruleStore
+     */
+    public void addRule(String rule, int conceptId, int ruleId) {
+        if (built)
+            throw new IllegalStateException("Rules cannot be added after the automaton is built.");
+        int node = ROOT;
+        for (int i = 0; i < rule.length(); i++) {
+            char ch = rule.charAt(i);
+            Integer next = children.get(node).get(ch);
+            if (next == null) {
+                next = newNode(i + 1);
+                children.get(node).put(ch, next);
+            }
+            node = next;
+        }
+//      same initial capacity as the cloned END maps of the rule trie, so that the determinants iterate in the same order
+        if (determinants.get(node) == null)
+            determinants.set(node, new HashMap<>(2));
+        determinants.get(node).put(conceptId, ruleId);
+    }
+
+    protected int newNode(int nodeDepth) {
+        children.add(new HashMap<>());
+        determinants.add(null);
+        depths.add(nodeDepth);
+        return children.size() - 1;
+    }
+
+    /**
+     * Freeze the added rules into arrays and compute the failure links.
+     */
+    public void build() {
+        int nodeCount = children.size();
+        int totalChildren = 0, totalEnds = 0;
+        for (int n = 0; n < nodeCount; n++) {
+            totalChildren += children.get(n).size();
+            if (determinants.get(n) != null)
+                totalEnds += determinants.get(n).size();
+        }
+        childOffsets = new int[nodeCount + 1];
+        childKeys = new int[totalChildren];
+        childNodes = new int[totalChildren];
+        endOffsets = new int[nodeCount + 1];
+        endRules = new int[totalEnds];
+        endConcepts = new int[totalEnds];
+        depth = new int[nodeCount];
+        int c = 0, e = 0;
+        for (int n = 0; n < nodeCount; n++) {
+            childOffsets[n] = c;
+            endOffsets[n] = e;
+            depth[n] = depths.get(n);
+            long[] packed = new long[children.get(n).size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> ent : children.get(n).entrySet()) {
+                packed[i++] = ((long) ent.getKey() << 32) | ent.getValue();
+            }
+            Arrays.sort(packed);
+            for (long p : packed) {
+                childKeys[c] = (int) (p >>> 32);
+                childNodes[c] = (int) p;
+                c++;
+            }
+            if (determinants.get(n) != null) {
+                for (Map.Entry<Integer, Integer> ent : determinants.get(n).entrySet()) {
+                    endConcepts[e] = ent.getKey();
+                    endRules[e] = ent.getValue();
+                    e++;
+                }
+            }
+        }
+        childOffsets[nodeCount] = c;
+        endOffsets[nodeCount] = e;
+
+//      breadth first, so that the failure link of a node's parent is always ready
+        fail = new int[nodeCount];
+        outputLink = new int[nodeCount];
+        fail[ROOT] = ROOT;
+        outputLink[ROOT] = NONE;
+        int[] queue = new int[nodeCount];
+        int head = 0, tail = 0;
+        for (int i = childOffsets[ROOT]; i < childOffsets[ROOT + 1]; i++) {
+            int child = childNodes[i];
+            fail[child] = ROOT;
+            outputLink[child] = NONE;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int i = childOffsets[node]; i < childOffsets[node + 1]; i++) {
+                int key = childKeys[i], child = childNodes[i];
+                int state = fail[node];
+                int next;
+                while ((next = child(state, key)) == NONE && state != ROOT)
+                    state = fail[state];
+                fail[child] = next == NONE ? ROOT : next;
+//              the nearest node along the failure chain that has determinants
+                int f = fail[child];
+                outputLink[child] = hasEnd(f) ? f : outputLink[f];
+                queue[tail++] = child;
+            }
+        }
+        children = null;
+        determinants = null;
+        depths = null;
+        built = true;
+    }
+
+    public int child(int node, int key) {
+        int from = childOffsets[node], to = childOffsets[node + 1];
+        if (to - from <= LINEAR_SCAN_LIMIT) {
+            for (int i = from; i < to; i++) {
+                if (childKeys[i] == key)
+                    return childNodes[i];
+            }
+            return NONE;
+        }
+        int pos = Arrays.binarySearch(childKeys, from, to, key);
+        return pos < 0 ? NONE : childNodes[pos];
+    }
+
+    public boolean hasEnd(int node) {
+        return endOffsets[node] != endOffsets[node + 1];
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public boolean isEmpty() {
+        return childOffsets[ROOT] == childOffsets[ROOT + 1];
+    }
+
+    public int endBegin(int node) {
+        return endOffsets[node];
+    }
+
+    public int endEnd(int node) {
+        return endOffsets[node + 1];
+    }
+
+    public int endConcept(int pos) {
+        return endConcepts[pos];
+    }
+
+    public int endRule(int pos) {
+        return endRules[pos];
+    }
+
+    /**
+     * Find all the literal matches in one pass.
+     *
+     * @param textChars input characters
+     * @return the matches grouped by their begin positions, ordered by their ends within a same begin
+     */
+    public Hits match(char[] textChars) {
+        int length = textChars.length;
+        int[] hitEnds = new int[16], hitNodes = new int[16], hitBegins = new int[16];
+        int count = 0;
+        int state = ROOT;
+        for (int p = 0; p < length; p++) {
+            int key = textChars[p];
+            int next;
+            while ((next = child(state, key)) == NONE && state != ROOT)
+                state = fail[state];
+            state = next == NONE ? ROOT : next;
+            for (int out = hasEnd(state) ? state : outputLink[state]; out > ROOT; out = outputLink[out]) {
+                if (count == hitEnds.length) {
+                    hitEnds = Arrays.copyOf(hitEnds, count * 2);
+                    hitNodes = Arrays.copyOf(hitNodes, count * 2);
+                    hitBegins = Arrays.copyOf(hitBegins, count * 2);
+                }
+                hitBegins[count] = p + 1 - depth[out];
+                hitEnds[count] = p + 1;
+                hitNodes[count] = out;
+                count++;
+            }
+        }
+//      counting sort by begin, stable, so that the ends stay in ascending order within a same begin
+        Hits hits = new Hits();
+        hits.offsets = new int[length + 1];
+        for (int i = 0; i < count; i++)
+            hits.offsets[hitBegins[i] + 1]++;
+        for (int i = 1; i <= length; i++)
+            hits.offsets[i] += hits.offsets[i - 1];
+        hits.ends = new int[count];
+        hits.nodes = new int[count];
+        int[] cursor = Arrays.copyOf(hits.offsets, length);
+        for (int i = 0; i < count; i++) {
+            int pos = cursor[hitBegins[i]]++;
+            hits.ends[pos] = hitEnds[i];
+            hits.nodes[pos] = hitNodes[i];
+        }
+        return hits;
+    }
+
+    /**
+     * Literal matches of a text: the matches that begin at position i are stored between offsets[i] and offsets[i+1]
+     * of ends/nodes.
+     */
+    public static class Hits {
+        public int[] offsets, ends, nodes;
+    }
+}
@@ -17,6 +17,8 @@ package edu.utah.bmi.nlp.fastcner.uima;
 
 import edu.utah.bmi.nlp.core.*;
 import edu.utah.bmi.nlp.fastcner.FastCNER;
+import edu.utah.bmi.nlp.fastner.MatchContext;
+import edu.utah.bmi.nlp.fastner.RuleSnapshot;
 import edu.utah.bmi.nlp.fastner.uima.FastNER_AE_General;
 import edu.utah.bmi.nlp.uima.ae.RuleBasedAEInf;
 import org.apache.uima.UimaContext;
@@ -45,9 +47,17 @@ public class FastCNER_AE_General extends FastNER_AE_General {
 
     protected int maxRepeatLength;
 
+    public static final String PARAM_LITERAL_AUTOMATON = "LiteralAutomaton";
+    protected boolean literalAutomaton;
+
+    //  the annotations are created from the offsets of the matches, so the matched texts are not read
+    protected MatchContext context;
+
 
     public void initialize(UimaContext cont) {
         super.initialize(cont);
+        context = new MatchContext();
+        context.spanText = false;
 
     }
 
@@ -64,15 +74,27 @@ public class FastCNER_AE_General extends FastNER_AE_General {
             maxRepeatLength = 50;
         else
             maxRepeatLength = (int) obj;
-        fastNER = new FastCNER(ruleStr);
+        obj = cont.getConfigParameterValue(PARAM_LITERAL_AUTOMATON);
+        literalAutomaton = obj != null && (Boolean) obj;
+        if (mapRuleSnapshot && RuleSnapshot.isSnapshot(ruleStr)) {
+            LinkedHashMap<String, TypeDefinition> typeDefinition = new LinkedHashMap<>();
+            fastNER = new FastCNER(loadMappedSnapshot(ruleStr, typeDefinition, true), typeDefinition);
+        } else {
+            fastNER = new FastCNER(ruleStr);
+        }
         ((FastCNER) fastNER).setReplicationSupport(replicationSupport);
         ((FastCNER) fastNER).setMaxRepeatLength(maxRepeatLength);
+        if (literalAutomaton)
+            ((FastCNER) fastNER).setLiteralAutomaton(true);
         if (markPseudo)
             fastNER.setRemovePseudo(false);
+        if (compileRules)
+            fastNER.setCompiled(true);
         return fastNER.getTypeDefinitions();
     }
 
     public void process(JCas jcas) throws AnalysisEngineProcessException {
+        long start = metrics == null ? 0 : System.nanoTime();
         IntervalST<String> sectionTree = new IntervalST<>();
         int totalSections = 0;
         if (assignSection || forceAssignSections)
@@ -108,7 +130,7 @@ public class FastCNER_AE_General extends FastNER_AE_General {
                 }
 
                 for (Annotation sentence : sentences.get(sectionName)) {
-                    HashMap<String, ArrayList<Span>> concepts = ((FastCNER) fastNER).processAnnotation(sentence);
+                    HashMap<String, ArrayList<Span>> concepts = ((FastCNER) fastNER).processAnnotation(sentence, context);
 //              store found concepts in annotation
                     if (concepts.size() > 0) {
                         if (outsiders)
@@ -132,13 +154,15 @@ public class FastCNER_AE_General extends FastNER_AE_General {
                 for (Span token : sentence) {
                     saveConcept(jcas, "Token", token.begin, token.end, null);
                 }
-                HashMap<String, ArrayList<Span>> concepts = ((FastCNER) fastNER).processSpan(sentenceSpan);
+                HashMap<String, ArrayList<Span>> concepts = ((FastCNER) fastNER).processSpan(sentenceSpan, context);
 //              store found concepts in annotation
                 if (concepts.size() > 0) {
                     saveConcepts(jcas, concepts, null);
                 }
             }
         }
+        if (metrics != null)
+            recordDocument(jcas, start);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * A frozen, array-based copy of the chained-up HashMaps rulesMap.
+ * <p>
+ * Nodes are numbered breadth first, starting from the root (0). The children of node n are stored between
+ * childOffsets[n] and childOffsets[n+1] of childKeys/childNodes, sorted by key, so that a child can be found without
+ * hashing. Keys are ints: chars for character-based rules, interned token ids for token-based rules.
+ * childRanks keeps the position of each child in the iteration order of its HashMap node, which the key order loses.
+ * The determinants (the END map) of node n are stored between endOffsets[n] and endOffsets[n+1] of
+ * endConcepts/endRules as concept ids, which are the indices of conceptNames.
+ *
+ * @author Jianlin Shi
+ */
+public class CompiledTrie {
+    public static final int ROOT = 0, NONE = -1;
+    //  small fan-outs are faster to scan than to binary search
+    protected static final int LINEAR_SCAN_LIMIT = 8;
+
+    protected int[] childOffsets, childKeys, childNodes, childRanks;
+    protected int[] endOffsets, endConcepts, endRules;
+    protected String[] conceptNames;
+
+    public CompiledTrie(int[] childOffsets, int[] childKeys, int[] childNodes, int[] childRanks,
+                        int[] endOffsets, int[] endConcepts, int[] endRules, String[] conceptNames) {
+        this.childOffsets = childOffsets;
+        this.childKeys = childKeys;
+        this.childNodes = childNodes;
+        this.childRanks = childRanks;
+        this.endOffsets = endOffsets;
+        this.endConcepts = endConcepts;
+        this.endRules = endRules;
+        this.conceptNames = conceptNames;
+    }
+
+    /**
+     * Freeze a chained-up HashMaps rulesMap, whose END maps are keyed by concept names, into arrays.
+     *
+     * @param rulesMap   the root of the HashMap chain
+     * @param keyEncoder converts a HashMap key (a String token or a Character) into a non-negative int
+     * @return the compiled trie
+     */
+    public static CompiledTrie compile(HashMap rulesMap, ToIntFunction<Object> keyEncoder) {
+        return compile(rulesMap, keyEncoder, null);
+    }
+
+    /**
+     * Freeze a chained-up HashMaps rulesMap into arrays.
+     *
+     * @param rulesMap     the root of the HashMap chain
+     * @param keyEncoder   converts a HashMap key (a String token or a Character) into a non-negative int
+     * @param conceptNames if not null, the keys of the END maps are concept ids (the indices of conceptNames);
+     *                     otherwise, the keys are concept names, which will be interned
+     * @return the compiled trie
+     */
+    @SuppressWarnings("unchecked")
+    public static CompiledTrie compile(HashMap rulesMap, ToIntFunction<Object> keyEncoder, List<String> conceptNames) {
+        ArrayList<HashMap> nodes = new ArrayList<>();
+//      identity, not equality: different branches may hold equal sub-maps that are not the same node
+        IdentityHashMap<HashMap, Integer> nodeIds = new IdentityHashMap<>();
+        nodes.add(rulesMap);
+        nodeIds.put(rulesMap, ROOT);
+        int totalChildren = 0, totalEnds = 0;
+        for (int n = 0; n < nodes.size(); n++) {
+            for (Map.Entry<Object, Object> ent : ((HashMap<Object, Object>) nodes.get(n)).entrySet()) {
+                if (ent.getKey() == Determinants.END) {
+                    totalEnds += ((HashMap) ent.getValue()).size();
+                    continue;
+                }
+                HashMap child = (HashMap) ent.getValue();
+                if (!nodeIds.containsKey(child)) {
+                    nodeIds.put(child, nodes.size());
+                    nodes.add(child);
+                }
+                totalChildren++;
+            }
+        }
+        int nodeCount = nodes.size();
+        int[] childOffsets = new int[nodeCount + 1], childKeys = new int[totalChildren], childNodes = new int[totalChildren];
+        int[] childRanks = new int[totalChildren];
+        int[] endOffsets = new int[nodeCount + 1], endConcepts = new int[totalEnds], endRules = new int[totalEnds];
+        LinkedHashMap<String, Integer> conceptIds = new LinkedHashMap<>();
+        int c = 0, e = 0;
+        for (int n = 0; n < nodeCount; n++) {
+            childOffsets[n] = c;
+            endOffsets[n] = e;
+            HashMap<Object, Object> node = nodes.get(n);
+            long[] packed = new long[node.size()];
+            int[] children = new int[node.size()];
+            int fanout = 0;
+            for (Map.Entry<Object, Object> ent : node.entrySet()) {
+                if (ent.getKey() == Determinants.END) {
+                    for (Map.Entry<Object, Integer> deter : ((HashMap<Object, Integer>) ent.getValue()).entrySet()) {
+                        Integer conceptId = conceptNames != null ? (Integer) deter.getKey() : conceptIds.get(deter.getKey());
+                        if (conceptId == null) {
+                            conceptId = conceptIds.size();
+                            conceptIds.put((String) deter.getKey(), conceptId);
+                        }
+                        endConcepts[e] = conceptId;
+                        endRules[e] = deter.getValue();
+                        e++;
+                    }
+                } else {
+                    long key = keyEncoder.applyAsInt(ent.getKey());
+                    children[fanout] = nodeIds.get(ent.getValue());
+                    packed[fanout] = (key << 32) | fanout;
+                    fanout++;
+                }
+            }
+//          keys are non-negative, so sorting the packed longs sorts by key
+            Arrays.sort(packed, 0, fanout);
+            for (int i = 0; i < fanout; i++) {
+                childKeys[c] = (int) (packed[i] >>> 32);
+                childRanks[c] = (int) packed[i];
+                childNodes[c] = children[childRanks[c]];
+                c++;
+            }
+        }
+        childOffsets[nodeCount] = c;
+        endOffsets[nodeCount] = e;
+        return new CompiledTrie(childOffsets, childKeys, childNodes, childRanks, endOffsets, endConcepts, endRules,
+                (conceptNames != null ? conceptNames : conceptIds.keySet()).toArray(new String[0]));
+    }
+
+    /**
+     * @param node parent node
+     * @param key  encoded key
+     * @return the child node under the key, or NONE
+     */
+    public int child(int node, int key) {
+        int from = childOffsets[node], to = childOffsets[node + 1];
+        if (to - from <= LINEAR_SCAN_LIMIT) {
+            for (int i = from; i < to; i++) {
+                if (childKeys[i] == key)
+                    return childNodes[i];
+            }
+            return NONE;
+        }
+        int pos = Arrays.binarySearch(childKeys, from, to, key);
+        return pos < 0 ? NONE : childNodes[pos];
+    }
+
+    public int childBegin(int node) {
+        return childOffsets[node];
+    }
+
+    public int childEnd(int node) {
+        return childOffsets[node + 1];
+    }
+
+    public int childKey(int pos) {
+        return childKeys[pos];
+    }
+
+    public int childNode(int pos) {
+        return childNodes[pos];
+    }
+
+    /**
+     * @param pos position of a child (between childBegin and childEnd of its parent)
+     * @return the position of the child in the iteration order of the HashMap node it was compiled from
+     */
+    public int childRank(int pos) {
+        return childRanks[pos];
+    }
+
+    public boolean hasEnd(int node) {
+        return endOffsets[node] != endOffsets[node + 1];
+    }
+
+    public int endBegin(int node) {
+        return endOffsets[node];
+    }
+
+    public int endEnd(int node) {
+        return endOffsets[node + 1];
+    }
+
+    public int endConcept(int pos) {
+        return endConcepts[pos];
+    }
+
+    public int endRule(int pos) {
+        return endRules[pos];
+    }
+
+    public String getConceptName(int conceptId) {
+        return conceptNames[conceptId];
+    }
+
+    public int getNodeCount() {
+        return childOffsets.length - 1;
+    }
+
+}
@@ -22,9 +22,16 @@ import edu.utah.bmi.nlp.core.Span;
 import edu.utah.bmi.nlp.core.TypeDefinition;
 import org.apache.uima.jcas.tcas.Annotation;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static edu.utah.bmi.nlp.core.NERSpan.byRuleLength;
 import static edu.utah.bmi.nlp.core.NERSpan.scorewidth;
@@ -37,9 +44,12 @@ import static edu.utah.bmi.nlp.core.NERSpan.scorewidth;
  * @author Jianlin Shi
  */
 public class FastNER {
-    public FastRule fastRule;
+    //  replaced as a whole by updateRules, so that a processing call keeps the version of the rules it started with
+    public volatile FastRule fastRule;
     protected boolean caseSenstive = false;
     protected LinkedHashMap<String, TypeDefinition> typeDefinition = new LinkedHashMap<>();
+    //  used by the batch methods, ForkJoinPool.commonPool() if not set
+    protected ExecutorService executorService = null;
 
     protected FastNER() {
     }
@@ -59,17 +69,26 @@ public class FastNER {
         initiate(ruleFile, caseSenstive, constructRuleMap);
     }
 
+    /**
+     * Wrap a FastRule that has been built elsewhere, e.g. loaded by RuleSnapshot.load
+     *
+     * @param fastRule       the FastRule
+     * @param typeDefinition type definitions of the concepts
+     */
+    public FastNER(FastRule fastRule, LinkedHashMap<String, TypeDefinition> typeDefinition) {
+        this.fastRule = fastRule;
+        this.typeDefinition = typeDefinition;
+    }
+
 
     public void setCompareMethod(String method) {
-        if (this.fastRule instanceof FastRuleWOG) {
-            ((FastRuleWOG) fastRule).setCompareMethod(method);
-        }
+        if (this.fastRule instanceof FastRuleWOG)
+            updateSettings((version) -> ((FastRuleWOG) version).setCompareMethod(method));
     }
 
     public void setWidthCompareMethod(String widthCompareMethod) {
-        if (this.fastRule instanceof FastRuleWOG) {
-            ((FastRuleWOG) fastRule).setWidthCompareMethod(widthCompareMethod);
-        }
+        if (this.fastRule instanceof FastRuleWOG)
+            updateSettings((version) -> ((FastRuleWOG) version).setWidthCompareMethod(widthCompareMethod));
     }
 
     /**
@@ -83,6 +102,7 @@ public class FastNER {
     }
 
     protected void initiate(String ruleStr, boolean caseSenstive, boolean constructRuleMap) {
+        this.caseSenstive = caseSenstive;
         typeDefinition = new LinkedHashMap<>();
         fastRule = FastRuleFactory.createFastRule(ruleStr, typeDefinition, caseSenstive, constructRuleMap);
     }
@@ -95,10 +115,148 @@ public class FastNER {
         return fastRule.processSpans(tokens);
     }
 
+    /**
+     * Process tokens stored in parallel arrays (token strings, begin offsets and end offsets).
+     *
+     * @param texts  token strings
+     * @param begins begin offsets of the tokens
+     * @param ends   end offsets of the tokens
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processTokenArrays(String[] texts, int[] begins, int[] ends) {
+        return ((FastRuleWOG) fastRule).processTokens(texts, begins, ends);
+    }
+
+    /**
+     * Process a contiguous range of tokens stored in parallel arrays (e.g. the tokens of a sentence, in the tokens of
+     * a document), so that the token strings do not need to be copied per sentence.
+     *
+     * @param texts  token strings
+     * @param begins begin offsets of the tokens
+     * @param ends   end offsets of the tokens
+     * @param from   the first token of the range
+     * @param to     the end of the range (exclusive)
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processTokenArrays(String[] texts, int[] begins, int[] ends, int from, int to) {
+        return ((FastRuleWOG) fastRule).processTokens(texts, begins, ends, from, to);
+    }
+
+    /**
+     * Process tokens stored in parallel arrays, and pass the matches to a sink, so that no result map is built.
+     *
+     * @param texts   token strings
+     * @param begins  begin offsets of the tokens
+     * @param ends    end offsets of the tokens
+     * @param context a MatchContext that can be reused by the following calls of the same thread
+     * @param sink    receives the matches
+     */
+    public void processTokenArrays(String[] texts, int[] begins, int[] ends, MatchContext context, MatchSink sink) {
+        ((FastRuleWOG) fastRule).processTokens(texts, begins, ends, context, sink);
+    }
+
+    /**
+     * Process tokens stored in parallel arrays through a reusable context. With a pooled context (e.g.
+     * MatchContext.forThread()), the matches are kept in arrays that are reused by the following calls, and only
+     * the returned Spans are created.
+     *
+     * @param texts   token strings
+     * @param begins  begin offsets of the tokens
+     * @param ends    end offsets of the tokens
+     * @param context a MatchContext that can be reused by the following calls of the same thread
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processTokenArrays(String[] texts, int[] begins, int[] ends, MatchContext context) {
+        return ((FastRuleWOG) fastRule).processTokens(texts, begins, ends, context);
+    }
+
+    public HashMap<String, ArrayList<Span>> processString(String text) {
+        return fastRule.processString(text);
+    }
+
+    /**
+     * Process multiple documents in parallel. The rules are shared by all the worker threads.
+     *
+     * @param documents input documents
+     * @return matched results of each document, in the same order as the input
+     */
+    public ArrayList<HashMap<String, ArrayList<Span>>> processDocuments(List<String> documents) {
+        return processInParallel(documents, this::processString);
+    }
+
+    /**
+     * Process multiple token lists (e.g. one per sentence or per document) in parallel.
+     *
+     * @param tokenLists input token lists
+     * @return matched results of each token list, in the same order as the input
+     */
+    public ArrayList<HashMap<String, ArrayList<Span>>> processSpanLists(List<ArrayList<Span>> tokenLists) {
+        return processInParallel(tokenLists, this::processSpanList);
+    }
+
+    protected <T> ArrayList<HashMap<String, ArrayList<Span>>> processInParallel(List<T> inputs,
+                                                                                  Function<T, HashMap<String, ArrayList<Span>>> processor) {
+        ExecutorService executor = executorService == null ? ForkJoinPool.commonPool() : executorService;
+        ArrayList<Future<HashMap<String, ArrayList<Span>>>> futures = new ArrayList<>(inputs.size());
+        for (T input : inputs) {
+            futures.add(executor.submit(() -> processor.apply(input)));
+        }
+        ArrayList<HashMap<String, ArrayList<Span>>> results = new ArrayList<>(inputs.size());
+        try {
+            for (Future<HashMap<String, ArrayList<Span>>> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach((future) -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            futures.forEach((future) -> future.cancel(true));
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * @param executorService the executor used by the batch methods (processDocuments, processSpanLists).
+     *                        If null, ForkJoinPool.commonPool() will be used.
+     *                        The executor is not shut down by FastNER.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * @return true if the token texts are matched as they are; false if the tokens need to be lowercased
+     */
+    public boolean isCaseSensitive() {
+        return caseSenstive;
+    }
+
+    /**
+     * Let the token rules fold the case of the input tokens while matching, instead of lowercasing a copy of each token
+     * (see processAnnotationList). The rules need to be lowercased, i.e. built with caseSensitive=false.
+     *
+     * @param caseFolding true: match the tokens case-insensitively
+     */
+    public void setCaseFolding(boolean caseFolding) {
+        if (fastRule instanceof FastRuleWOG)
+            updateSettings((version) -> ((FastRuleWOG) version).setCaseFolding(caseFolding));
+    }
+
+    /**
+     * @return true if the rules match the tokens case-insensitively, so that the tokens do not need to be lowercased
+     */
+    public boolean isCaseFolding() {
+        FastRule fastRule = this.fastRule;
+        return fastRule instanceof FastRuleWOG && ((FastRuleWOG) fastRule).isCaseFolding();
+    }
+
     public HashMap<String, ArrayList<Span>> processAnnotationList(ArrayList<Annotation> tokens) {
         ArrayList<Span> spans = new ArrayList<Span>();
+        boolean caseFolding = isCaseFolding();
         for (Annotation token : tokens) {
-            if (caseSenstive)
+            if (caseSenstive || caseFolding)
                 spans.add(new Span(token.getBegin(), token.getEnd(), token.getCoveredText()));
             else
                 spans.add(new Span(token.getBegin(), token.getEnd(), token.getCoveredText().toLowerCase()));
@@ -114,6 +272,60 @@ public class FastNER {
         return getMatchedNEName(matchedSpan.ruleId);
     }
 
+    /**
+     * @param conceptId a concept id passed to a MatchSink
+     * @return the concept name
+     */
+    public String getConceptName(int conceptId) {
+        return fastRule.getConceptName(conceptId);
+    }
+
+    /**
+     * Add, replace or remove rules while the rules are in use. A new version of the rules is built from the current
+     * one (see FastRule.updateRules), and swapped in after it is complete: the calls in progress finish with the old
+     * version, the following calls use the new one. Concept ids are kept across versions (a new concept gets a new id).
+     * <p>
+     * A rule of a new concept needs a type definition (see getTypeDefinitions) before its matches can be annotated.
+     *
+     * @param rules          rules to add, a rule replaces the existing rule that has the same id
+     * @param removedRuleIds ids of the rules to remove
+     */
+    public synchronized void updateRules(Collection<? extends Rule> rules, Collection<Integer> removedRuleIds) {
+        fastRule = fastRule.updateRules(rules, removedRuleIds);
+    }
+
+    /**
+     * Change a setting of the rules (e.g. setCompiled, setMetrics) on a new version, which is swapped in like the
+     * updated rules, so that the calls in progress (e.g. the workers of processDocuments) keep the settings they
+     * started with.
+     *
+     * @param setter changes the new version
+     */
+    protected synchronized void updateSettings(Consumer<FastRule> setter) {
+        FastRule version = fastRule.copyForUpdate();
+        setter.accept(version);
+        fastRule = version;
+    }
+
+    /**
+     * @param rule a rule to add, which replaces the existing rule that has the same id
+     */
+    public void addRule(Rule rule) {
+        updateRules(Collections.singletonList(rule), Collections.emptyList());
+    }
+
+    public void removeRule(int ruleId) {
+        updateRules(Collections.emptyList(), Collections.singletonList(ruleId));
+    }
+
+    /**
+     * Rebuild the rules after a series of updates, so that the compiled rules are merged back into one trie.
+     */
+    public synchronized void compactRules() {
+        if (fastRule.hasRuleUpdates())
+            fastRule = fastRule.compact();
+    }
+
     public Determinants getMatchedNEType(Span matchedSpan) {
         return getMatchedNEType(matchedSpan.ruleId);
     }
@@ -148,7 +360,35 @@ public class FastNER {
     }
 
     public void setRemovePseudo(boolean removePseudo) {
-        fastRule.setRemovePseudo(removePseudo);
+        updateSettings((version) -> version.setRemovePseudo(removePseudo));
+    }
+
+    /**
+     * Turn on the runtime metrics of the rules, which are kept by the updated versions of the rules.
+     *
+     * @param metrics e.g. a RuleMetrics (which can be registered in JMX), or null to turn the metrics off
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        updateSettings((version) -> version.setMetrics(metrics));
+    }
+
+    public MetricsRegistry getMetrics() {
+        return fastRule.getMetrics();
+    }
+
+    /**
+     * Resolve the overlaps of the matches in one stage after the rules are walked, e.g. by a SweepLineResolver.
+     * The rules with groups may find their matches out of the begin order, where the results can differ from the
+     * default checks.
+     *
+     * @param overlapResolver the resolver, or null to check each match as it is found
+     */
+    public void setOverlapResolver(OverlapResolver overlapResolver) {
+        updateSettings((version) -> version.setOverlapResolver(overlapResolver));
+    }
+
+    public OverlapResolver getOverlapResolver() {
+        return fastRule.getOverlapResolver();
     }
 
     public double getRuleScore(int ruleId) {
@@ -159,4 +399,27 @@ public class FastNER {
         return fastRule.getRuleStore();
     }
 
+    /**
+     * @param compiled true: freeze the rules into an array-based CompiledTrie for faster lookups
+     */
+    public void setCompiled(boolean compiled) {
+        updateSettings((version) -> version.setCompiled(compiled));
+    }
+
+    public boolean isCompiled() {
+        return fastRule.isCompiled();
+    }
+
+    /**
+     * Save the rules, type definitions and compiled trie into a binary snapshot, which can be loaded much faster
+     * than the original rule files. Use a file name ending with RuleSnapshot.EXTENSION, so that it can be passed
+     * as the rule file to the constructors and the AEs.
+     *
+     * @param snapshotFile output file path
+     * @throws IOException if the file cannot be written
+     */
+    public void saveSnapshot(String snapshotFile) throws IOException {
+        RuleSnapshot.save(fastRule, typeDefinition, caseSenstive, snapshotFile);
+    }
+
 }
@@ -24,6 +24,7 @@ import edu.utah.bmi.nlp.core.Span;
 
 import java.util.*;
 import java.util.function.BiFunction;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,7 +40,7 @@ import java.util.logging.Logger;
  * -Determinants are defined in ContextValueSet.Determinants ( @see ContextValueSet#ContextValueSet()), which is corresponding
  * to the last two elements in each rule defined in the rule CSV file.
  */
-public abstract class FastRule {
+public abstract class FastRule implements Cloneable {
 
     public static Logger logger = edu.utah.bmi.nlp.core.IOUtil.getLogger(FastRule.class);
 
@@ -47,8 +48,43 @@ public abstract class FastRule {
     protected HashMap rulesMap = new HashMap();
     protected final Determinants END = Determinants.END;
     public HashMap<Integer, Rule> ruleStore = new HashMap<>();
+    //  when compiled, rulesMap is frozen into compiledTrie, and the HashMap chain is released
+    protected boolean compiled = false;
+    protected CompiledTrie compiledTrie = null;
+    //  token to key id of the compiled trie
+    protected HashMap<String, Integer> vocabulary = new HashMap<>();
+    protected ArrayList<String> vocabularyTokens = new ArrayList<>();
+    //  concept names interned to dense ids, which are the keys of the END maps and are passed to MatchSinks
+    protected HashMap<String, Integer> conceptIds = new HashMap<>();
+    protected ArrayList<String> conceptNames = new ArrayList<>();
+    //  rule metadata indexed by rule ids, so that a match reads arrays instead of looking up the ruleStore
+    protected int[] ruleConcepts = new int[0];
+    protected double[] ruleScores = new double[0];
+    protected boolean[] pseudoRules = new boolean[0];
+    //  rules removed by updateRules from the structures that cannot be edited in place (the compiledTrie), indexed
+    //  by rule ids (null if no rule has been removed)
+    protected boolean[] removedRules = null;
+    //  true if updateRules has been applied since the rules were built
+    protected boolean rulesUpdated = false;
+    //  rulesMap nodes that may have more than one parent (the continuations of square bracket alternations), which
+    //  are copied before a rule that passes through them is added
+    protected Set<HashMap> sharedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    //  the nodes that have been copied (or created) by the running updateRules, which copies the other nodes along
+    //  the edited paths, because they are shared with the previous version (null if no update is running)
+    protected Set<HashMap> ownedNodes = null;
+    //  receives the runtime measurements of the processing calls (null if the metrics are off), shared with the
+    //  updated versions of the rules
+    protected MetricsRegistry metrics = null;
+    //  resolves the overlaps of the raw matches after the walk (null if each match is checked as it is found)
+    protected OverlapResolver overlapResolver = null;
+    //  the symbols that the rules start with, built by the first call that needs it after the rules are changed
+    protected volatile StartIndex startIndex = null;
+    protected static final OverlapResolver POOLED_RESOLVER = new InOrderResolver();
 
+    //  no longer used by the built-in engines, which read tokens from arrays (see FastRuleWOG.processTokens(String[], int[], int[]))
+    @Deprecated
     protected BiFunction<ArrayList, Integer, Integer> getSpanBegin, getSpanEnd, getBeginId, getEndId;
+    @Deprecated
     protected BiFunction<ArrayList, Integer, String> getSpanText, getStringText;
 
 
@@ -68,19 +104,216 @@ public abstract class FastRule {
 
     public void initiate(HashMap<Integer, Rule> ruleStore) {
         rulesMap.clear();
+        compiledTrie = null;
+        startIndex = null;
         this.ruleStore = ruleStore;
+        indexRules();
+        for (Map.Entry<Integer, Rule> ent : ruleStore.entrySet()) {
+            putRule(ent.getValue());
+        }
+        initiateFunctions();
+        if (compiled)
+            compile();
+    }
+
+    /**
+     * Freeze the rulesMap into a CompiledTrie, so that the processing walks int arrays instead of the HashMap chain.
+     * The HashMap chain is released afterwards.
+     */
+    public void compile() {
+        if (rulesUpdated) {
+//          the updated rules are spread over the compiled trie, the rulesMap and the removed rules, rebuild them all
+            rulesMap = new HashMap();
+            compiled = true;
+            initiate(ruleStore);
+            return;
+        }
+        vocabulary.clear();
+        vocabularyTokens.clear();
+        compiledTrie = CompiledTrie.compile(rulesMap, this::encodeKey, conceptNames);
+        rulesMap = new HashMap();
+        startIndex = null;
+        sharedNodes.clear();
+        compiled = true;
+        initiateCompiledKeys();
+    }
+
+    /**
+     * Initiate from a prebuilt CompiledTrie (e.g. loaded from a RuleSnapshot), without building the rulesMap.
+     *
+     * @param ruleStore        rules
+     * @param compiledTrie     the compiled trie of the rules
+     * @param vocabularyTokens the tokens of the compiled trie keys (empty for character-based rules)
+     */
+    public void initiate(HashMap<Integer, Rule> ruleStore, CompiledTrie compiledTrie, List<String> vocabularyTokens) {
+        rulesMap = new HashMap();
+        this.ruleStore = ruleStore;
+        vocabulary.clear();
+        this.vocabularyTokens.clear();
+        for (String token : vocabularyTokens) {
+            vocabulary.put(token, this.vocabularyTokens.size());
+            this.vocabularyTokens.add(token);
+        }
+        this.compiledTrie = compiledTrie;
+        compiled = true;
+        startIndex = null;
+        indexRules();
         for (Map.Entry<Integer, Rule> ent : ruleStore.entrySet()) {
             Rule rule = ent.getValue();
-            if (rule.rule.indexOf("[") != -1) {
-                ArrayList<Rule> rules = expandSB(rule);
-                for (Rule subrule : rules) {
-                    addRule(subrule);
-                }
+            List<Object[][]> segments = ruleSegments(rule);
+            if (segments != null) {
+                addAlternationMetadata(rule, segments);
             } else {
-                addRule(rule);
+                for (Rule subrule : expandRule(rule)) {
+                    addRuleMetadata(subrule);
+                }
             }
         }
         initiateFunctions();
+        initiateCompiledKeys();
+    }
+
+    /**
+     * Assign a dense id to each concept name of the ruleStore (in the order of the rule ids), and copy the rule
+     * metadata that is read by every match into arrays indexed by rule ids. Called before the rules are added.
+     */
+    protected void indexRules() {
+        conceptIds.clear();
+        conceptNames.clear();
+        removedRules = null;
+        rulesUpdated = false;
+        sharedNodes.clear();
+        int capacity = 0;
+        for (Map.Entry<Integer, Rule> ent : ruleStore.entrySet()) {
+            capacity = Math.max(capacity, Math.max(ent.getKey(), ent.getValue().id) + 1);
+        }
+        ruleConcepts = new int[0];
+        ruleScores = new double[0];
+        pseudoRules = new boolean[0];
+        ensureRuleCapacity(capacity);
+        for (Rule rule : new TreeMap<>(ruleStore).values()) {
+            indexRule(rule);
+        }
+    }
+
+    /**
+     * Grow the arrays indexed by rule ids.
+     *
+     * @param capacity the largest rule id + 1
+     */
+    protected void ensureRuleCapacity(int capacity) {
+        if (ruleConcepts.length >= capacity)
+            return;
+        ruleConcepts = Arrays.copyOf(ruleConcepts, capacity);
+        ruleScores = Arrays.copyOf(ruleScores, capacity);
+        pseudoRules = Arrays.copyOf(pseudoRules, capacity);
+    }
+
+    /**
+     * Intern the concept of a rule, and copy its metadata into the arrays indexed by rule ids.
+     *
+     * @param rule a rule of the ruleStore
+     */
+    protected void indexRule(Rule rule) {
+        Integer conceptId = conceptIds.get(rule.ruleName);
+        if (conceptId == null) {
+            conceptId = conceptNames.size();
+            conceptIds.put(rule.ruleName, conceptId);
+            conceptNames.add(rule.ruleName);
+        }
+        ruleConcepts[rule.id] = conceptId;
+        ruleScores[rule.id] = rule.score;
+        pseudoRules[rule.id] = rule.type == Determinants.PSEUDO;
+    }
+
+    /**
+     * @param conceptName a concept name
+     * @return the id of the concept, or -1 if no rule defines this concept
+     */
+    public int getConceptId(String conceptName) {
+        Integer id = conceptIds.get(conceptName);
+        return id == null ? -1 : id;
+    }
+
+    public String getConceptName(int conceptId) {
+        return conceptNames.get(conceptId);
+    }
+
+    public int getConceptCount() {
+        return conceptNames.size();
+    }
+
+    /**
+     * Keep the per-rule information that is collected by addRule, other than the rulesMap itself.
+     *
+     * @param rule a rule (or an expanded sub-rule)
+     */
+    protected void addRuleMetadata(Rule rule) {
+
+    }
+
+    /**
+     * The counterpart of addRuleMetadata for a rule that is added as alternation nodes (see addAlternationRule).
+     *
+     * @param rule     a rule with square brackets
+     * @param segments the keys of the rule (see ruleSegments)
+     */
+    protected void addAlternationMetadata(Rule rule, List<Object[][]> segments) {
+
+    }
+
+    /**
+     * Look up the compiled trie keys that the processing methods check directly (e.g. wildcards).
+     */
+    protected void initiateCompiledKeys() {
+
+    }
+
+    /**
+     * @param compiled true: process the rules through a CompiledTrie;
+     *                 false: process the rules through the chained-up HashMaps (rebuilt from the ruleStore if needed)
+     */
+    public void setCompiled(boolean compiled) {
+        if (compiled && compiledTrie == null) {
+            compile();
+        } else if (!compiled && compiledTrie != null) {
+            this.compiled = false;
+            initiate(ruleStore);
+        }
+        this.compiled = compiled;
+    }
+
+    public boolean isCompiled() {
+        return compiledTrie != null;
+    }
+
+    public CompiledTrie getCompiledTrie() {
+        return compiledTrie;
+    }
+
+    /**
+     * Convert a rulesMap key into a compiled trie key. Token-based rules intern the tokens.
+     *
+     * @param key a key of the chained-up HashMaps
+     * @return the int key used in the CompiledTrie
+     */
+    protected int encodeKey(Object key) {
+        Integer id = vocabulary.get(key);
+        if (id == null) {
+            id = vocabularyTokens.size();
+            vocabulary.put((String) key, id);
+            vocabularyTokens.add((String) key);
+        }
+        return id;
+    }
+
+    /**
+     * @param token a rule token (including wildcards, e.g. "\\w+")
+     * @return the compiled trie key of the token, or CompiledTrie.NONE if no rule uses it
+     */
+    protected int tokenKey(String token) {
+        Integer id = vocabulary.get(token);
+        return id == null ? CompiledTrie.NONE : id;
     }
 
 
@@ -167,6 +400,239 @@ public abstract class FastRule {
     }
 
 
+    /**
+     * Add a rule of the ruleStore to the rulesMap. The square brackets are added as alternation nodes if the keys
+     * of the rule can be split at them (see ruleSegments), otherwise the rule is expanded (see expandSB).
+     *
+     * @param rule a rule of the ruleStore
+     */
+    protected void putRule(Rule rule) {
+        startIndex = null;
+        List<Object[][]> segments = ruleSegments(rule);
+        if (segments != null) {
+            addAlternationRule(rule, segments);
+            return;
+        }
+        for (Rule subrule : expandRule(rule)) {
+            copyPath(ruleKeys(subrule));
+            addRule(subrule);
+        }
+    }
+
+    /**
+     * Add a rule with square brackets without expanding it. The alternatives of a bracket share one continuation
+     * node, so that the rest of the rule is added only once, and the rulesMap grows linearly with the rule text
+     * instead of with the number of combinations.
+     * <p>
+     * The rulesMap becomes a DAG. The continuation nodes are kept in sharedNodes, and are copied by the rules that
+     * are added through them later (see copyPath), so that those rules do not leak into the other alternatives.
+     *
+     * @param rule     a rule with square brackets
+     * @param segments the keys of the rule (see ruleSegments)
+     */
+    protected void addAlternationRule(Rule rule, List<Object[][]> segments) {
+        Integer conceptId = ruleConcepts[rule.id];
+        for (HashMap node : walkSegments(segments, true)) {
+            HashMap determinants = (HashMap) node.get(END);
+            if (determinants == null) {
+//              the same capacity as the END maps created by addRule, so that they are iterated in the same order
+                determinants = new HashMap(2);
+                node.put(END, determinants);
+            }
+            determinants.put(conceptId, rule.id);
+        }
+        addAlternationMetadata(rule, segments);
+    }
+
+    /**
+     * Walk the paths of a rule with square brackets, segment by segment.
+     *
+     * @param segments the keys of the rule (see ruleSegments)
+     * @param create   true: create the missing nodes; false: follow the existing paths only
+     * @return the nodes at the ends of the paths
+     */
+    protected List<HashMap> walkSegments(List<Object[][]> segments, boolean create) {
+        List<HashMap> frontier = Collections.singletonList(rulesMap);
+        for (Object[][] alternatives : segments) {
+            List<HashMap> next = new ArrayList<>();
+            Set<HashMap> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+//          the node shared by the alternatives whose paths are new, which continues with the next segment
+            HashMap continuation = null;
+            int parents = 0;
+            for (HashMap node : frontier) {
+                for (Object[] keys : alternatives) {
+                    HashMap current = node;
+                    int i = 0;
+                    for (; i < keys.length; i++) {
+                        HashMap child = (HashMap) current.get(keys[i]);
+                        if (child == null)
+                            break;
+                        if (child == continuation && i < keys.length - 1) {
+//                          an alternative that is a prefix of this one ends here, give it a node of its own
+                            child = newNode();
+                            current.put(keys[i], child);
+                            parents--;
+                            if (reached.add(child))
+                                next.add(child);
+                        } else {
+                            child = ownChild(current, keys[i], child);
+                        }
+                        current = child;
+                    }
+                    if (i < keys.length) {
+                        if (!create)
+                            continue;
+                        for (; i < keys.length - 1; i++) {
+                            HashMap child = newNode();
+                            current.put(keys[i], child);
+                            current = child;
+                        }
+                        if (continuation == null)
+                            continuation = newNode();
+                        current.put(keys[i], continuation);
+                        parents++;
+                        current = continuation;
+                    }
+                    if (reached.add(current))
+                        next.add(current);
+                }
+            }
+            if (parents > 1)
+                sharedNodes.add(continuation);
+            frontier = next;
+        }
+        return frontier;
+    }
+
+    /**
+     * @param parent a node that can be edited
+     * @param key    the key of the child
+     * @param child  the child under the key
+     * @return the child, or a copy of it (put under the key) if the child may be reached from other parents
+     */
+    protected HashMap ownChild(HashMap parent, Object key, HashMap child) {
+        if (!sharedNodes.contains(child) && (ownedNodes == null || ownedNodes.contains(child)))
+            return child;
+        HashMap copy = (HashMap) child.clone();
+        if (ownedNodes != null)
+            ownedNodes.add(copy);
+        for (Object ent : copy.entrySet()) {
+            Map.Entry entry = (Map.Entry) ent;
+            if (entry.getKey() == END)
+                entry.setValue(copyDeterminants((HashMap) entry.getValue()));
+            else
+//              the grandchildren are now reached from both the child and the copy
+                sharedNodes.add((HashMap) entry.getValue());
+        }
+        parent.put(key, copy);
+        return copy;
+    }
+
+    /**
+     * Copy an END map entry by entry, unlike HashMap.clone, which sizes the table by the current size. The copy
+     * grows as the END maps built by addRule do, so the concepts are iterated in the same order.
+     */
+    private HashMap copyDeterminants(HashMap determinants) {
+        HashMap copy = new HashMap(2);
+        for (Object ent : determinants.entrySet()) {
+            copy.put(((Map.Entry) ent).getKey(), ((Map.Entry) ent).getValue());
+        }
+        return copy;
+    }
+
+    private HashMap newNode() {
+        HashMap node = new HashMap();
+        if (ownedNodes != null)
+            ownedNodes.add(node);
+        return node;
+    }
+
+    /**
+     * Split a rule at its square brackets, with the same escapes (\[ and \]) as expandSB.
+     *
+     * @param ruleString a rule string
+     * @return the text outside the brackets (as a single alternative) and the alternatives of each bracket, in order;
+     * or null if a bracket is not closed
+     */
+    protected List<List<String>> splitAlternations(String ruleString) {
+        List<List<String>> segments = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        List<String> branches = null;
+        StringBuilder branch = null;
+        char[] ruleChars = ruleString.toCharArray();
+        for (int i = 0; i < ruleChars.length; i++) {
+            char ch = ruleChars[i];
+            char preCh = i > 0 ? ruleChars[i - 1] : ' ';
+            char nextCh = i < ruleChars.length - 1 ? ruleChars[i + 1] : ' ';
+            boolean escape = ch == '\\' && (nextCh == '[' || nextCh == ']');
+            if (branches == null) {
+                if (ch == '[' && preCh != '\\') {
+                    if (text.length() > 0)
+                        segments.add(Collections.singletonList(text.toString()));
+                    text = new StringBuilder();
+                    branches = new ArrayList<>();
+                    branch = new StringBuilder();
+                } else if (!escape) {
+                    text.append(ch);
+                }
+            } else if (ch == ']' && preCh != '\\') {
+                branches.add(branch.toString());
+                segments.add(branches);
+                branches = null;
+            } else if (ch == '|') {
+                branches.add(branch.toString());
+                branch = new StringBuilder();
+            } else if (!escape) {
+                branch.append(ch);
+            }
+        }
+        if (branches != null)
+            return null;
+        if (text.length() > 0)
+            segments.add(Collections.singletonList(text.toString()));
+        return segments;
+    }
+
+    /**
+     * Split a rule with square brackets into the rulesMap keys of each segment. A token can only be split at a
+     * bracket that is separated from the text around it by whitespaces (e.g. "pulmonary [emboli|embolism]"),
+     * otherwise the alternatives are parts of tokens, and the rule needs to be expanded.
+     *
+     * @param rule a rule of the ruleStore
+     * @return the keys of each alternative of each segment, or null if the rule has no square brackets or needs to
+     * be expanded
+     */
+    protected List<Object[][]> ruleSegments(Rule rule) {
+        if (rule.rule.indexOf("[") == -1)
+            return null;
+        List<List<String>> segments = splitAlternations(rule.rule);
+        if (segments == null)
+            return null;
+        for (int s = 0; s + 1 < segments.size(); s++) {
+            if (!allMatch(segments.get(s), (alternative) -> Character.isWhitespace(alternative.charAt(alternative.length() - 1)))
+                    && !allMatch(segments.get(s + 1), (alternative) -> Character.isWhitespace(alternative.charAt(0))))
+                return null;
+        }
+        List<Object[][]> keys = new ArrayList<>();
+        for (List<String> alternatives : segments) {
+            Object[][] segment = new Object[alternatives.size()][];
+            for (int a = 0; a < segment.length; a++) {
+                String alternative = alternatives.get(a).trim();
+                segment[a] = alternative.isEmpty() ? new Object[0] : alternative.split("\\s+");
+            }
+            keys.add(segment);
+        }
+        return keys;
+    }
+
+    private static boolean allMatch(List<String> alternatives, Predicate<String> condition) {
+        for (String alternative : alternatives) {
+            if (alternative.isEmpty() || !condition.test(alternative))
+                return false;
+        }
+        return true;
+    }
+
     protected boolean addRule(Rule rule) {
         // use to store the HashMap sub-chain that have the key chain that meet
         // the rule[]
@@ -187,18 +653,19 @@ public abstract class FastRule {
             return false;
         // start with the determinant, construct the last descendant HashMap
         // <Determinant, null>
+        Integer conceptId = ruleConcepts[rule.id];
         if (i == length) {
             if (rule1.containsKey(END)) {
-                ((HashMap) rule1.get(END)).put(rule.ruleName, rule.id);
+                ((HashMap) rule1.get(END)).put(conceptId, rule.id);
             } else {
-                rule2.put(rule.ruleName, rule.id);
+                rule2.put(conceptId, rule.id);
                 rule1.put(END, rule2.clone());
             }
             return true;
         } else {
-            rule2.put(rule.ruleName, rule.id);
+            rule2.put(conceptId, rule.id);
             rule2.put(END, rule2.clone());
-            rule2.remove(rule.ruleName);
+            rule2.remove(conceptId);
             // filling the HashMap chain which ruleStore doesn't have the key chain
             for (int j = length - 1; j > i; j--) {
                 rule_t = (HashMap) rule2.clone();
@@ -210,6 +677,187 @@ public abstract class FastRule {
         return true;
     }
 
+    /**
+     * Build a new version of the rules with some rules added, replaced or removed, without rebuilding the rules
+     * that are not changed. This FastRule is not modified, so that the calls that are processing through it are not
+     * affected, and the new version can be swapped in as a whole (see FastNER.updateRules).
+     * <p>
+     * The new version copies the HashMap nodes along the paths of the changed rules only, and shares the other nodes
+     * with this version. A compiled trie cannot be edited in place: the added rules are put into a rulesMap that is
+     * processed along with the trie, and the removed rules are masked by their ids. Use compact() to merge them
+     * back into one trie once the updates are done.
+     *
+     * @param rules          rules to add, a rule replaces the existing rule that has the same id
+     * @param removedRuleIds ids of the rules to remove
+     * @return the new version of the rules
+     */
+    public FastRule updateRules(Collection<? extends Rule> rules, Collection<Integer> removedRuleIds) {
+        FastRule version = copyForUpdate();
+        version.applyUpdates(rules, removedRuleIds);
+        return version;
+    }
+
+    /**
+     * @return a new version whose rules are fully rebuilt from the ruleStore, which merges the updated rules into
+     * a single compiled trie if the rules are compiled
+     */
+    public FastRule compact() {
+        FastRule version = copyForUpdate();
+        version.rulesMap = new HashMap();
+        version.initiate(version.ruleStore);
+        return version;
+    }
+
+    /**
+     * @return true if updateRules has been applied since the rules were built
+     */
+    public boolean hasRuleUpdates() {
+        return rulesUpdated;
+    }
+
+    /**
+     * Copy the fields that a new version modifies. The HashMap nodes below the root of the rulesMap are shared,
+     * until a rule update copies them (see copyPath).
+     *
+     * @return a shallow copy of this FastRule
+     */
+    protected FastRule copyForUpdate() {
+        FastRule copy;
+        try {
+            copy = (FastRule) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        copy.rulesMap = (HashMap) rulesMap.clone();
+        copy.ruleStore = new HashMap<>(ruleStore);
+        copy.vocabulary = new HashMap<>(vocabulary);
+        copy.vocabularyTokens = new ArrayList<>(vocabularyTokens);
+        copy.conceptIds = new HashMap<>(conceptIds);
+        copy.conceptNames = new ArrayList<>(conceptNames);
+        copy.ruleConcepts = ruleConcepts.clone();
+        copy.ruleScores = ruleScores.clone();
+        copy.pseudoRules = pseudoRules.clone();
+        if (removedRules != null)
+            copy.removedRules = removedRules.clone();
+        copy.sharedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        copy.sharedNodes.addAll(sharedNodes);
+        return copy;
+    }
+
+    protected void applyUpdates(Collection<? extends Rule> rules, Collection<Integer> removedRuleIds) {
+        int capacity = ruleConcepts.length;
+        for (Rule rule : rules) {
+            capacity = Math.max(capacity, rule.id + 1);
+        }
+        ownedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            for (int ruleId : removedRuleIds) {
+                removeRule(ruleId);
+            }
+            for (Rule rule : rules) {
+                removeRule(rule.id);
+            }
+            ensureRuleCapacity(capacity);
+            for (Rule rule : rules) {
+                ruleStore.put(rule.id, rule);
+                indexRule(rule);
+                putRule(rule);
+            }
+        } finally {
+            ownedNodes = null;
+        }
+        rulesUpdated = true;
+    }
+
+    protected void removeRule(int ruleId) {
+        Rule rule = ruleStore.remove(ruleId);
+        if (rule == null)
+            return;
+        if (hasFrozenRules()) {
+            if (removedRules == null)
+                removedRules = new boolean[ruleConcepts.length];
+            else if (removedRules.length <= ruleId)
+                removedRules = Arrays.copyOf(removedRules, ruleConcepts.length);
+            removedRules[ruleId] = true;
+        }
+        Integer conceptId = ruleConcepts[ruleId];
+        List<HashMap> nodes = new ArrayList<>();
+        List<Object[][]> segments = ruleSegments(rule);
+        if (segments != null) {
+            nodes.addAll(walkSegments(segments, false));
+        } else {
+            for (Rule subrule : expandRule(rule)) {
+                nodes.add(copyPath(ruleKeys(subrule)));
+            }
+        }
+        for (HashMap node : nodes) {
+            if (node == null || !node.containsKey(END))
+                continue;
+            HashMap determinants = (HashMap) node.get(END);
+            if (Integer.valueOf(ruleId).equals(determinants.get(conceptId))) {
+                determinants.remove(conceptId);
+                if (determinants.isEmpty())
+                    node.remove(END);
+            }
+        }
+    }
+
+    /**
+     * Replace the HashMap nodes along the key path of a rule (and their END maps) with copies where they can be
+     * reached from elsewhere: all of them while updateRules edits a new version, which shares the nodes with the
+     * previous version, otherwise the shared continuations of alternations. Then addRule and removeRule can edit
+     * the path in place.
+     *
+     * @param keys the rulesMap keys of a rule
+     * @return the node at the end of the path, or null if the path is not complete (or nothing needs to be copied)
+     */
+    protected HashMap copyPath(Object[] keys) {
+        if (ownedNodes == null && sharedNodes.isEmpty())
+            return null;
+        HashMap node = rulesMap;
+        for (Object key : keys) {
+            HashMap child = (HashMap) node.get(key);
+            if (child == null)
+                return null;
+            node = ownChild(node, key, child);
+        }
+        return node;
+    }
+
+    /**
+     * @return true if some rules are kept in structures that cannot be edited in place, so that a removed rule
+     * needs to be masked
+     */
+    protected boolean hasFrozenRules() {
+        return compiledTrie != null;
+    }
+
+    /**
+     * @param ruleId a rule id read from the compiled trie
+     * @return true if the rule has been removed by updateRules
+     */
+    protected boolean isRemoved(int ruleId) {
+        return removedRules != null && ruleId < removedRules.length && removedRules[ruleId];
+    }
+
+    /**
+     * @param rule a rule of the ruleStore
+     * @return the rules that are added to the rulesMap for this rule (expanded if the rule has square brackets)
+     */
+    protected List<Rule> expandRule(Rule rule) {
+        if (rule.rule.indexOf("[") != -1)
+            return expandSB(rule);
+        return Collections.singletonList(rule);
+    }
+
+    /**
+     * @param rule an expanded rule
+     * @return the keys of the rule along the rulesMap, the same keys that addRule uses
+     */
+    protected Object[] ruleKeys(Rule rule) {
+        return rule.rule.split("\\s+");
+    }
+
     public HashMap<String, ArrayList<Span>> processString(String text, int begin, int end) {
         String sentence = text.substring(begin, end);
         return processString(sentence);
@@ -226,13 +874,193 @@ public abstract class FastRule {
 
     protected void removePseudoMatches(HashMap<String, ArrayList<Span>> matches) {
         for (Map.Entry<String, ArrayList<Span>> entry : matches.entrySet()) {
-            Iterator<Span> spanIterator = entry.getValue().iterator();
-            while (spanIterator.hasNext()) {
-                Span thisSpan = spanIterator.next();
-                if (ruleStore.get(thisSpan.ruleId).type == Determinants.PSEUDO)
-                    spanIterator.remove();
+            entry.getValue().removeIf((span) -> pseudoRules[span.ruleId]);
+        }
+    }
+
+    /**
+     * Collect the matches of a context into a HashMap keyed by the concept names, the results of the processing
+     * methods. The pseudo matches are removed if removePseudo is true.
+     *
+     * @param context the context that has been processed
+     * @return matched spans grouped by concept names
+     */
+    protected HashMap<String, ArrayList<Span>> collectMatches(MatchContext context) {
+        HashMap<String, ArrayList<Span>> matches = new HashMap<>();
+        if (context.pooled) {
+            MatchCandidates kept = context.getKeptMatches();
+            ArrayList<Span> spans = null;
+            for (int i = 0; i < kept.size; i++) {
+                int conceptId = kept.conceptIds[i];
+                if (i == 0 || conceptId != kept.conceptIds[i - 1]) {
+                    spans = new ArrayList<>();
+                    matches.put(conceptNames.get(conceptId), spans);
+                }
+                if (!removePseudo || !pseudoRules[kept.ruleIds[i]])
+                    spans.add(newSpan(context, kept.begins[i], kept.ends[i], kept.ruleIds[i]));
             }
+            return matches;
+        }
+        for (int conceptId = 0; conceptId < context.matches.size(); conceptId++) {
+            ArrayList<Span> spans = context.matches.get(conceptId);
+//          a reused context keeps the emptied lists of the concepts matched by the earlier calls
+            if (spans == null || spans.isEmpty())
+                continue;
+            if (removePseudo)
+                spans.removeIf((span) -> pseudoRules[span.ruleId]);
+            matches.put(conceptNames.get(conceptId), spans);
         }
+        return matches;
+    }
+
+    /**
+     * Collect the matches of a context that will be reused, so that the returned lists are not cleared by the
+     * following calls.
+     *
+     * @param context the context that has been processed
+     * @return matched spans grouped by concept names
+     */
+    public HashMap<String, ArrayList<Span>> getMatches(MatchContext context) {
+        HashMap<String, ArrayList<Span>> matches = collectMatches(context);
+        if (!context.pooled)
+            matches.replaceAll((conceptName, spans) -> new ArrayList<>(spans));
+        return matches;
+    }
+
+    /**
+     * Pass the matches of a context to a sink, skipping the pseudo matches if removePseudo is true.
+     * This replaces the copy into the returned HashMap and the second pass of removePseudoMatches.
+     *
+     * @param context the context that has been processed
+     * @param sink    receives the matches, grouped by concept and in the order of the matches within each concept
+     */
+    protected void emitMatches(MatchContext context, MatchSink sink) {
+        if (context.pooled) {
+            MatchCandidates kept = context.getKeptMatches();
+            for (int i = 0; i < kept.size; i++) {
+                int ruleId = kept.ruleIds[i];
+                if (!removePseudo || !pseudoRules[ruleId])
+                    sink.match(kept.conceptIds[i], kept.begins[i], kept.ends[i], ruleId, ruleScores[ruleId]);
+            }
+            return;
+        }
+        for (int conceptId = 0; conceptId < context.matches.size(); conceptId++) {
+            ArrayList<Span> spans = context.matches.get(conceptId);
+            if (spans == null)
+                continue;
+            for (int i = 0; i < spans.size(); i++) {
+                Span span = spans.get(i);
+                if (removePseudo && pseudoRules[span.ruleId])
+                    continue;
+                sink.match(conceptId, span.begin, span.end, span.ruleId, span.score);
+            }
+        }
+    }
+
+    /**
+     * Turn on the runtime metrics (calls, latencies, visited nodes, and per-rule match and overlap counts).
+     *
+     * @param metrics e.g. a RuleMetrics, or null to turn the metrics off
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Collect the raw matches of a call, and resolve their overlaps in one stage after the walk (e.g. by a
+     * SweepLineResolver), instead of checking each match against the kept ones through an interval tree.
+     *
+     * @param overlapResolver the resolver, or null to check the matches as they are found
+     */
+    public void setOverlapResolver(OverlapResolver overlapResolver) {
+        this.overlapResolver = overlapResolver;
+    }
+
+    public OverlapResolver getOverlapResolver() {
+        return overlapResolver;
+    }
+
+    /**
+     * Decide between two overlapping matches of a same concept, where the candidate begins at or after the kept one.
+     *
+     * @return true if the candidate replaces the kept match; false if the candidate is dropped
+     */
+    public boolean preferMatch(int ruleId, int begin, int end, int keptRuleId, int keptBegin, int keptEnd) {
+        double score = ruleScores[ruleId], keptScore = ruleScores[keptRuleId];
+        return score > keptScore || (score == keptScore && end - begin > keptEnd - keptBegin);
+    }
+
+    /**
+     * @return true if addDeterminant only checks a match against the last kept match of its concept, instead of all
+     * the kept matches that it may overlap (see InOrderResolver)
+     */
+    protected boolean checksLastMatchOnly() {
+        return false;
+    }
+
+    /**
+     * @return the resolver of a call: the one that is set, or an InOrderResolver for a pooled context, which
+     * collects the raw matches in any case and then keeps the same matches as addDeterminant; null to check each
+     * match as it is found
+     */
+    protected OverlapResolver resolverOf(MatchContext context) {
+        OverlapResolver resolver = overlapResolver;
+        return resolver == null && context.pooled ? POOLED_RESOLVER : resolver;
+    }
+
+    /**
+     * Resolve the raw matches collected since MatchContext.startCandidates, and stop collecting them.
+     *
+     * @param resolver the resolver that was set when the walk started
+     * @param context  the context of the call
+     */
+    protected void resolveCandidates(OverlapResolver resolver, MatchContext context) {
+        MatchCandidates candidates = context.candidates;
+        context.candidates = null;
+        resolver.resolve(this, candidates, context);
+    }
+
+    /**
+     * Add a match that an OverlapResolver keeps to the results of the context.
+     */
+    public void keepMatch(MatchContext context, int conceptId, int begin, int end, int ruleId) {
+        if (context.pooled)
+            context.getKeptMatches().add(conceptId, begin, end, ruleId);
+        else
+            context.getSpans(conceptId).add(newSpan(context, begin, end, ruleId));
+    }
+
+    /**
+     * @return the span of a kept match, in the form that the engine creates for its matches
+     */
+    protected Span newSpan(MatchContext context, int begin, int end, int ruleId) {
+        return new Span(begin, end, ruleId, ruleScores[ruleId]);
+    }
+
+    /**
+     * @return the symbols that the rules can start with (a removed rule may still be counted)
+     */
+    public StartIndex getStartIndex() {
+        StartIndex index = startIndex;
+        if (index == null) {
+            index = buildStartIndex();
+            startIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Read the start symbols from the first level of the rulesMap and of the compiled trie. An engine that does not
+     * know its start symbols tries the rules at every position.
+     */
+    protected StartIndex buildStartIndex() {
+        StartIndex index = new StartIndex();
+        index.any = true;
+        return index;
     }
 
     public void setRemovePseudo(boolean removePseudo) {
@@ -249,6 +1077,8 @@ public abstract class FastRule {
     }
 
     public void printRulesMap() {
+        if (compiledTrie != null && logger.isLoggable(Level.FINER))
+            logger.finer("The rulesMap has been compiled into " + compiledTrie.getNodeCount() + " nodes.");
         printEmbededMap(rulesMap, "");
     }
 
@@ -24,6 +24,7 @@ import edu.utah.bmi.nlp.fastcner.*;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -157,6 +158,13 @@ public class FastRuleFactory {
     public static FastRule createFastRule(String ruleStr, LinkedHashMap<String, TypeDefinition> typeDefinition,
                                           boolean caseSensitive, boolean constructRuleMap) {
         FastRule fastRule = null;
+        if (RuleSnapshot.isSnapshot(ruleStr)) {
+            try {
+                return RuleSnapshot.load(ruleStr, typeDefinition, caseSensitive);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         Object[] output = buildRuleStore(ruleStr, typeDefinition, caseSensitive, constructRuleMap);
         String ruleType = (String) output[1];
         String concatenated = (String) output[2];
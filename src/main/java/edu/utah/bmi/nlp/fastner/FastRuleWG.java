@@ -16,13 +16,11 @@
 package edu.utah.bmi.nlp.fastner;
 
 import edu.utah.bmi.nlp.core.*;
-import edu.utah.bmi.nlp.fastcner.UnicodeChecker;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.logging.Level;
 
@@ -45,8 +43,9 @@ import java.util.logging.Level;
  */
 public class FastRuleWG extends FastRuleWOG {
 //    fields are defined in abstract class
+//    the segment trees that check the overlapping are kept per call in MatchContext
+    protected int groupBeginKey = CompiledTrie.NONE, groupEndKey = CompiledTrie.NONE;
 
-    protected HashMap<String, IntervalST> overlapCheckers = new HashMap<>();
     public FastRuleWG() {
 
     }
@@ -66,92 +65,141 @@ public class FastRuleWG extends FastRuleWOG {
         super(ruleStore);
     }
 
-    protected void process(ArrayList<?> contextTokens,
-                           BiFunction<ArrayList, Integer, String> getText,
-                           BiFunction<ArrayList, Integer, Integer> getBegin,
-                           BiFunction<ArrayList, Integer, Integer> getEnd,
+    protected void process(String[] texts, int[] begins, int[] ends, int to,
                            HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                           HashMap<String, ArrayList<Span>> matches) {
+                           MatchContext context) {
+        context.visitedNodes++;
         // when reach the end of the tunedcontext, end the iteration
-        if (currentPosition < contextTokens.size()) {
+        if (currentPosition < to) {
             // start processing the tunedcontext tokens
-            String thisToken = getText.apply(contextTokens, currentPosition);
+            String thisToken = texts[currentPosition];
 //			System.out.println("thisToken-"+thisToken);
             if (rule.containsKey("\\w+")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\w+"), matchBegin, matchEnd, currentPosition + 1, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\w+"), matchBegin, matchEnd, currentPosition + 1, context);
             }
             // if the end of a rule is met
             if (rule.containsKey(END)) {
                 // if no () is used in this definition, use the whole rule string
-                addDeterminants(rule, matches, getBegin.apply(contextTokens, matchBegin), getEnd.apply(contextTokens, (matchEnd == -1 ? currentPosition - 1 : matchEnd)));
+                addDeterminants(rule, context, begins[matchBegin], ends[matchEnd == -1 ? currentPosition - 1 : matchEnd]);
             }
             // if the current token match the element of a rule
             if (rule.containsKey(thisToken)) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get(thisToken), matchBegin, matchEnd, currentPosition + 1, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get(thisToken), matchBegin, matchEnd, currentPosition + 1, context);
             }
-            if (rule.containsKey("\\d+") && UnicodeChecker.isNumber(thisToken)) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\d+"), matchBegin, matchEnd, currentPosition + 1, matches);
+            if (rule.containsKey("\\d+") && context.numericTokens[currentPosition]) {
+                process(texts, begins, ends, to, (HashMap) rule.get("\\d+"), matchBegin, matchEnd, currentPosition + 1, context);
             }
             if (rule.containsKey("\\(")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\("), currentPosition, matchEnd, currentPosition, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\("), currentPosition, matchEnd, currentPosition, context);
             }
             if (rule.containsKey("\\)")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\)"), matchBegin, currentPosition - 1, currentPosition, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\)"), matchBegin, currentPosition - 1, currentPosition, context);
             }
-        } else if (currentPosition == contextTokens.size() && rule.containsKey(END)) {
+        } else if (currentPosition == to && rule.containsKey(END)) {
             // if no () is used in this definition, use the whole rule string
             matchEnd = matchEnd == -1 ? currentPosition - 1 : matchEnd;
-            addDeterminants(rule, matches, getBegin.apply(contextTokens, matchBegin), getEnd.apply(contextTokens, matchEnd));
+            addDeterminants(rule, context, begins[matchBegin], ends[matchEnd]);
         }
     }
 
-    protected void addDeterminants(HashMap rule, HashMap<String, ArrayList<Span>> matches, int matchBegin, int matchEnd) {
-        HashMap<String, Integer> deterRule = (HashMap<String, Integer>) rule.get(END);
-        Span currentSpan;
-        ArrayList<Span> currentSpanList;
-        for (Object key : deterRule.keySet()) {
+    protected boolean isGroupBegin(Object key) {
+        return "\\(".equals(key);
+    }
+
+    protected void initiateCompiledKeys() {
+        super.initiateCompiledKeys();
+        groupBeginKey = tokenKey("\\(");
+        groupEndKey = tokenKey("\\)");
+    }
+
+    protected void processCompiled(String[] texts, int[] tokenIds, int[] begins, int[] ends, int to,
+                                   int node, int matchBegin, int matchEnd, int currentPosition,
+                                   MatchContext context) {
+        context.visitedNodes++;
+        CompiledTrie trie = compiledTrie;
+        int next;
+        if (currentPosition < to) {
+            if (wordKey != CompiledTrie.NONE && (next = trie.child(node, wordKey)) != CompiledTrie.NONE) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition + 1, context);
+            }
+            if (trie.hasEnd(node)) {
+                addCompiledDeterminants(node, context, begins[matchBegin], ends[matchEnd == -1 ? currentPosition - 1 : matchEnd]);
+            }
+            int tokenId = tokenIds[currentPosition];
+            if (tokenId != CompiledTrie.NONE && (next = trie.child(node, tokenId)) != CompiledTrie.NONE) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition + 1, context);
+            }
+            if (digitKey != CompiledTrie.NONE && (next = trie.child(node, digitKey)) != CompiledTrie.NONE
+                    && context.numericTokens[currentPosition]) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition + 1, context);
+            }
+            if (groupBeginKey != CompiledTrie.NONE && (next = trie.child(node, groupBeginKey)) != CompiledTrie.NONE) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, currentPosition, matchEnd, currentPosition, context);
+            }
+            if (groupEndKey != CompiledTrie.NONE && (next = trie.child(node, groupEndKey)) != CompiledTrie.NONE) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, currentPosition - 1, currentPosition, context);
+            }
+        } else if (currentPosition == to && trie.hasEnd(node)) {
+            matchEnd = matchEnd == -1 ? currentPosition - 1 : matchEnd;
+            addCompiledDeterminants(node, context, begins[matchBegin], ends[matchEnd]);
+        }
+    }
+
+    /**
+     * The choice of addDeterminant: the span compare methods decide, also for a match within the kept one.
+     */
+    public boolean preferMatch(int ruleId, int begin, int end, int keptRuleId, int keptBegin, int keptEnd) {
+        return compareMatches(ruleId, begin, end, keptRuleId, keptBegin, keptEnd) > 0;
+    }
+
+    /**
+     * addDeterminant finds the kept match that a match overlaps through an interval tree.
+     */
+    protected boolean checksLastMatchOnly() {
+        return false;
+    }
+
+    protected void addDeterminant(int conceptId, int ruleId, MatchContext context, int matchBegin, int matchEnd) {
+        if (context.candidates != null) {
+            super.addDeterminant(conceptId, ruleId, context, matchBegin, matchEnd);
+            return;
+        }
 //          claim as Span instance, to be compatible with old methods
-            int ruleId = deterRule.get(key);
-            boolean contain = ruleLengths.containsKey(ruleId);
-            contain = ruleStore.containsKey(ruleId);
-            currentSpan = new NERSpan(matchBegin, matchEnd, ruleId, ruleLengths.get(ruleId), ruleStore.get(ruleId).score, "");
-            ((NERSpan) currentSpan).setCompareMethod(spanCompareMethod);
-            ((NERSpan) currentSpan).setWidthCompareMethod(widthCompareMethod);
+        Span currentSpan;
+        ArrayList<Span> currentSpanList = context.getSpans(conceptId);
+        MetricsRegistry metrics = this.metrics;
+        if (metrics != null)
+            metrics.recordMatch(ruleId);
+        currentSpan = new NERSpan(matchBegin, matchEnd, ruleId, ruleLengths[ruleId], ruleScores[ruleId], "");
+        ((NERSpan) currentSpan).setCompareMethod(spanCompareMethod);
+        ((NERSpan) currentSpan).setWidthCompareMethod(widthCompareMethod);
+        if (logger.isLoggable(Level.FINEST))
             logger.finest(getRule(currentSpan.ruleId).toString());
-            if (matches.containsKey((String) key)) {
+        IntervalST<Integer> overlapChecker = context.getOverlapChecker(conceptId);
 //              because the ruleStore are all processed at the same time from the input left to the input right,
 //                it becomes more efficient to compare the overlaps
-                currentSpanList = matches.get((String) key);
-                IntervalST<Integer> overlapChecker = overlapCheckers.get(key);
-                Object overlappedPos = overlapChecker.get(new Interval1D(currentSpan.begin, currentSpan.end - 1));
-                if (overlappedPos != null) {
-                    int pos = (int) overlappedPos;
-                    Span overlappedSpan = currentSpanList.get(pos);
-                    if (logger.isLoggable(Level.FINEST))
-                        logger.finest("\t\tOverlapped with: " + overlappedSpan.begin + ", " + overlappedSpan.end + "\t" );
+        Object overlappedPos = currentSpanList.isEmpty() ? null : overlapChecker.get(new Interval1D(currentSpan.begin, currentSpan.end - 1));
+        if (overlappedPos != null) {
+            int pos = (int) overlappedPos;
+            Span overlappedSpan = currentSpanList.get(pos);
+            if (logger.isLoggable(Level.FINEST))
+                logger.finest("\t\tOverlapped with: " + overlappedSpan.begin + ", " + overlappedSpan.end + "\t" );
 //                                text.substring(overlappedSpan.begin - offset, overlappedSpan.end - offset));
-                    if (((NERSpan) currentSpan).compareTo((NERSpan) overlappedSpan) <=0) {
-                        if (logger.isLoggable(Level.FINEST))
-                            logger.finest("\t\tSkip this span ...");
-                        continue;
-                    }
-                    currentSpanList.set(pos, currentSpan);
-                    overlapChecker.remove(new Interval1D(overlappedSpan.begin, overlappedSpan.end - 1));
-                    overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), pos);
-                } else {
-                    overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), currentSpanList.size());
-                    currentSpanList.add(currentSpan);
-                }
-
-
-            } else {
-                currentSpanList = new ArrayList<Span>();
-                currentSpanList.add(currentSpan);
-                IntervalST<Integer> overlapChecker = new IntervalST<Integer>();
-                overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), 0);
-                overlapCheckers.put((String) key, overlapChecker);
+            if (((NERSpan) currentSpan).compareTo((NERSpan) overlappedSpan) <=0) {
+                if (logger.isLoggable(Level.FINEST))
+                    logger.finest("\t\tSkip this span ...");
+                if (metrics != null)
+                    metrics.recordOverlap(overlappedSpan.ruleId, ruleId);
+                return;
             }
-            matches.put((String) key, currentSpanList);
+            if (metrics != null)
+                metrics.recordOverlap(ruleId, overlappedSpan.ruleId);
+            currentSpanList.set(pos, currentSpan);
+            overlapChecker.remove(new Interval1D(overlappedSpan.begin, overlappedSpan.end - 1));
+            overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), pos);
+        } else {
+            overlapChecker.put(new Interval1D(currentSpan.begin, currentSpan.end - 1), currentSpanList.size());
+            currentSpanList.add(currentSpan);
         }
     }
 
@@ -18,12 +18,16 @@ package edu.utah.bmi.nlp.fastner;
 import edu.utah.bmi.nlp.core.NERRule;
 import edu.utah.bmi.nlp.core.Rule;
 import edu.utah.bmi.nlp.core.Span;
-import edu.utah.bmi.nlp.fastcner.UnicodeChecker;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.function.BiFunction;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>
@@ -35,6 +39,14 @@ import java.util.function.BiFunction;
  */
 public class FastRuleWGN extends FastRuleWG {
 //    fields are defined in abstract class
+    protected int greaterKey = CompiledTrie.NONE, lessKey = CompiledTrie.NONE;
+    //  the sorted thresholds under the "\\>" and "\\<" nodes of rulesMap, indexed for all the nodes at once when a
+    //  first node is visited. The map is not edited after it is published, so that the processing threads can read it
+    //  without locking, and it is dropped when the rulesMap is edited (null until a node is visited).
+    protected volatile IdentityHashMap<HashMap, NumericThresholds> numericThresholds;
+    //  the sorted thresholds under the "\\>" and "\\<" nodes of compiledTrie, indexed by node id when compiled
+    //  (null for the other nodes)
+    protected NumericThresholds[] compiledThresholds = new NumericThresholds[0];
 
 
     public FastRuleWGN() {
@@ -56,95 +68,327 @@ public class FastRuleWGN extends FastRuleWG {
         super(ruleStore);
     }
 
-    protected void process(ArrayList<?> contextTokens,
-                           BiFunction<ArrayList, Integer, String> getText,
-                           BiFunction<ArrayList, Integer, Integer> getBegin,
-                           BiFunction<ArrayList, Integer, Integer> getEnd,
+    protected void process(String[] texts, int[] begins, int[] ends, int to,
                            HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                           HashMap<String, ArrayList<Span>> matches) {
+                           MatchContext context) {
+        context.visitedNodes++;
         // when reach the end of the tunedcontext, end the iteration
-        if (currentPosition < contextTokens.size()) {
+        if (currentPosition < to) {
             // start processing the tunedcontext tokens
-            String thisToken = getText.apply(contextTokens, currentPosition);
+            String thisToken = texts[currentPosition];
 //			System.out.println("thisToken-"+thisToken);
             if (rule.containsKey("\\w+")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\w+"),
-                        matchBegin, matchEnd, currentPosition + 1, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\w+"),
+                        matchBegin, matchEnd, currentPosition + 1, context);
             }
             // if the end of a rule is met
             if (rule.containsKey(END)) {
                 // if no () is used in this definition, use the whole rule string
-                addDeterminants(rule, matches, getBegin.apply(contextTokens, matchBegin),
-                        getEnd.apply(contextTokens, (matchEnd == -1 ? currentPosition - 1 : matchEnd)));
+                addDeterminants(rule, context, begins[matchBegin],
+                        ends[matchEnd == -1 ? currentPosition - 1 : matchEnd]);
             }
             // if the current token match the element of a rule
             if (rule.containsKey(thisToken)) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get(thisToken),
-                        matchBegin, matchEnd, currentPosition + 1, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get(thisToken),
+                        matchBegin, matchEnd, currentPosition + 1, context);
             }
-            if (rule.containsKey("\\d+") && UnicodeChecker.isNumber(thisToken)) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\d+"),
-                        matchBegin, matchEnd, currentPosition + 1, matches);
+            if (rule.containsKey("\\d+") && context.numericTokens[currentPosition]) {
+                process(texts, begins, ends, to, (HashMap) rule.get("\\d+"),
+                        matchBegin, matchEnd, currentPosition + 1, context);
             }
             if (rule.containsKey("\\(")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\("),
-                        currentPosition, matchEnd, currentPosition, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\("),
+                        currentPosition, matchEnd, currentPosition, context);
             }
             if (rule.containsKey("\\)")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\)"),
-                        matchBegin, currentPosition - 1, currentPosition, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\)"),
+                        matchBegin, currentPosition - 1, currentPosition, context);
             }
-            if (rule.containsKey("\\>") && UnicodeChecker.isNumber(thisToken)) {
-                processNumerics(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\>"),
-                        matchBegin, matchEnd, currentPosition, matches,
-                        thisToken, true);
+            if (rule.containsKey("\\>") && context.numericTokens[currentPosition]) {
+                processNumerics(texts, begins, ends, to, (HashMap) rule.get("\\>"),
+                        matchBegin, matchEnd, currentPosition, context, true);
             }
-            if (rule.containsKey("\\<") && UnicodeChecker.isNumber(thisToken)) {
-                processNumerics(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\<"),
-                        matchBegin, matchEnd, currentPosition, matches,
-                        thisToken, false);
+            if (rule.containsKey("\\<") && context.numericTokens[currentPosition]) {
+                processNumerics(texts, begins, ends, to, (HashMap) rule.get("\\<"),
+                        matchBegin, matchEnd, currentPosition, context, false);
             }
-        } else if (currentPosition == contextTokens.size() && rule.containsKey(END)) {
+        } else if (currentPosition == to && rule.containsKey(END)) {
             // if no () is used in this definition, use the whole rule string
             matchEnd = matchEnd == -1 ? currentPosition - 1 : matchEnd;
-            addDeterminants(rule, matches, getBegin.apply(contextTokens, matchBegin), getEnd.apply(contextTokens, matchEnd));
+            addDeterminants(rule, context, begins[matchBegin], ends[matchEnd]);
         }
     }
 
-    protected void processNumerics(ArrayList<?> contextTokens,
-                                   BiFunction<ArrayList, Integer, String> getText,
-                                   BiFunction<ArrayList, Integer, Integer> getBegin,
-                                   BiFunction<ArrayList, Integer, Integer> getEnd,
+    /**
+     * Try the thresholds of a "\\>" or "\\<" node that the number of the current token passes. The thresholds are
+     * sorted, so that the passed ones are found by a binary search, and are tried from the smallest to the largest.
+     */
+    protected void processNumerics(String[] texts, int[] begins, int[] ends, int to,
                                    HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                                   HashMap<String, ArrayList<Span>> matches, String numericToken, boolean greaterThan) {
-        Double num = NumberUtils.createDouble(numericToken.trim());
-        for (Object ruleValue : rule.keySet()) {
-            Double ruleNumValue = NumberUtils.createDouble((String) ruleValue);
-            if (greaterThan && num > ruleNumValue) {
+                                   MatchContext context, boolean greaterThan) {
+        double num = context.tokenNumbers[currentPosition];
+        if (Double.isNaN(num))
+            return;
+        NumericThresholds thresholds = getNumericThresholds(rule);
+        int first = greaterThan ? 0 : thresholds.upperBound(num);
+        int last = greaterThan ? thresholds.lowerBound(num) : thresholds.values.length;
+        for (int i = first; i < last; i++) {
+            HashMap valueRule = thresholds.rules[i];
+            if (greaterThan) {
 //                if has a rule like "\> 3 \< 4"
-                if (((HashMap) rule.get(ruleValue)).containsKey("\\<")) {
-                    processNumerics(contextTokens, getText, getBegin, getEnd, (HashMap) ((HashMap) rule.get(ruleValue)).get("\\<"),
-                            matchBegin, matchEnd, currentPosition, matches,
-                            numericToken, false);
+                if (valueRule.containsKey("\\<")) {
+                    processNumerics(texts, begins, ends, to, (HashMap) valueRule.get("\\<"),
+                            matchBegin, matchEnd, currentPosition, context, false);
                 }
+            } else {
+                //                if has a rule like "\< 6 \> 4"
+                if (valueRule.containsKey("\\>")) {
+                    processNumerics(texts, begins, ends, to, (HashMap) valueRule.get("\\>"),
+                            matchBegin, matchEnd, currentPosition, context, true);
+                }
+            }
 //                if followed by ordinary rule elements
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get(ruleValue),
-                        matchBegin, matchEnd, currentPosition + 1, matches);
+            process(texts, begins, ends, to, valueRule,
+                    matchBegin, matchEnd, currentPosition + 1, context);
+        }
+    }
+
+    /**
+     * @param rule a "\\>" or "\\<" node of rulesMap
+     * @return the thresholds of the node, which are parsed and sorted at the first visit
+     */
+    protected NumericThresholds getNumericThresholds(HashMap rule) {
+        IdentityHashMap<HashMap, NumericThresholds> cache = numericThresholds;
+        if (cache == null) {
+            cache = new IdentityHashMap<>();
+            indexNumericThresholds(rulesMap, cache, Collections.newSetFromMap(new IdentityHashMap<>()));
+            numericThresholds = cache;
+        }
+        NumericThresholds thresholds = cache.get(rule);
+//      a node that is not reachable from rulesMap is not cached
+        return thresholds == null ? new NumericThresholds(rule) : thresholds;
+    }
 
-            } else if (!greaterThan && num < ruleNumValue) {
+    /**
+     * Parse the thresholds of all the "\\>" and "\\<" nodes below a node of rulesMap in one pass.
+     *
+     * @param rule    a node of rulesMap
+     * @param cache   receives the thresholds of the numeric nodes
+     * @param visited the nodes that have been walked, as a node can be shared by several parents
+     */
+    protected void indexNumericThresholds(HashMap rule, IdentityHashMap<HashMap, NumericThresholds> cache, Set<HashMap> visited) {
+        if (!visited.add(rule))
+            return;
+        for (Object entry : rule.entrySet()) {
+            Map.Entry ent = (Map.Entry) entry;
+            if (!(ent.getValue() instanceof HashMap))
+                continue;
+            HashMap child = (HashMap) ent.getValue();
+            if (("\\>".equals(ent.getKey()) || "\\<".equals(ent.getKey())) && !cache.containsKey(child))
+                cache.put(child, new NumericThresholds(child));
+            indexNumericThresholds(child, cache, visited);
+        }
+    }
+
+    /**
+     * Parse the numbers of the tokens once per call, in addition to the numeric flags.
+     */
+    protected void indexTokens(String[] texts, int from, int to, MatchContext context) {
+        super.indexTokens(texts, from, to, context);
+        if (context.tokenNumbers.length < to)
+            context.tokenNumbers = new double[to];
+        for (int i = from; i < to; i++) {
+            context.tokenNumbers[i] = context.numericTokens[i] ? parseNumber(texts[i].trim()) : Double.NaN;
+        }
+    }
+
+    protected void putRule(Rule rule) {
+        clearNumericThresholds();
+        super.putRule(rule);
+    }
+
+    protected void removeRule(int ruleId) {
+        clearNumericThresholds();
+        super.removeRule(ruleId);
+    }
+
+    protected void clearNumericThresholds() {
+        numericThresholds = null;
+    }
+
+    protected void addStartToken(StartIndex index, Object key) {
+//      a numeric comparison only matches a number
+        if ("\\>".equals(key) || "\\<".equals(key))
+            index.numbers = true;
+        else
+            super.addStartToken(index, key);
+    }
+
+    protected void initiateCompiledKeys() {
+        super.initiateCompiledKeys();
+        greaterKey = tokenKey("\\>");
+        lessKey = tokenKey("\\<");
+        CompiledTrie trie = compiledTrie;
+        NumericThresholds[] thresholds = new NumericThresholds[trie.getNodeCount()];
+        if (greaterKey != CompiledTrie.NONE || lessKey != CompiledTrie.NONE) {
+            for (int node = 0; node < thresholds.length; node++) {
+                for (int i = trie.childBegin(node); i < trie.childEnd(node); i++) {
+                    int key = trie.childKey(i), child = trie.childNode(i);
+                    if ((key == greaterKey || key == lessKey) && thresholds[child] == null)
+                        thresholds[child] = new NumericThresholds(trie, child, vocabularyTokens);
+                }
+            }
+        }
+        compiledThresholds = thresholds;
+    }
+
+    protected void processCompiled(String[] texts, int[] tokenIds, int[] begins, int[] ends, int to,
+                                   int node, int matchBegin, int matchEnd, int currentPosition,
+                                   MatchContext context) {
+        super.processCompiled(texts, tokenIds, begins, ends, to, node, matchBegin, matchEnd, currentPosition, context);
+        if (currentPosition < to) {
+            CompiledTrie trie = compiledTrie;
+            int next;
+            if (greaterKey != CompiledTrie.NONE && (next = trie.child(node, greaterKey)) != CompiledTrie.NONE
+                    && context.numericTokens[currentPosition]) {
+                processCompiledNumerics(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition, context,
+                        true);
+            }
+            if (lessKey != CompiledTrie.NONE && (next = trie.child(node, lessKey)) != CompiledTrie.NONE
+                    && context.numericTokens[currentPosition]) {
+                processCompiledNumerics(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition, context,
+                        false);
+            }
+        }
+    }
+
+    protected void processCompiledNumerics(String[] texts, int[] tokenIds, int[] begins, int[] ends, int to,
+                                           int node, int matchBegin, int matchEnd, int currentPosition,
+                                           MatchContext context, boolean greaterThan) {
+        CompiledTrie trie = compiledTrie;
+        double num = context.tokenNumbers[currentPosition];
+        if (Double.isNaN(num))
+            return;
+        NumericThresholds thresholds = compiledThresholds[node];
+        int first = greaterThan ? 0 : thresholds.upperBound(num);
+        int last = greaterThan ? thresholds.lowerBound(num) : thresholds.values.length;
+        for (int i = first; i < last; i++) {
+            int valueNode = thresholds.nodes[i];
+            int next;
+            if (greaterThan) {
+//                if has a rule like "\> 3 \< 4"
+                if (lessKey != CompiledTrie.NONE && (next = trie.child(valueNode, lessKey)) != CompiledTrie.NONE) {
+                    processCompiledNumerics(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition, context,
+                            false);
+                }
+            } else {
                 //                if has a rule like "\< 6 \> 4"
-                if (((HashMap) rule.get(ruleValue)).containsKey("\\>")) {
-                    processNumerics(contextTokens, getText, getBegin, getEnd, (HashMap) ((HashMap) rule.get(ruleValue)).get("\\>"),
-                            matchBegin, matchEnd, currentPosition, matches,
-                            numericToken, true);
+                if (greaterKey != CompiledTrie.NONE && (next = trie.child(valueNode, greaterKey)) != CompiledTrie.NONE) {
+                    processCompiledNumerics(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition, context,
+                            true);
                 }
+            }
 //                if followed by ordinary rule elements
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get(ruleValue),
-                        matchBegin, matchEnd, currentPosition + 1, matches);
+            processCompiled(texts, tokenIds, begins, ends, to, valueNode, matchBegin, matchEnd, currentPosition + 1, context);
+        }
+    }
 
-            }
+    /**
+     * @param number a number token or a rule threshold
+     * @return the value of the number, or NaN if it cannot be parsed (e.g. a hexadecimal number)
+     */
+    protected static double parseNumber(String number) {
+        try {
+            return NumberUtils.createDouble(number);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
         }
     }
 
+    /**
+     * The thresholds under a "\\>" or "\\<" node, parsed once and sorted by their values, with their child nodes
+     * (HashMaps of rulesMap, or node ids of compiledTrie). The thresholds that cannot be parsed never match.
+     */
+    protected static class NumericThresholds {
+        protected double[] values;
+        protected HashMap[] rules;
+        protected int[] nodes;
+
+        protected NumericThresholds(HashMap rule) {
+            ArrayList<Object> keys = new ArrayList<>();
+            ArrayList<Double> keyValues = new ArrayList<>();
+            for (Object key : rule.keySet()) {
+                double value = key instanceof String ? parseNumber((String) key) : Double.NaN;
+                if (!Double.isNaN(value)) {
+                    keys.add(key);
+                    keyValues.add(value);
+                }
+            }
+            Integer[] order = sort(keyValues);
+            values = new double[order.length];
+            rules = new HashMap[order.length];
+            for (int i = 0; i < order.length; i++) {
+                values[i] = keyValues.get(order[i]);
+                rules[i] = (HashMap) rule.get(keys.get(order[i]));
+            }
+        }
+
+        protected NumericThresholds(CompiledTrie trie, int node, ArrayList<String> vocabularyTokens) {
+            ArrayList<Integer> children = new ArrayList<>();
+            ArrayList<Double> keyValues = new ArrayList<>();
+            for (int i = trie.childBegin(node); i < trie.childEnd(node); i++) {
+                double value = parseNumber(vocabularyTokens.get(trie.childKey(i)));
+                if (!Double.isNaN(value)) {
+                    children.add(trie.childNode(i));
+                    keyValues.add(value);
+                }
+            }
+            Integer[] order = sort(keyValues);
+            values = new double[order.length];
+            nodes = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                values[i] = keyValues.get(order[i]);
+                nodes[i] = children.get(order[i]);
+            }
+        }
+
+        protected static Integer[] sort(ArrayList<Double> keyValues) {
+            Integer[] order = new Integer[keyValues.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(keyValues::get));
+            return order;
+        }
+
+        /**
+         * @return the index of the first threshold that is not less than num
+         */
+        protected int lowerBound(double num) {
+            int low = 0, high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < num)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
 
+        /**
+         * @return the index of the first threshold that is greater than num
+         */
+        protected int upperBound(double num) {
+            int low = 0, high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] <= num)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+    }
 }
@@ -22,11 +22,18 @@ import edu.utah.bmi.nlp.core.Span;
 import edu.utah.bmi.nlp.fastcner.UnicodeChecker;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.function.BiFunction;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 import static edu.utah.bmi.nlp.core.NERSpan.byRuleLength;
+import static edu.utah.bmi.nlp.core.NERSpan.byStrWidth;
+import static edu.utah.bmi.nlp.core.NERSpan.scoreOnly;
 import static edu.utah.bmi.nlp.core.NERSpan.scorewidth;
+import static edu.utah.bmi.nlp.core.NERSpan.widthscore;
 
 /**
  * This is a class extended from FastRule, which apply the full rule as a match (does not consider group capturing)
@@ -36,9 +43,17 @@ import static edu.utah.bmi.nlp.core.NERSpan.scorewidth;
 @SuppressWarnings("rawtypes")
 public class FastRuleWOG extends FastRule {
     //    fields are defined in abstract class
-    protected HashMap<Integer, Integer> ruleLengths = new HashMap<Integer, Integer>();
+    //  number of tokens of each rule, indexed by rule ids
+    protected int[] ruleLengths = new int[0];
     protected String spanCompareMethod = scorewidth;
     protected String widthCompareMethod = byRuleLength;
+    //  compiled trie keys of the wildcards
+    protected int wordKey = CompiledTrie.NONE, digitKey = CompiledTrie.NONE;
+    //  the lowercase forms of the capitalized tokens that have been folded, shared by the calls and the updated versions
+    //  of the rules (null if the tokens are matched as they are)
+    protected ConcurrentHashMap<String, String> foldedTokens;
+    //  stop caching the folded tokens beyond this size, e.g. for the rare capitalized tokens of a large corpus
+    protected static final int MAX_FOLDED_TOKENS = 1 << 16;
 
     public FastRuleWOG() {
     }
@@ -63,6 +78,24 @@ public class FastRuleWOG extends FastRule {
         this.widthCompareMethod = widthCompareMethod;
     }
 
+    /**
+     * Match the tokens case-insensitively against lowercased rules, so that the callers do not need to lowercase a copy
+     * of the text or of each token. A capitalized token is looked up by its lowercase form, which is cached, so that
+     * the same token does not create a new String on every call.
+     *
+     * @param caseFolding true: fold the tokens to lowercase while matching
+     */
+    public void setCaseFolding(boolean caseFolding) {
+        if (!caseFolding)
+            foldedTokens = null;
+        else if (foldedTokens == null)
+            foldedTokens = new ConcurrentHashMap<>();
+    }
+
+    public boolean isCaseFolding() {
+        return foldedTokens != null;
+    }
+
     protected boolean addRule(Rule rule) {
         // use to store the HashMap sub-chain that have the key chain that meet
         // the rule[]
@@ -71,7 +104,7 @@ public class FastRuleWOG extends FastRule {
         HashMap rule2 = new HashMap();
         HashMap rule_t;
         String[] ruleContent = rule.rule.split("\\s+");
-        ruleLengths.put(rule.id, ruleContent.length);
+        ruleLengths[rule.id] = ruleContent.length;
         int length = ruleContent.length;
         int i = 0;
         rules_tmp.add(rulesMap);
@@ -84,18 +117,19 @@ public class FastRuleWOG extends FastRule {
             return false;
         // start with the determinant, construct the last descendant HashMap
         // <Determinant, null>
+        Integer conceptId = ruleConcepts[rule.id];
         if (i == length) {
             if (rule1.containsKey(END)) {
-                ((HashMap) rule1.get(END)).put(rule.ruleName, rule.id);
+                ((HashMap) rule1.get(END)).put(conceptId, rule.id);
             } else {
-                rule2.put(rule.ruleName, rule.id);
+                rule2.put(conceptId, rule.id);
                 rule1.put(END, rule2.clone());
             }
             return true;
         } else {
-            rule2.put(rule.ruleName, rule.id);
+            rule2.put(conceptId, rule.id);
             rule2.put(END, rule2.clone());
-            rule2.remove(rule.ruleName);
+            rule2.remove(conceptId);
             // filling the HashMap chain which ruleStore doesn't have the key chain
             for (int j = length - 1; j > i; j--) {
                 rule_t = (HashMap) rule2.clone();
@@ -107,123 +141,556 @@ public class FastRuleWOG extends FastRule {
         return true;
     }
 
-    public HashMap<String, ArrayList<Span>> processTokens(ArrayList<String> contextTokens) {
-        // use the first "startposition" to remember the original start matching
-        // position.
-        // use the 2nd one to remember the start position in which recursion.
-        HashMap<String, ArrayList<Span>> matches = new HashMap<String, ArrayList<Span>>();
-        for (int i = 0; i < contextTokens.size(); i++) {
-            // System.out.println(contextTokens.get(i));
-            processTokens(contextTokens, rulesMap, i, -1, i, matches);
+    protected void indexRules() {
+        ruleLengths = new int[0];
+        super.indexRules();
+    }
+
+    protected void ensureRuleCapacity(int capacity) {
+        super.ensureRuleCapacity(capacity);
+        if (ruleLengths.length < capacity)
+            ruleLengths = Arrays.copyOf(ruleLengths, capacity);
+    }
+
+    protected FastRule copyForUpdate() {
+        FastRuleWOG copy = (FastRuleWOG) super.copyForUpdate();
+        copy.ruleLengths = ruleLengths.clone();
+        return copy;
+    }
+
+    protected void addRuleMetadata(Rule rule) {
+        ruleLengths[rule.id] = rule.rule.split("\\s+").length;
+    }
+
+    protected void addAlternationMetadata(Rule rule, List<Object[][]> segments) {
+//      the length of the last expanded rule, as if the rule were expanded by expandSB
+        int length = 0;
+        for (Object[][] alternatives : segments) {
+            length += alternatives[alternatives.length - 1].length;
         }
-        if (removePseudo)
-            removePseudoMatches(matches);
-        return matches;
+        ruleLengths[rule.id] = length;
     }
 
+    protected void initiateCompiledKeys() {
+        super.initiateCompiledKeys();
+        wordKey = tokenKey("\\w+");
+        digitKey = tokenKey("\\d+");
+    }
+
+    public HashMap<String, ArrayList<Span>> processTokens(ArrayList<String> contextTokens) {
+        return processTokens(contextTokens.toArray(new String[0]));
+    }
 
-    protected void processTokens(ArrayList<String> contextTokens, HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                                 HashMap<String, ArrayList<Span>> matches) {
-        process(contextTokens, getStringText, getBeginId, getEndId,
-                rule, matchBegin, matchEnd, currentPosition, matches);
+    /**
+     * @param tokens input tokens
+     * @return matched spans, where the begins and ends are token indices (the end is inclusive)
+     */
+    public HashMap<String, ArrayList<Span>> processTokens(String[] tokens) {
+        int[] ids = new int[tokens.length];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = i;
+        return processTokens(tokens, ids, ids);
     }
 
     public HashMap<String, ArrayList<Span>> processSpans(ArrayList<Span> contextTokens) {
-        // use the first "startposition" to remember the original start matching
-        // position.
-        // use the 2nd one to remember the start position in which recursion.
-        HashMap<String, ArrayList<Span>> matches = new HashMap<String, ArrayList<Span>>();
-        for (int i = 0; i < contextTokens.size(); i++) {
-//            System.out.println(contextTokens.get(i));
-            processSpans(contextTokens, rulesMap, i, -1, i, matches);
+        int size = contextTokens.size();
+        String[] texts = new String[size];
+        int[] begins = new int[size], ends = new int[size];
+        for (int i = 0; i < size; i++) {
+            Span token = contextTokens.get(i);
+            texts[i] = token.text;
+            begins[i] = token.begin;
+            ends[i] = token.end;
         }
-        if (removePseudo)
-            removePseudoMatches(matches);
-        return matches;
+        return processTokens(texts, begins, ends);
     }
 
+    /**
+     * Process tokens stored in parallel arrays, so that no accessor or boxing is needed while matching.
+     *
+     * @param texts  token strings
+     * @param begins begin offsets of the tokens
+     * @param ends   end offsets of the tokens
+     * @return matched spans
+     */
+    public HashMap<String, ArrayList<Span>> processTokens(String[] texts, int[] begins, int[] ends) {
+        return processTokens(texts, begins, ends, 0, texts.length);
+    }
+
+    /**
+     * Process a contiguous range of the token arrays, which is walked in place.
+     *
+     * @param texts  token strings
+     * @param begins begin offsets of the tokens
+     * @param ends   end offsets of the tokens
+     * @param from   the first token of the range
+     * @param to     the end of the range (exclusive)
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processTokens(String[] texts, int[] begins, int[] ends, int from, int to) {
+        MatchContext context = new MatchContext();
+        matchTokens(texts, null, begins, ends, from, to, context);
+        return collectMatches(context);
+    }
+
+    /**
+     * Map the tokens to the ids of the rule vocabulary, e.g. once per document, so that the following calls of
+     * processTokenIds do not hash the token strings again. The ids belong to this instance: a compacted or rebuilt
+     * version of the rules may assign other ids.
+     *
+     * @param texts token texts
+     * @return the vocabulary ids of the tokens (CompiledTrie.NONE if no rule uses a token),
+     * or null if the rules are not compiled
+     */
+    public int[] tokenIds(String[] texts) {
+        if (compiledTrie == null)
+            return null;
+        return tokenKeys(foldedTokens == null ? texts : foldTokens(texts));
+    }
+
+    /**
+     * Process a contiguous range of the token arrays, whose vocabulary ids have been looked up by tokenIds.
+     *
+     * @param texts    token strings
+     * @param tokenIds the ids returned by tokenIds of this instance (null if the rules are not compiled)
+     * @param begins   begin offsets of the tokens
+     * @param ends     end offsets of the tokens
+     * @param from     the first token of the range
+     * @param to       the end of the range (exclusive)
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processTokenIds(String[] texts, int[] tokenIds, int[] begins, int[] ends,
+                                                            int from, int to) {
+        MatchContext context = new MatchContext();
+        matchTokens(texts, tokenIds, begins, ends, from, to, context);
+        return collectMatches(context);
+    }
+
+    /**
+     * Process a contiguous range of the token arrays through a reusable context, e.g. one context for all the
+     * sentences of a document, whose token buffers are then only allocated once.
+     *
+     * @param texts    token strings
+     * @param tokenIds the ids returned by tokenIds of this instance (null if the rules are not compiled)
+     * @param begins   begin offsets of the tokens
+     * @param ends     end offsets of the tokens
+     * @param from     the first token of the range
+     * @param to       the end of the range (exclusive)
+     * @param context  a MatchContext, which is reset before processing
+     * @return matched results
+     */
+    public HashMap<String, ArrayList<Span>> processTokenIds(String[] texts, int[] tokenIds, int[] begins, int[] ends,
+                                                            int from, int to, MatchContext context) {
+        context.reset(0);
+        matchTokens(texts, tokenIds, begins, ends, from, to, context);
+        return getMatches(context);
+    }
 
-    protected void processSpans(ArrayList<Span> contextTokens,
-                                HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                                HashMap<String, ArrayList<Span>> matches) {
-        process(contextTokens, getSpanText, getSpanBegin, getSpanEnd,
-                rule, matchBegin, matchEnd, currentPosition, matches);
+    /**
+     * Process tokens stored in parallel arrays, and pass the final matches to a sink instead of returning them.
+     * The context is reset before processing, so a caller can reuse one context (per thread) for many calls.
+     *
+     * @param texts   token strings
+     * @param begins  begin offsets of the tokens
+     * @param ends    end offsets of the tokens
+     * @param context a reusable MatchContext
+     * @param sink    receives the matches
+     */
+    public void processTokens(String[] texts, int[] begins, int[] ends, MatchContext context, MatchSink sink) {
+        context.reset(0);
+        matchTokens(texts, null, begins, ends, 0, texts.length, context);
+        emitMatches(context, sink);
     }
 
+    /**
+     * Process tokens stored in parallel arrays through a reusable context, e.g. MatchContext.forThread().
+     *
+     * @param texts   token strings
+     * @param begins  begin offsets of the tokens
+     * @param ends    end offsets of the tokens
+     * @param context a MatchContext, which is reset before processing
+     * @return matched spans, created from the pooled matches if the context is pooled
+     */
+    public HashMap<String, ArrayList<Span>> processTokens(String[] texts, int[] begins, int[] ends, MatchContext context) {
+        context.reset(0);
+        matchTokens(texts, null, begins, ends, 0, texts.length, context);
+        return getMatches(context);
+    }
+
+    /**
+     * @param tokenIds the vocabulary ids of the tokens, or null to look them up here
+     * @param from     the first token of the processed range
+     * @param to       the end of the processed range (exclusive)
+     */
+    protected void matchTokens(String[] texts, int[] tokenIds, int[] begins, int[] ends, int from, int to,
+                               MatchContext context) {
+        MetricsRegistry metrics = this.metrics;
+        if (metrics == null) {
+            walkTokens(texts, tokenIds, begins, ends, from, to, context);
+            return;
+        }
+        long start = System.nanoTime(), visitedNodes = context.visitedNodes;
+        walkTokens(texts, tokenIds, begins, ends, from, to, context);
+        long nanos = System.nanoTime() - start;
+        int chars = 0;
+        for (int i = from; i < to; i++)
+            chars += texts[i].length();
+        metrics.recordCall(nanos, chars, to - from, context.visitedNodes - visitedNodes);
+    }
+
+    /**
+     * Walk the rules over the tokens from (inclusive) to to (exclusive) of the arrays, which are read in place: the
+     * positions of the walk are the indices of the arrays, and a rule cannot match beyond to.
+     */
+    protected void walkTokens(String[] texts, int[] tokenIds, int[] begins, int[] ends, int from, int to,
+                              MatchContext context) {
+        if (foldedTokens != null)
+            texts = foldTokens(texts, from, to, context);
+        indexTokens(texts, from, to, context);
+        StartIndex index = getStartIndex();
+        int first = from;
+//      skip the sentence if no rule can begin at any of its tokens
+        while (first < to && !index.canStart(texts[first], context.numericTokens[first]))
+            first++;
+        if (first == to)
+            return;
+        if (compiledTrie != null && tokenIds == null)
+            tokenIds = tokenKeys(texts, from, to, context);
+        OverlapResolver resolver = resolverOf(context);
+        if (resolver != null)
+            context.startCandidates();
+        if (compiledTrie != null && rulesMap.isEmpty() && index.any) {
+            processCompiled(texts, tokenIds, begins, ends, from, to, context);
+        } else {
+            // use the first "startposition" to remember the original start matching
+            // position.
+            // use the 2nd one to remember the start position in which recursion.
+            for (int i = first; i < to; i++) {
+                if (!index.canStart(texts[i], context.numericTokens[i]))
+                    continue;
+//              the rulesMap holds the rules added by updateRules after the rules were compiled, which are tried at
+//              the same begin position, so that the matches are still added from left to right
+                if (tokenIds != null)
+                    processCompiled(texts, tokenIds, begins, ends, to, CompiledTrie.ROOT, i, -1, i, context);
+                if (compiledTrie == null || !rulesMap.isEmpty())
+                    process(texts, begins, ends, to, rulesMap, i, -1, i, context);
+            }
+        }
+        if (resolver != null)
+            resolveCandidates(resolver, context);
+    }
+
+
+    protected StartIndex buildStartIndex() {
+        StartIndex index = new StartIndex();
+        addStartTokens(index, rulesMap);
+        if (compiledTrie != null)
+            addStartTokens(index, compiledTrie, CompiledTrie.ROOT);
+        return index;
+    }
+
+    protected void addStartTokens(StartIndex index, HashMap rule) {
+        for (Object key : rule.keySet()) {
+            if (isGroupBegin(key))
+                addStartTokens(index, (HashMap) rule.get(key));
+            addStartToken(index, key);
+        }
+    }
+
+    protected void addStartTokens(StartIndex index, CompiledTrie trie, int node) {
+        if (trie.hasEnd(node))
+            index.any = true;
+        for (int i = trie.childBegin(node); i < trie.childEnd(node); i++) {
+            String key = vocabularyTokens.get(trie.childKey(i));
+            if (isGroupBegin(key))
+                addStartTokens(index, trie, trie.childNode(i));
+            addStartToken(index, key);
+        }
+    }
+
+    /**
+     * @param key a first level key of the rules
+     */
+    protected void addStartToken(StartIndex index, Object key) {
+        if (isGroupBegin(key)) {
+//          the group begin is not a token, but a token that looks the same still matches it literally
+            index.addToken((String) key);
+        } else if ("\\d+".equals(key)) {
+            index.numbers = true;
+        } else if (key instanceof String && !((String) key).startsWith("\\")) {
+            index.addToken((String) key);
+        } else {
+            index.any = true;
+        }
+    }
+
+    /**
+     * @return true if the rule key begins a group without matching a token (see FastRuleWG)
+     */
+    protected boolean isGroupBegin(Object key) {
+        return false;
+    }
 
-    protected void process(ArrayList<?> contextTokens,
-                           BiFunction<ArrayList, Integer, String> getText,
-                           BiFunction<ArrayList, Integer, Integer> getBegin,
-                           BiFunction<ArrayList, Integer, Integer> getEnd,
+    protected void process(String[] texts, int[] begins, int[] ends, int to,
                            HashMap rule, int matchBegin, int matchEnd, int currentPosition,
-                           HashMap<String, ArrayList<Span>> matches) {
+                           MatchContext context) {
+        context.visitedNodes++;
         // when reach the end of the tunedcontext, end the iteration
-        if (currentPosition < contextTokens.size()) {
+        if (currentPosition < to) {
             // start processing the tunedcontext tokens
-            String thisToken = getText.apply(contextTokens, currentPosition);
+            String thisToken = texts[currentPosition];
 //			System.out.println("thisToken-"+thisToken);
             if (rule.containsKey("\\w+")) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\w+"), matchBegin, matchEnd, currentPosition + 1, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get("\\w+"), matchBegin, matchEnd, currentPosition + 1, context);
             }
             // if the end of a rule is met
             if (rule.containsKey(END)) {
                 // if no () is used in this definition, use the whole rule string
-                addDeterminants(rule, matches, getBegin.apply(contextTokens, matchBegin), getEnd.apply(contextTokens, (matchEnd == -1 ? currentPosition - 1 : matchEnd)));
+                addDeterminants(rule, context, begins[matchBegin], ends[matchEnd == -1 ? currentPosition - 1 : matchEnd]);
             }
             // if the current token match the element of a rule
             if (rule.containsKey(thisToken)) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get(thisToken), matchBegin, matchEnd, currentPosition + 1, matches);
+                process(texts, begins, ends, to, (HashMap) rule.get(thisToken), matchBegin, matchEnd, currentPosition + 1, context);
             }
-            if (rule.containsKey("\\d+") && UnicodeChecker.isNumber(thisToken)) {
-                process(contextTokens, getText, getBegin, getEnd, (HashMap) rule.get("\\d+"), matchBegin, matchEnd, currentPosition + 1, matches);
+            if (rule.containsKey("\\d+") && context.numericTokens[currentPosition]) {
+                process(texts, begins, ends, to, (HashMap) rule.get("\\d+"), matchBegin, matchEnd, currentPosition + 1, context);
             }
-        } else if (currentPosition == contextTokens.size() && rule.containsKey(END)) {
+        } else if (currentPosition == to && rule.containsKey(END)) {
             // if no () is used in this definition, use the whole rule string
             matchEnd = matchEnd == -1 ? currentPosition - 1 : matchEnd;
-            addDeterminants(rule, matches, getBegin.apply(contextTokens, matchBegin), getEnd.apply(contextTokens, matchEnd));
+            addDeterminants(rule, context, begins[matchBegin], ends[matchEnd]);
         }
     }
 
 
+    /**
+     * Check the tokens that the wildcards test on every branch (e.g. "\\d+") once per call.
+     *
+     * @param texts   token texts
+     * @param from    the first token of the processed range
+     * @param to      the end of the processed range (exclusive)
+     * @param context the context of this call, which keeps the results at the indices of the tokens
+     */
+    protected void indexTokens(String[] texts, int from, int to, MatchContext context) {
+        if (context.numericTokens.length < to)
+            context.numericTokens = new boolean[to];
+        for (int i = from; i < to; i++) {
+            context.numericTokens[i] = UnicodeChecker.isNumber(texts[i]);
+        }
+    }
+
+    /**
+     * Replace the capitalized tokens by their lowercase forms. The input array is not modified.
+     *
+     * @param texts token texts
+     * @return the folded tokens, or the input array itself if none of the tokens has an uppercase char
+     */
+    protected String[] foldTokens(String[] texts) {
+        return foldTokens(texts, 0, texts.length, null);
+    }
+
+    /**
+     * Replace the capitalized tokens of a range by their lowercase forms. The input array is not modified.
+     *
+     * @param context the context whose buffer receives the folded range, or null to fold a copy of the tokens
+     * @return the folded tokens (only the range is read), or the input array itself if none of the tokens of the range
+     * has an uppercase char
+     */
+    protected String[] foldTokens(String[] texts, int from, int to, MatchContext context) {
+        String[] folded = texts;
+        for (int i = from; i < to; i++) {
+            String token = texts[i];
+            if (!hasUpperCase(token))
+                continue;
+            String lowercase = foldedTokens.get(token);
+            if (lowercase == null) {
+                lowercase = token.toLowerCase();
+                if (foldedTokens.size() < MAX_FOLDED_TOKENS)
+                    foldedTokens.putIfAbsent(token, lowercase);
+            }
+            if (folded == texts)
+                folded = context == null ? texts.clone() : context.getTokenBuffer(texts, from, to);
+            folded[i] = lowercase;
+        }
+        return folded;
+    }
+
+    protected static boolean hasUpperCase(String token) {
+        for (int i = 0; i < token.length(); ) {
+            int codePoint = token.codePointAt(i);
+            if (Character.toLowerCase(codePoint) != codePoint)
+                return true;
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    protected void processCompiled(String[] texts, int[] tokenIds, int[] begins, int[] ends, int from, int to,
+                                   MatchContext context) {
+        for (int i = from; i < to; i++) {
+            processCompiled(texts, tokenIds, begins, ends, to, CompiledTrie.ROOT, i, -1, i, context);
+        }
+    }
+
+    /**
+     * Look up each token in the vocabulary only once.
+     *
+     * @param texts token texts
+     * @return the compiled trie keys of the tokens
+     */
+    protected int[] tokenKeys(String[] texts) {
+        int[] tokenIds = new int[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            tokenIds[i] = tokenKey(texts[i]);
+        }
+        return tokenIds;
+    }
+
+    /**
+     * Look up the tokens of a range in the vocabulary, into the buffer of the context.
+     *
+     * @return the compiled trie keys, at the indices of the tokens
+     */
+    protected int[] tokenKeys(String[] texts, int from, int to, MatchContext context) {
+        if (context.tokenKeys.length < to)
+            context.tokenKeys = new int[to];
+        int[] tokenIds = context.tokenKeys;
+        for (int i = from; i < to; i++) {
+            tokenIds[i] = tokenKey(texts[i]);
+        }
+        return tokenIds;
+    }
+
+    /**
+     * The counterpart of process that walks the CompiledTrie. tokenIds are the trie keys of the tokens
+     * (CompiledTrie.NONE if the token is not used in any rule).
+     */
+    protected void processCompiled(String[] texts, int[] tokenIds, int[] begins, int[] ends, int to,
+                                   int node, int matchBegin, int matchEnd, int currentPosition,
+                                   MatchContext context) {
+        context.visitedNodes++;
+        CompiledTrie trie = compiledTrie;
+        int next;
+        if (currentPosition < to) {
+            if (wordKey != CompiledTrie.NONE && (next = trie.child(node, wordKey)) != CompiledTrie.NONE) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition + 1, context);
+            }
+            if (trie.hasEnd(node)) {
+                addCompiledDeterminants(node, context, begins[matchBegin], ends[matchEnd == -1 ? currentPosition - 1 : matchEnd]);
+            }
+            int tokenId = tokenIds[currentPosition];
+            if (tokenId != CompiledTrie.NONE && (next = trie.child(node, tokenId)) != CompiledTrie.NONE) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition + 1, context);
+            }
+            if (digitKey != CompiledTrie.NONE && (next = trie.child(node, digitKey)) != CompiledTrie.NONE
+                    && context.numericTokens[currentPosition]) {
+                processCompiled(texts, tokenIds, begins, ends, to, next, matchBegin, matchEnd, currentPosition + 1, context);
+            }
+        } else if (currentPosition == to && trie.hasEnd(node)) {
+            matchEnd = matchEnd == -1 ? currentPosition - 1 : matchEnd;
+            addCompiledDeterminants(node, context, begins[matchBegin], ends[matchEnd]);
+        }
+    }
+
     @SuppressWarnings("unchecked")
-    protected void addDeterminants(HashMap rule, HashMap<String, ArrayList<Span>> matches, int matchBegin, int matchEnd) {
-        HashMap<String, Integer> deterRule = (HashMap<String, Integer>) rule.get(END);
-        Span currentSpan;
-        ArrayList<Span> currentSpanList;
-        for (Object key : deterRule.keySet()) {
+    protected void addDeterminants(HashMap rule, MatchContext context, int matchBegin, int matchEnd) {
+        HashMap<Integer, Integer> deterRule = (HashMap<Integer, Integer>) rule.get(END);
+        for (Map.Entry<Integer, Integer> deter : deterRule.entrySet()) {
+            addDeterminant(deter.getKey(), deter.getValue(), context, matchBegin, matchEnd);
+        }
+    }
+
+    protected void addCompiledDeterminants(int node, MatchContext context, int matchBegin, int matchEnd) {
+        CompiledTrie trie = compiledTrie;
+        for (int i = trie.endBegin(node); i < trie.endEnd(node); i++) {
+            if (!isRemoved(trie.endRule(i)))
+                addDeterminant(trie.endConcept(i), trie.endRule(i), context, matchBegin, matchEnd);
+        }
+    }
+
+    /**
+     * addDeterminant compares a match with the last kept match of its concept only.
+     */
+    protected boolean checksLastMatchOnly() {
+        return true;
+    }
+
+    /**
+     * The choice of addDeterminant: a match within the kept one is dropped, otherwise the span compare methods decide.
+     */
+    public boolean preferMatch(int ruleId, int begin, int end, int keptRuleId, int keptBegin, int keptEnd) {
+        if (end < keptEnd)
+            return false;
+        return compareMatches(ruleId, begin, end, keptRuleId, keptBegin, keptEnd) > 0;
+    }
+
+    /**
+     * NERSpan.compareTo of the spans of two matches, without creating the spans.
+     */
+    protected int compareMatches(int ruleId, int begin, int end, int otherRuleId, int otherBegin, int otherEnd) {
+        int scoreResult = (int) Math.signum(ruleScores[ruleId] - ruleScores[otherRuleId]);
+        int widthResult = byStrWidth.equals(widthCompareMethod) ? Integer.signum((end - begin) - (otherEnd - otherBegin))
+                : Integer.signum(ruleLengths[ruleId] - ruleLengths[otherRuleId]);
+        switch (spanCompareMethod) {
+            case scoreOnly:
+                return scoreResult;
+            case scorewidth:
+                return scoreResult == 0 ? widthResult : scoreResult;
+            case widthscore:
+                return widthResult == 0 ? scoreResult : widthResult;
+            default:
+                return widthResult;
+        }
+    }
+
+    protected Span newSpan(MatchContext context, int begin, int end, int ruleId) {
+        NERSpan span = new NERSpan(begin, end, ruleId, ruleLengths[ruleId], ruleScores[ruleId], "");
+        span.setCompareMethod(spanCompareMethod);
+        span.setWidthCompareMethod(widthCompareMethod);
+        return span;
+    }
+
+    protected void addDeterminant(int conceptId, int ruleId, MatchContext context, int matchBegin, int matchEnd) {
 //          claim as Span instance, to be compatible with old methods
-            int ruleId = deterRule.get(key);
-            boolean contain = ruleLengths.containsKey(ruleId);
-            contain = ruleStore.containsKey(ruleId);
-            currentSpan = new NERSpan(matchBegin, matchEnd, ruleId, ruleLengths.get(ruleId), ruleStore.get(ruleId).score, "");
-            ((NERSpan) currentSpan).setCompareMethod(spanCompareMethod);
-            ((NERSpan) currentSpan).setWidthCompareMethod(widthCompareMethod);
+        Span currentSpan;
+        MetricsRegistry metrics = this.metrics;
+        if (metrics != null)
+            metrics.recordMatch(ruleId);
+        if (context.candidates != null) {
+            context.candidates.add(conceptId, matchBegin, matchEnd, ruleId);
+            return;
+        }
+        ArrayList<Span> currentSpanList = context.getSpans(conceptId);
+        currentSpan = new NERSpan(matchBegin, matchEnd, ruleId, ruleLengths[ruleId], ruleScores[ruleId], "");
+        ((NERSpan) currentSpan).setCompareMethod(spanCompareMethod);
+        ((NERSpan) currentSpan).setWidthCompareMethod(widthCompareMethod);
+        if (logger.isLoggable(Level.FINEST))
             logger.finest(getRule(currentSpan.ruleId).toString());
-            if (matches.containsKey((String) key)) {
+        if (currentSpanList.size() > 0) {
 //              because the ruleStore are all processed at the same time from the input left to the input right,
 //                it becomes more efficient to compare the overlaps
-                currentSpanList = matches.get((String) key);
-                Span lastSpan = currentSpanList.get(currentSpanList.size() - 1);
+            Span lastSpan = currentSpanList.get(currentSpanList.size() - 1);
 
 //                  Since there is no directional preference, assume the span is not exclusive within each determinant.
-                if (currentSpan.end < lastSpan.end) {
+            if (currentSpan.end < lastSpan.end) {
 //                      if currentSpan is within lastSpan
-                    continue;
-                } else if (lastSpan.end > currentSpan.begin) {
+                if (metrics != null)
+                    metrics.recordOverlap(lastSpan.ruleId, ruleId);
+                return;
+            } else if (lastSpan.end > currentSpan.begin) {
 //                      if overlap and current span has priority than last span
-                    if (((NERSpan) currentSpan).compareTo((NERSpan) lastSpan) > 0) {
-                        currentSpanList.remove(currentSpanList.size() - 1);
-                    } else {
-                        continue;
-                    }
+                if (((NERSpan) currentSpan).compareTo((NERSpan) lastSpan) > 0) {
+                    currentSpanList.remove(currentSpanList.size() - 1);
+                    if (metrics != null)
+                        metrics.recordOverlap(ruleId, lastSpan.ruleId);
+                } else {
+                    if (metrics != null)
+                        metrics.recordOverlap(lastSpan.ruleId, ruleId);
+                    return;
                 }
-                currentSpanList.add(currentSpan);
-            } else {
-                currentSpanList = new ArrayList<Span>();
-                currentSpanList.add(currentSpan);
             }
-            matches.put((String) key, currentSpanList);
         }
+        currentSpanList.add(currentSpan);
     }
 
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import java.util.Arrays;
+
+/**
+ * Resolves the overlaps of each concept in the order the candidates were found, with the checks that addDeterminant
+ * runs as each match is found, so that a pooled context keeps the same matches as a call without a resolver.
+ * <p>
+ * A candidate is checked against a single kept match: the last one if the engine only checks the last match of a
+ * concept (see FastRule.checksLastMatchOnly), otherwise the latest kept match that it overlaps. It either replaces
+ * that match in place or is dropped (see FastRule.preferMatch).
+ * This is the resolver of a pooled context when no OverlapResolver is set.
+ *
+ * @author Jianlin Shi
+ */
+public class InOrderResolver implements OverlapResolver {
+
+    public void resolve(FastRule fastRule, MatchCandidates candidates, MatchContext context) {
+        int size = candidates.size;
+        if (size == 0)
+            return;
+//      group the candidates by concepts, keeping their order
+        int concepts = 0;
+        for (int i = 0; i < size; i++)
+            concepts = Math.max(concepts, candidates.conceptIds[i] + 1);
+        int[] offsets = candidates.offsets = MatchCandidates.ensure(candidates.offsets, concepts + 1);
+        Arrays.fill(offsets, 0, concepts + 1, 0);
+        for (int i = 0; i < size; i++)
+            offsets[candidates.conceptIds[i] + 1]++;
+        for (int c = 0; c < concepts; c++)
+            offsets[c + 1] += offsets[c];
+        int[] positions = candidates.positions = MatchCandidates.ensure(candidates.positions, concepts);
+        System.arraycopy(offsets, 0, positions, 0, concepts);
+        long[] keys = candidates.keys = MatchCandidates.ensure(candidates.keys, size);
+        for (int i = 0; i < size; i++)
+            keys[positions[candidates.conceptIds[i]]++] = i;
+
+        boolean lastOnly = fastRule.checksLastMatchOnly();
+        MetricsRegistry metrics = fastRule.getMetrics();
+        int[] kept = candidates.kept = MatchCandidates.ensure(candidates.kept, size);
+        for (int conceptId = 0; conceptId < concepts; conceptId++) {
+            int from = offsets[conceptId], to = offsets[conceptId + 1];
+            if (from == to)
+                continue;
+            int keptSize = 0, keptEnd = Integer.MIN_VALUE;
+            for (int k = from; k < to; k++) {
+                int i = (int) keys[k];
+                int begin = candidates.begins[i], end = candidates.ends[i];
+                int pos = -1;
+                if (lastOnly) {
+                    int last = keptSize - 1;
+                    if (last >= 0 && (end < candidates.ends[kept[last]] || candidates.ends[kept[last]] > begin))
+                        pos = last;
+                } else if (begin < keptEnd) {
+//                  no kept match ends after the begin otherwise
+                    for (int p = keptSize - 1; p >= 0; p--) {
+                        int j = kept[p];
+                        if (candidates.begins[j] < end && begin < candidates.ends[j]) {
+                            pos = p;
+                            break;
+                        }
+                    }
+                }
+                if (pos == -1) {
+                    kept[keptSize++] = i;
+                    keptEnd = Math.max(keptEnd, end);
+                    continue;
+                }
+                int j = kept[pos];
+                boolean replace = fastRule.preferMatch(candidates.ruleIds[i], begin, end,
+                        candidates.ruleIds[j], candidates.begins[j], candidates.ends[j]);
+                if (metrics != null) {
+                    if (replace)
+                        metrics.recordOverlap(candidates.ruleIds[i], candidates.ruleIds[j]);
+                    else
+                        metrics.recordOverlap(candidates.ruleIds[j], candidates.ruleIds[i]);
+                }
+                if (replace) {
+                    kept[pos] = i;
+                    keptEnd = Math.max(keptEnd, end);
+                }
+            }
+            for (int k = 0; k < keptSize; k++) {
+                int i = kept[k];
+                fastRule.keepMatch(context, conceptId, candidates.begins[i], candidates.ends[i], candidates.ruleIds[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import java.nio.IntBuffer;
+
+/**
+ * A CompiledTrie that reads its arrays from IntBuffer views of a read-only memory-mapped RuleSnapshot,
+ * instead of copying them onto the heap.
+ * <p>
+ * The mapped pages live in the OS page cache, so the JVM processes that load the same snapshot file share one copy
+ * of the trie, and the garbage collector never scans it. Only the concept names are kept on the heap.
+ * The node and rule ids are the same as the heap-based CompiledTrie, so the ruleStore lookups work unchanged.
+ *
+ * @author Jianlin Shi
+ */
+public class MappedCompiledTrie extends CompiledTrie {
+    protected IntBuffer childOffsetBuffer, childKeyBuffer, childNodeBuffer, childRankBuffer;
+    protected IntBuffer endOffsetBuffer, endConceptBuffer, endRuleBuffer;
+
+    public MappedCompiledTrie(IntBuffer childOffsets, IntBuffer childKeys, IntBuffer childNodes, IntBuffer childRanks,
+                              IntBuffer endOffsets, IntBuffer endConcepts, IntBuffer endRules, String[] conceptNames) {
+        super(null, null, null, null, null, null, null, conceptNames);
+        this.childOffsetBuffer = childOffsets;
+        this.childKeyBuffer = childKeys;
+        this.childNodeBuffer = childNodes;
+        this.childRankBuffer = childRanks;
+        this.endOffsetBuffer = endOffsets;
+        this.endConceptBuffer = endConcepts;
+        this.endRuleBuffer = endRules;
+    }
+
+    public int child(int node, int key) {
+        int from = childOffsetBuffer.get(node), to = childOffsetBuffer.get(node + 1);
+        if (to - from <= LINEAR_SCAN_LIMIT) {
+            for (int i = from; i < to; i++) {
+                if (childKeyBuffer.get(i) == key)
+                    return childNodeBuffer.get(i);
+            }
+            return NONE;
+        }
+        int low = from, high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = childKeyBuffer.get(mid);
+            if (midKey < key)
+                low = mid + 1;
+            else if (midKey > key)
+                high = mid - 1;
+            else
+                return childNodeBuffer.get(mid);
+        }
+        return NONE;
+    }
+
+    public int childBegin(int node) {
+        return childOffsetBuffer.get(node);
+    }
+
+    public int childEnd(int node) {
+        return childOffsetBuffer.get(node + 1);
+    }
+
+    public int childKey(int pos) {
+        return childKeyBuffer.get(pos);
+    }
+
+    public int childNode(int pos) {
+        return childNodeBuffer.get(pos);
+    }
+
+    public int childRank(int pos) {
+        return childRankBuffer.get(pos);
+    }
+
+    public boolean hasEnd(int node) {
+        return endOffsetBuffer.get(node) != endOffsetBuffer.get(node + 1);
+    }
+
+    public int endBegin(int node) {
+        return endOffsetBuffer.get(node);
+    }
+
+    public int endEnd(int node) {
+        return endOffsetBuffer.get(node + 1);
+    }
+
+    public int endConcept(int pos) {
+        return endConceptBuffer.get(pos);
+    }
+
+    public int endRule(int pos) {
+        return endRuleBuffer.get(pos);
+    }
+
+    public int getNodeCount() {
+        return childOffsetBuffer.limit() - 1;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import java.util.Arrays;
+
+/**
+ * The raw matches of a processing call, kept in parallel arrays in the order they are found, before the overlaps
+ * are resolved by an OverlapResolver. A match is only turned into a Span if it is kept.
+ * <p>
+ * The same structure holds the kept matches of a pooled MatchContext, which are only turned into Spans if the
+ * caller asks for a result map. The arrays (and the scratch buffers of the resolvers) grow to the largest call,
+ * and are reused by the following calls.
+ *
+ * @author Jianlin Shi
+ */
+public class MatchCandidates {
+    public int size = 0;
+    public int[] conceptIds, begins, ends, ruleIds;
+    //  scratch buffers of SweepLineResolver and InOrderResolver
+    protected int[] offsets = new int[0], positions = new int[0], kept = new int[0];
+    protected long[] keys = new long[0];
+
+    public MatchCandidates() {
+        this(64);
+    }
+
+    public MatchCandidates(int capacity) {
+        conceptIds = new int[capacity];
+        begins = new int[capacity];
+        ends = new int[capacity];
+        ruleIds = new int[capacity];
+    }
+
+    public void add(int conceptId, int begin, int end, int ruleId) {
+        if (size == begins.length)
+            grow();
+        conceptIds[size] = conceptId;
+        begins[size] = begin;
+        ends[size] = end;
+        ruleIds[size] = ruleId;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    protected static int[] ensure(int[] buffer, int length) {
+        return buffer.length < length ? new int[Math.max(length, buffer.length * 2)] : buffer;
+    }
+
+    protected static long[] ensure(long[] buffer, int length) {
+        return buffer.length < length ? new long[Math.max(length, buffer.length * 2)] : buffer;
+    }
+
+    protected void grow() {
+        int capacity = begins.length * 2;
+        conceptIds = Arrays.copyOf(conceptIds, capacity);
+        begins = Arrays.copyOf(begins, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        ruleIds = Arrays.copyOf(ruleIds, capacity);
+    }
+}
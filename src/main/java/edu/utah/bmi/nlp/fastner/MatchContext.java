@@ -0,0 +1,180 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.IntervalST;
+import edu.utah.bmi.nlp.core.Span;
+
+import java.util.ArrayList;
+import java.util.function.Supplier;
+
+/**
+ * The state of a single processing call (matched spans, overlap checkers, offset).
+ * <p>
+ * A FastRule only reads its rules while processing, and every call creates its own MatchContext,
+ * so that one FastRule instance can be shared by multiple threads.
+ * A caller that passes the matches to a MatchSink can keep one MatchContext per thread instead,
+ * and the per-concept lists will be reused by the following calls.
+ * <p>
+ * A pooled context (see forThread) keeps the final matches in reused parallel arrays instead of Span objects: the
+ * engine collects the raw matches and resolves their overlaps after the walk (with its OverlapResolver, or an
+ * InOrderResolver, which keeps the same matches as a call without a resolver, if none is set), and the Spans are only
+ * created if a result map is asked for.
+ *
+ * @author Jianlin Shi
+ */
+public class MatchContext {
+    //  matched spans indexed by concept ids (null if a concept has not been matched)
+    public ArrayList<ArrayList<Span>> matches = new ArrayList<>();
+    //  segment trees to check the overlapping among matches within a same type of concept, indexed by concept ids
+    public ArrayList<IntervalST<Integer>> overlapCheckers = new ArrayList<>();
+    //  the offset of the processed text in the document
+    public int offset = 0;
+    //  per-token numeric flags and values of the processed tokens (NaN if a token cannot be parsed), filled once per
+    //  call by the token engines, so that the walk does not check a token again on every branch
+    public boolean[] numericTokens = new boolean[0];
+    public double[] tokenNumbers = new double[0];
+    //  the vocabulary ids and the case folded strings of the processed tokens, when the engine looks them up itself
+    //  (see FastRuleWOG.walkTokens). Like the arrays above, they are indexed like the processed token arrays and only
+    //  filled for the processed range, so that a reused context does not allocate them per sentence.
+    public int[] tokenKeys = new int[0];
+    protected String[] foldedTokens = new String[0];
+    //  the number of rule nodes visited by the walks of this context, read by the metrics (see FastRule.setMetrics)
+    public long visitedNodes = 0;
+    //  the raw matches of the running walk, when the engine resolves their overlaps after the walk (see
+    //  OverlapResolver), otherwise null; and the processed text that the kept matches of the char rules are read from
+    public MatchCandidates candidates = null;
+    public String text = null;
+    protected MatchCandidates candidateBuffer = null;
+    //  false if the caller only reads the offsets of the matches (e.g. to create annotations), so that the char rules do
+    //  not read the matched texts of the returned spans (see FastCRule.collectMatches)
+    public boolean spanText = true;
+    //  true if the final matches are kept in keptMatches instead of the Span lists
+    public boolean pooled = false;
+    protected MatchCandidates keptMatches = null;
+    //  the explicit stack of the char rule walk, created by the first walk that needs it
+    protected MatchStack stack;
+
+    public MatchContext() {
+    }
+
+    public MatchContext(int offset) {
+        this.offset = offset;
+    }
+
+    protected static final ThreadLocal<MatchContext> threadContexts = ThreadLocal.withInitial(() -> {
+        MatchContext context = new MatchContext();
+        context.pooled = true;
+        return context;
+    });
+
+    /**
+     * @return the pooled context of the current thread, which can be passed to the processing calls that take a
+     * context (e.g. FastNER.processTokenArrays), and is reset by each of them
+     */
+    public static MatchContext forThread() {
+        return threadContexts.get();
+    }
+
+    /**
+     * @return the final matches of a pooled context, grouped by concept
+     */
+    public MatchCandidates getKeptMatches() {
+        if (keptMatches == null)
+            keptMatches = new MatchCandidates();
+        return keptMatches;
+    }
+
+    /**
+     * @param conceptId concept id
+     * @return the matched spans of the concept, which is created if the concept has not been matched
+     */
+    public ArrayList<Span> getSpans(int conceptId) {
+        while (matches.size() <= conceptId) {
+            matches.add(null);
+            overlapCheckers.add(null);
+        }
+        ArrayList<Span> spans = matches.get(conceptId);
+        if (spans == null) {
+            spans = new ArrayList<>();
+            matches.set(conceptId, spans);
+        }
+        return spans;
+    }
+
+    /**
+     * @param conceptId concept id, whose spans have been created by getSpans
+     * @return the overlap checker of the concept, which is created if needed
+     */
+    public IntervalST<Integer> getOverlapChecker(int conceptId) {
+        IntervalST<Integer> overlapChecker = overlapCheckers.get(conceptId);
+        if (overlapChecker == null) {
+            overlapChecker = new IntervalST<>();
+            overlapCheckers.set(conceptId, overlapChecker);
+        }
+        return overlapChecker;
+    }
+
+    /**
+     * @return the buffer of the case folded tokens, holding the tokens of the range (before they are folded)
+     */
+    public String[] getTokenBuffer(String[] texts, int from, int to) {
+        if (foldedTokens.length < to)
+            foldedTokens = new String[to];
+        System.arraycopy(texts, from, foldedTokens, from, to - from);
+        return foldedTokens;
+    }
+
+    /**
+     * @param factory creates the stack of the first walk that needs one
+     * @return the walk stack of this context, which is reused by the following walks
+     */
+    public MatchStack getStack(Supplier<? extends MatchStack> factory) {
+        if (stack == null)
+            stack = factory.get();
+        return stack;
+    }
+
+    /**
+     * Collect the raw matches of the following walk into the (reused) candidates.
+     */
+    public MatchCandidates startCandidates() {
+        if (candidateBuffer == null)
+            candidateBuffer = new MatchCandidates();
+        candidateBuffer.clear();
+        candidates = candidateBuffer;
+        return candidates;
+    }
+
+    /**
+     * Empty the matches before the context is reused. The per-concept lists are kept (empty), so that they do not
+     * need to be allocated again.
+     *
+     * @param offset the offset of the next processed text in the document
+     */
+    public void reset(int offset) {
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.get(i) != null)
+                matches.get(i).clear();
+            overlapCheckers.set(i, null);
+        }
+        candidates = null;
+        text = null;
+        if (keptMatches != null)
+            keptMatches.clear();
+        this.offset = offset;
+    }
+}
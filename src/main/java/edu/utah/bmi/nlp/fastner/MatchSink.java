@@ -0,0 +1,38 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+/**
+ * Receives the final matches of a processing call one by one, instead of collecting them into a
+ * HashMap&lt;String, ArrayList&lt;Span&gt;&gt;. The pseudo matches have already been filtered out (unless
+ * FastRule.setRemovePseudo(false) is used), so a sink can copy the matches straight into its own structures.
+ * <p>
+ * Use FastRule.getConceptName(conceptId) to find the concept name of a conceptId.
+ *
+ * @author Jianlin Shi
+ */
+@FunctionalInterface
+public interface MatchSink {
+
+    /**
+     * @param conceptId the id of the matched concept
+     * @param begin     begin of the matched span
+     * @param end       end of the matched span (for token-based rules, the end offset of the last token)
+     * @param ruleId    the id of the matched rule
+     * @param score     the score of the matched rule
+     */
+    void match(int conceptId, int begin, int end, int ruleId, double score);
+}
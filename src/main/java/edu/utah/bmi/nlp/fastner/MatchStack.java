@@ -0,0 +1,155 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The explicit stack of a char rule walk (see FastCRule), which replaces one recursive call per matched char.
+ * <p>
+ * Each frame is a pending step of the walk: visiting a rule node, trying the wildcards under a "\\" node,
+ * adding the determinants of an END node, or adding the literal matches of the LiteralAutomaton. The frames are kept
+ * in parallel arrays, which are allocated once and grow when a deeper walk needs more room, so that the depth of
+ * a match (long replications, wildcard fan-out) costs heap slots instead of call stack.
+ * A MatchStack is not thread-safe: each MatchContext holds its own. The engines can extend it with the state of their
+ * walk (e.g. CharMatchStack).
+ *
+ * @author Jianlin Shi
+ */
+public class MatchStack {
+    public static final int RULES = 0, WILD_CARDS = 1, DETERMINANTS = 2, LITERALS = 3;
+
+    public int size = 0;
+    public int[] tasks, nodes, matchBegins, matchEnds, positions;
+    //  the HashMap nodes of rulesMap (null for the frames of the compiled trie)
+    public HashMap[] rules;
+    public char[] previousChars, previousKeys;
+    public boolean[] wildcards;
+    //  true for the frames reached from the begin position through plain chars only, where the literal matches are
+    //  added (see FastCRule.stepRules)
+    public boolean[] literalPaths;
+
+    public MatchStack() {
+        this(64);
+    }
+
+    public MatchStack(int capacity) {
+        tasks = new int[capacity];
+        nodes = new int[capacity];
+        matchBegins = new int[capacity];
+        matchEnds = new int[capacity];
+        positions = new int[capacity];
+        rules = new HashMap[capacity];
+        previousChars = new char[capacity];
+        previousKeys = new char[capacity];
+        wildcards = new boolean[capacity];
+        literalPaths = new boolean[capacity];
+    }
+
+    public void push(int task, int node, HashMap rule, int matchBegin, int matchEnd, int position,
+                     char previousChar, boolean wildcard, char previousKey) {
+        if (size == tasks.length)
+            grow();
+        tasks[size] = task;
+        nodes[size] = node;
+        rules[size] = rule;
+        matchBegins[size] = matchBegin;
+        matchEnds[size] = matchEnd;
+        positions[size] = position;
+        previousChars[size] = previousChar;
+        wildcards[size] = wildcard;
+        previousKeys[size] = previousKey;
+        literalPaths[size] = false;
+        size++;
+    }
+
+    /**
+     * Mark the top frame as a step along the plain chars from the begin position.
+     */
+    public void markLiteralPath() {
+        literalPaths[size - 1] = true;
+    }
+
+    /**
+     * Remove the top frame. Its values stay readable at the returned index until the next push.
+     *
+     * @return the index of the removed frame
+     */
+    public int pop() {
+        size--;
+        return size;
+    }
+
+    /**
+     * Reverse the frames from the index to the top, so that the frames pushed in the order of the recursive walk
+     * are popped in the same order.
+     *
+     * @param from the size of the stack before the frames were pushed
+     */
+    public void reverse(int from) {
+        for (int i = from, j = size - 1; i < j; i++, j--) {
+            swap(i, j);
+        }
+    }
+
+    protected void grow() {
+        int capacity = tasks.length * 2;
+        tasks = Arrays.copyOf(tasks, capacity);
+        nodes = Arrays.copyOf(nodes, capacity);
+        matchBegins = Arrays.copyOf(matchBegins, capacity);
+        matchEnds = Arrays.copyOf(matchEnds, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        rules = Arrays.copyOf(rules, capacity);
+        previousChars = Arrays.copyOf(previousChars, capacity);
+        previousKeys = Arrays.copyOf(previousKeys, capacity);
+        wildcards = Arrays.copyOf(wildcards, capacity);
+        literalPaths = Arrays.copyOf(literalPaths, capacity);
+    }
+
+    protected void swap(int i, int j) {
+        int t = tasks[i];
+        tasks[i] = tasks[j];
+        tasks[j] = t;
+        t = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = t;
+        t = matchBegins[i];
+        matchBegins[i] = matchBegins[j];
+        matchBegins[j] = t;
+        t = matchEnds[i];
+        matchEnds[i] = matchEnds[j];
+        matchEnds[j] = t;
+        t = positions[i];
+        positions[i] = positions[j];
+        positions[j] = t;
+        HashMap rule = rules[i];
+        rules[i] = rules[j];
+        rules[j] = rule;
+        char c = previousChars[i];
+        previousChars[i] = previousChars[j];
+        previousChars[j] = c;
+        c = previousKeys[i];
+        previousKeys[i] = previousKeys[j];
+        previousKeys[j] = c;
+        boolean b = wildcards[i];
+        wildcards[i] = wildcards[j];
+        wildcards[j] = b;
+        b = literalPaths[i];
+        literalPaths[i] = literalPaths[j];
+        literalPaths[j] = b;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+/**
+ * Receives the runtime measurements of a FastRule (see FastRule.setMetrics), e.g. to forward them to the metrics
+ * library of an application. RuleMetrics is the built-in implementation, which can be read through JMX.
+ * <p>
+ * The methods are called by the processing threads while they match, so an implementation needs to be thread-safe
+ * and cheap.
+ *
+ * @author Jianlin Shi
+ */
+public interface MetricsRegistry {
+
+    /**
+     * A processing call of a rule engine: a list of tokens, a text, or a chunk of a streamed text.
+     *
+     * @param nanos        elapsed time of the call
+     * @param chars        number of processed chars (the total length of the tokens for token rules)
+     * @param tokens       number of processed tokens (0 for char rules)
+     * @param visitedNodes number of rule nodes that the walk has visited
+     */
+    void recordCall(long nanos, int chars, int tokens, long visitedNodes);
+
+    /**
+     * A document processed by an analysis engine, which may take several calls (e.g. one per sentence).
+     *
+     * @param nanos  elapsed time of the document
+     * @param chars  length of the document
+     * @param tokens number of tokens of the document
+     */
+    void recordDocument(long nanos, int chars, int tokens);
+
+    /**
+     * A rule has matched, before the overlapping matches of the same concept are resolved.
+     *
+     * @param ruleId rule id
+     */
+    void recordMatch(int ruleId);
+
+    /**
+     * Two matches of a same concept overlapped: the winner's match is kept, and the loser's is dropped.
+     *
+     * @param winnerRuleId the rule id of the kept match
+     * @param loserRuleId  the rule id of the dropped match
+     */
+    void recordOverlap(int winnerRuleId, int loserRuleId);
+}
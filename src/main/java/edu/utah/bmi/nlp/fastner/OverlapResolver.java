@@ -0,0 +1,35 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+/**
+ * Resolves the overlaps among the raw matches of a processing call after the rules have been walked
+ * (see FastRule.setOverlapResolver), instead of checking each match against the kept ones as it is found.
+ * <p>
+ * An implementation decides which matches to keep, and passes them to FastRule.keepMatch. FastRule.preferMatch
+ * tells which of two overlapping matches the span compare methods of the engine prefer.
+ *
+ * @author Jianlin Shi
+ */
+public interface OverlapResolver {
+
+    /**
+     * @param fastRule   the engine that found the candidates
+     * @param candidates the raw matches, in the order they were found
+     * @param context    the context of the call, which receives the kept matches
+     */
+    void resolve(FastRule fastRule, MatchCandidates candidates, MatchContext context);
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the throughput, latencies, visited rule nodes and per-rule matches of the FastRules it is set to,
+ * and exposes them through JMX (see register).
+ * <p>
+ * The per-rule counters show which rules fire, and which of them lose the overlap resolution most of the time,
+ * so that a lexicon can be pruned by the rules that never contribute a match (see getUnmatchedRuleIds).
+ * One RuleMetrics can be shared by several engines and threads (see forName).
+ *
+ * @author Jianlin Shi
+ */
+public class RuleMetrics implements MetricsRegistry, RuleMetricsMBean {
+    public static final String JMX_DOMAIN = "edu.utah.bmi.nlp.fastner";
+    //  bucket 0 counts the latencies under 1 microsecond, bucket i counts [2^(i-1), 2^i) microseconds
+    public static final int BUCKETS = 40;
+    protected static final int MATCHES = 0, WINS = 1, LOSSES = 2, COUNTERS = 3;
+    //  the rule counters are allocated by blocks of 2^BLOCK_BITS rule ids
+    protected static final int BLOCK_BITS = 10, BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    //  the metrics registered by forName, by their names
+    protected static final ConcurrentHashMap<String, RuleMetrics> namedMetrics = new ConcurrentHashMap<>();
+
+    protected final LongAdder documents = new LongAdder(), calls = new LongAdder(), chars = new LongAdder(),
+            tokens = new LongAdder(), visitedNodes = new LongAdder(), matches = new LongAdder(),
+            callNanos = new LongAdder(), documentNanos = new LongAdder(), documentChars = new LongAdder(),
+            documentTokens = new LongAdder();
+    protected final AtomicLongArray callLatencies = new AtomicLongArray(BUCKETS),
+            documentLatencies = new AtomicLongArray(BUCKETS);
+    //  the match, win and loss counters of the rules, indexed by rule id: block ruleId >> BLOCK_BITS holds them at
+    //  (ruleId & (BLOCK_SIZE - 1)) * COUNTERS. The blocks are added under the lock of this RuleMetrics, and are never
+    //  copied, so that no count is lost while they grow.
+    protected volatile AtomicLongArray[] ruleCounters = new AtomicLongArray[0];
+    protected volatile long startNanos = System.nanoTime();
+    protected ObjectName objectName;
+    protected String name;
+
+    /**
+     * @param name the name of the engine (or of the pipeline) that the metrics belong to
+     * @return the RuleMetrics registered under the name, which is created and registered by the first call, so that
+     * the engines of a same name (e.g. the instances of an analysis engine in a multi-threaded pipeline) count into a
+     * same MBean
+     */
+    public static RuleMetrics forName(String name) {
+        return namedMetrics.computeIfAbsent(name, (key) -> {
+            RuleMetrics metrics = new RuleMetrics();
+            metrics.register(key);
+            return metrics;
+        });
+    }
+
+    public void recordCall(long nanos, int chars, int tokens, long visitedNodes) {
+        calls.increment();
+        callNanos.add(nanos);
+        this.chars.add(chars);
+        this.tokens.add(tokens);
+        this.visitedNodes.add(visitedNodes);
+        callLatencies.incrementAndGet(bucket(nanos));
+    }
+
+    public void recordDocument(long nanos, int chars, int tokens) {
+        documents.increment();
+        documentNanos.add(nanos);
+        documentChars.add(chars);
+        documentTokens.add(tokens);
+        documentLatencies.incrementAndGet(bucket(nanos));
+    }
+
+    public void recordMatch(int ruleId) {
+        matches.increment();
+        increment(ruleId, MATCHES);
+    }
+
+    public void recordOverlap(int winnerRuleId, int loserRuleId) {
+        increment(winnerRuleId, WINS);
+        increment(loserRuleId, LOSSES);
+    }
+
+    protected void increment(int ruleId, int counter) {
+        AtomicLongArray[] blocks = ruleCounters;
+        int block = ruleId >> BLOCK_BITS;
+        if (block >= blocks.length)
+            blocks = grow(block);
+        blocks[block].incrementAndGet((ruleId & (BLOCK_SIZE - 1)) * COUNTERS + counter);
+    }
+
+    /**
+     * @param block the block of a rule id
+     * @return the rule counters, with the blocks up to the given one
+     */
+    protected synchronized AtomicLongArray[] grow(int block) {
+        AtomicLongArray[] blocks = ruleCounters;
+        if (block < blocks.length)
+            return blocks;
+        blocks = Arrays.copyOf(blocks, block + 1);
+        for (int i = ruleCounters.length; i < blocks.length; i++)
+            blocks[i] = new AtomicLongArray(BLOCK_SIZE * COUNTERS);
+        ruleCounters = blocks;
+        return blocks;
+    }
+
+    /**
+     * @param nanos a latency
+     * @return the histogram bucket of the latency
+     */
+    public static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Register this RuleMetrics in the platform MBean server, replacing a previous registration of the same name.
+     *
+     * @param name the name of the engine (or of the pipeline) that the metrics belong to
+     * @return the object name of the registered MBean
+     */
+    public synchronized ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=RuleMetrics,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+            this.name = name;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            objectName = null;
+            namedMetrics.remove(name, this);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getDocuments() {
+        return documents.sum();
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getChars() {
+        return chars.sum();
+    }
+
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    public long getVisitedNodes() {
+        return visitedNodes.sum();
+    }
+
+    public long getMatches() {
+        return matches.sum();
+    }
+
+    public long getDocumentChars() {
+        return documentChars.sum();
+    }
+
+    public long getDocumentTokens() {
+        return documentTokens.sum();
+    }
+
+    /**
+     * @return the seconds since this RuleMetrics was created or reset, over which the rates are measured
+     */
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public double getDocumentsPerSecond() {
+        return getDocuments() / getElapsedSeconds();
+    }
+
+    public double getCharsPerSecond() {
+        return getChars() / getElapsedSeconds();
+    }
+
+    public double getTokensPerSecond() {
+        return getTokens() / getElapsedSeconds();
+    }
+
+    public double getMeanCallMicros() {
+        long calls = getCalls();
+        return calls == 0 ? 0 : callNanos.sum() / 1000.0 / calls;
+    }
+
+    public double getMeanDocumentMicros() {
+        long documents = getDocuments();
+        return documents == 0 ? 0 : documentNanos.sum() / 1000.0 / documents;
+    }
+
+    public long[] getCallLatencyHistogram() {
+        return toArray(callLatencies);
+    }
+
+    public long[] getDocumentLatencyHistogram() {
+        return toArray(documentLatencies);
+    }
+
+    public long getCallLatencyPercentile(double percentile) {
+        long[] histogram = getCallLatencyHistogram();
+        long total = 0;
+        for (long count : histogram)
+            total += count;
+        long rank = (long) Math.ceil(total * percentile / 100), count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= rank && count > 0)
+                return 1L << i;
+        }
+        return 0;
+    }
+
+    public int[] getMatchedRuleIds() {
+        return countedRuleIds(MATCHES).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @param counter a rule counter, or COUNTERS for any of them
+     * @return the rule ids whose counter is above 0, in ascending order
+     */
+    protected ArrayList<Integer> countedRuleIds(int counter) {
+        AtomicLongArray[] blocks = ruleCounters;
+        ArrayList<Integer> ruleIds = new ArrayList<>();
+        for (int block = 0; block < blocks.length; block++) {
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                int ruleId = (block << BLOCK_BITS) + i;
+                if (counter == COUNTERS ? ruleCounter(ruleId, MATCHES) + ruleCounter(ruleId, WINS)
+                        + ruleCounter(ruleId, LOSSES) > 0 : ruleCounter(ruleId, counter) > 0)
+                    ruleIds.add(ruleId);
+            }
+        }
+        return ruleIds;
+    }
+
+    /**
+     * @param ruleIds the rule ids of an engine, e.g. FastNER.getRuleStore().keySet()
+     * @return the rule ids that have never matched
+     */
+    public int[] getUnmatchedRuleIds(Collection<Integer> ruleIds) {
+        return ruleIds.stream().mapToInt(Integer::intValue).filter((ruleId) -> getRuleMatches(ruleId) == 0)
+                .sorted().toArray();
+    }
+
+    public long getRuleMatches(int ruleId) {
+        return ruleCounter(ruleId, MATCHES);
+    }
+
+    public long getRuleWins(int ruleId) {
+        return ruleCounter(ruleId, WINS);
+    }
+
+    public long getRuleLosses(int ruleId) {
+        return ruleCounter(ruleId, LOSSES);
+    }
+
+    protected long ruleCounter(int ruleId, int counter) {
+        AtomicLongArray[] blocks = ruleCounters;
+        int block = ruleId >> BLOCK_BITS;
+        if (ruleId < 0 || block >= blocks.length)
+            return 0;
+        return blocks[block].get((ruleId & (BLOCK_SIZE - 1)) * COUNTERS + counter);
+    }
+
+    public String[] getTopRules(int limit) {
+        return countedRuleIds(COUNTERS).stream()
+                .sorted(Comparator.comparingLong((Integer ruleId) -> ruleCounter(ruleId, MATCHES)).reversed())
+                .limit(limit)
+                .map((ruleId) -> ruleId + " " + ruleCounter(ruleId, MATCHES) + " " +
+                        ruleCounter(ruleId, WINS) + " " + ruleCounter(ruleId, LOSSES))
+                .toArray(String[]::new);
+    }
+
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{documents, calls, chars, tokens, visitedNodes, matches, callNanos,
+                documentNanos, documentChars, documentTokens})
+            adder.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            callLatencies.set(i, 0);
+            documentLatencies.set(i, 0);
+        }
+        synchronized (this) {
+            ruleCounters = new AtomicLongArray[0];
+        }
+        startNanos = System.nanoTime();
+    }
+
+    protected static long[] toArray(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = array.get(i);
+        return values;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+/**
+ * The JMX view of RuleMetrics. The latency histograms count the latencies by powers of two microseconds
+ * (see RuleMetrics.bucket).
+ *
+ * @author Jianlin Shi
+ */
+public interface RuleMetricsMBean {
+
+    long getDocuments();
+
+    long getCalls();
+
+    long getChars();
+
+    long getTokens();
+
+    long getVisitedNodes();
+
+    long getMatches();
+
+    /**
+     * @return the total length of the documents counted by recordDocument
+     */
+    long getDocumentChars();
+
+    /**
+     * @return the total number of tokens of the documents counted by recordDocument
+     */
+    long getDocumentTokens();
+
+    double getElapsedSeconds();
+
+    double getDocumentsPerSecond();
+
+    double getCharsPerSecond();
+
+    double getTokensPerSecond();
+
+    double getMeanCallMicros();
+
+    double getMeanDocumentMicros();
+
+    long[] getCallLatencyHistogram();
+
+    long[] getDocumentLatencyHistogram();
+
+    /**
+     * @param percentile e.g. 99
+     * @return the upper bound (in microseconds) of the histogram bucket that holds the percentile of the call latencies
+     */
+    long getCallLatencyPercentile(double percentile);
+
+    int[] getMatchedRuleIds();
+
+    long getRuleMatches(int ruleId);
+
+    long getRuleWins(int ruleId);
+
+    long getRuleLosses(int ruleId);
+
+    /**
+     * @param limit the maximum number of rules to list
+     * @return "ruleId matches wins losses" of the rules that have matched most
+     */
+    String[] getTopRules(int limit);
+
+    void reset();
+}
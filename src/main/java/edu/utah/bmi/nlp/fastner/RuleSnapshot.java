@@ -0,0 +1,351 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
+import edu.utah.bmi.nlp.core.NERRule;
+import edu.utah.bmi.nlp.core.Rule;
+import edu.utah.bmi.nlp.core.TypeDefinition;
+import edu.utah.bmi.nlp.fastcner.FastCRule;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Save a built FastRule (rule store, type definitions and compiled trie) into a versioned binary file, so that it
+ * can be loaded without parsing the rule files and rebuilding the chained-up HashMaps.
+ * <p>
+ * Layout (big-endian): magic, version, engine class name, case sensitivity, character rule settings,
+ * overlap settings (pseudo match removal, span and width compare methods), type definitions, rules, vocabulary tokens, concept names and the int arrays of the CompiledTrie.
+ * Strings are stored as a byte length followed by UTF-8 bytes; int arrays as a length followed by the ints, aligned
+ * to 4 bytes. The file is read through a memory-mapped buffer. The trie arrays can either be copied onto the heap,
+ * or be used in place through a MappedCompiledTrie.
+ * <p>
+ * FastRuleFactory (and therefore FastNER, FastCNER and the AEs) loads a rule file ending with
+ * {@value #EXTENSION} as a snapshot.
+ *
+ * @author Jianlin Shi
+ */
+public class RuleSnapshot {
+    public static Logger logger = edu.utah.bmi.nlp.core.IOUtil.getLogger(RuleSnapshot.class);
+    public static final String EXTENSION = ".fnr";
+    //  "FNRS"
+    public static final int MAGIC = 0x464E5253;
+    //  version 3: the trie concept ids are the concept ids of the FastRule (interned in the order of the rule ids)
+    //  version 4: the square brackets are compiled as alternation nodes, instead of being expanded
+    //  version 5: the character rule settings include maxRepeatLength and the special character support
+    //  version 6: the trie keeps the iteration rank of each child in its HashMap node
+    //  version 7: the overlap settings of the token rules and the pseudo match removal are saved
+    public static final int VERSION = 7;
+
+    /**
+     * @param ruleStr rule file path or rule string
+     * @return true if ruleStr points to a snapshot file
+     */
+    public static boolean isSnapshot(String ruleStr) {
+        ruleStr = ruleStr.trim();
+        return ruleStr.toLowerCase().endsWith(EXTENSION) && new File(ruleStr).isFile();
+    }
+
+    /**
+     * Save a FastRule into a snapshot file. The rules are saved from a compiled copy if they have not been compiled
+     * (or a rebuilt copy if they have been updated by updateRules), the FastRule itself is not changed.
+     *
+     * @param fastRule       the FastRule to save
+     * @param typeDefinition type definitions of the concepts
+     * @param caseSensitive  whether the rules were built case-sensitively
+     * @param snapshotFile   output file path
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(FastRule fastRule, LinkedHashMap<String, TypeDefinition> typeDefinition,
+                            boolean caseSensitive, String snapshotFile) throws IOException {
+//      the updated rules are not all in the compiled trie, save a rebuilt version instead
+        if (fastRule.hasRuleUpdates()) {
+            fastRule = fastRule.compact();
+        } else if (!fastRule.isCompiled()) {
+            fastRule = fastRule.copyForUpdate();
+        }
+        if (!fastRule.isCompiled())
+            fastRule.setCompiled(true);
+        CompiledTrie trie = fastRule.getCompiledTrie();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fastRule.getClass().getName());
+            out.writeBoolean(caseSensitive);
+            if (fastRule instanceof FastCRule) {
+                FastCRule fastCRule = (FastCRule) fastRule;
+                out.writeBoolean(true);
+                out.writeBoolean(fastCRule.getReplicationSupport());
+                writeString(out, fastCRule.getCompareMethod());
+                out.writeBoolean(fastCRule.isLiteralAutomaton());
+                out.writeInt(fastCRule.getMaxRepeatLength());
+                out.writeBoolean(fastCRule.getSpecialCharacterSupport());
+            } else {
+                out.writeBoolean(false);
+            }
+            out.writeBoolean(fastRule.removePseudo);
+            if (fastRule instanceof FastRuleWOG) {
+                FastRuleWOG fastRuleWOG = (FastRuleWOG) fastRule;
+                out.writeBoolean(true);
+                writeString(out, fastRuleWOG.spanCompareMethod);
+                writeString(out, fastRuleWOG.widthCompareMethod);
+            } else {
+                out.writeBoolean(false);
+            }
+
+            out.writeInt(typeDefinition == null ? 0 : typeDefinition.size());
+            if (typeDefinition != null) {
+                for (Map.Entry<String, TypeDefinition> ent : typeDefinition.entrySet()) {
+                    TypeDefinition definition = ent.getValue();
+                    writeString(out, ent.getKey());
+                    writeString(out, definition.fullTypeName);
+                    writeString(out, definition.getFullSuperTypeName());
+                    LinkedHashMap<String, String> featureValuePairs = definition.getFeatureValuePairs();
+                    out.writeInt(featureValuePairs.size());
+                    for (Map.Entry<String, String> feature : featureValuePairs.entrySet()) {
+                        writeString(out, feature.getKey());
+                        writeString(out, feature.getValue() == null ? "" : feature.getValue());
+                    }
+                }
+            }
+
+            out.writeInt(fastRule.ruleStore.size());
+            for (Rule rule : fastRule.ruleStore.values()) {
+                out.writeInt(rule.id);
+                writeString(out, rule.rule);
+                writeString(out, rule.ruleName);
+                out.writeDouble(rule.score);
+                writeString(out, rule.type.name());
+                ArrayList<Object> attributes = rule instanceof NERRule ? ((NERRule) rule).attributes : new ArrayList<>();
+                out.writeInt(attributes.size());
+                for (Object attribute : attributes) {
+                    writeString(out, String.valueOf(attribute));
+                }
+            }
+
+            out.writeInt(fastRule.vocabularyTokens.size());
+            for (String token : fastRule.vocabularyTokens) {
+                writeString(out, token);
+            }
+            writeTrie(out, trie);
+        }
+    }
+
+    /**
+     * Write the trie through its accessors, so that a MappedCompiledTrie can be saved again.
+     */
+    protected static void writeTrie(DataOutputStream out, CompiledTrie trie) throws IOException {
+        out.writeInt(trie.conceptNames.length);
+        for (String conceptName : trie.conceptNames) {
+            writeString(out, conceptName);
+        }
+        int nodeCount = trie.getNodeCount();
+        int[] childOffsets = new int[nodeCount + 1], endOffsets = new int[nodeCount + 1];
+        for (int n = 0; n < nodeCount; n++) {
+            childOffsets[n] = trie.childBegin(n);
+            endOffsets[n] = trie.endBegin(n);
+        }
+        childOffsets[nodeCount] = trie.childEnd(nodeCount - 1);
+        endOffsets[nodeCount] = trie.endEnd(nodeCount - 1);
+        int[] childKeys = new int[childOffsets[nodeCount]], childNodes = new int[childOffsets[nodeCount]];
+        int[] childRanks = new int[childOffsets[nodeCount]];
+        for (int i = 0; i < childKeys.length; i++) {
+            childKeys[i] = trie.childKey(i);
+            childNodes[i] = trie.childNode(i);
+            childRanks[i] = trie.childRank(i);
+        }
+        int[] endConcepts = new int[endOffsets[nodeCount]], endRules = new int[endOffsets[nodeCount]];
+        for (int i = 0; i < endConcepts.length; i++) {
+            endConcepts[i] = trie.endConcept(i);
+            endRules[i] = trie.endRule(i);
+        }
+        writeInts(out, childOffsets);
+        writeInts(out, childKeys);
+        writeInts(out, childNodes);
+        writeInts(out, childRanks);
+        writeInts(out, endOffsets);
+        writeInts(out, endConcepts);
+        writeInts(out, endRules);
+    }
+
+    /**
+     * Load a FastRule from a snapshot file, with the compiled trie copied onto the heap.
+     *
+     * @param snapshotFile   snapshot file path
+     * @param typeDefinition the type definitions in the snapshot will be added to it (can be null)
+     * @param caseSensitive  expected case sensitivity, only used to warn about a mismatched snapshot
+     * @return the FastRule, already compiled
+     * @throws IOException if the file cannot be read or is not a snapshot of this version
+     */
+    public static FastRule load(String snapshotFile, LinkedHashMap<String, TypeDefinition> typeDefinition,
+                                boolean caseSensitive) throws IOException {
+        return load(snapshotFile, typeDefinition, caseSensitive, false);
+    }
+
+    /**
+     * Load a FastRule from a snapshot file.
+     *
+     * @param snapshotFile   snapshot file path
+     * @param typeDefinition the type definitions in the snapshot will be added to it (can be null)
+     * @param caseSensitive  expected case sensitivity, only used to warn about a mismatched snapshot
+     * @param mapped         true: read the compiled trie in place from the mapped file (see MappedCompiledTrie);
+     *                       false: copy the compiled trie onto the heap
+     * @return the FastRule, already compiled
+     * @throws IOException if the file cannot be read or is not a snapshot of this version
+     */
+    public static FastRule load(String snapshotFile, LinkedHashMap<String, TypeDefinition> typeDefinition,
+                                boolean caseSensitive, boolean mapped) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(Paths.get(snapshotFile.trim()), StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.remaining() < 8 || in.getInt() != MAGIC)
+            throw new IOException(snapshotFile + " is not a FastNER rule snapshot.");
+        int version = in.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported rule snapshot version " + version + " of " + snapshotFile
+                    + ", expected version " + VERSION + ". Please rebuild the snapshot.");
+
+        String className = readString(in);
+        boolean snapshotCaseSensitive = in.get() != 0;
+        if (snapshotCaseSensitive != caseSensitive)
+            logger.warning("The rule snapshot " + snapshotFile + " was not built with caseSensitive=" + caseSensitive);
+        FastRule fastRule;
+        try {
+            fastRule = Class.forName(className).asSubclass(FastRule.class)
+                    .getConstructor(HashMap.class).newInstance(new HashMap<Integer, Rule>());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot initiate " + className + " from " + snapshotFile, e);
+        }
+        if (in.get() != 0) {
+            FastCRule fastCRule = (FastCRule) fastRule;
+            fastCRule.setReplicationSupport(in.get() != 0);
+            fastCRule.setCompareMethod(readString(in));
+            fastCRule.setLiteralAutomaton(in.get() != 0);
+            fastCRule.setMaxRepeatLength(in.getInt());
+            fastCRule.setSpecialCharacterSupport(in.get() != 0);
+        }
+        fastRule.setRemovePseudo(in.get() != 0);
+        if (in.get() != 0) {
+            FastRuleWOG fastRuleWOG = (FastRuleWOG) fastRule;
+//          the fields, not the setters: FastCRule.setCompareMethod sets the char compare method read above
+            fastRuleWOG.spanCompareMethod = readString(in);
+            fastRuleWOG.widthCompareMethod = readString(in);
+        }
+
+        int typeCount = in.getInt();
+        for (int i = 0; i < typeCount; i++) {
+            String shortName = readString(in);
+            String fullTypeName = readString(in);
+            String superTypeName = readString(in);
+            int featureCount = in.getInt();
+            LinkedHashMap<String, String> featureValuePairs = new LinkedHashMap<>();
+            for (int j = 0; j < featureCount; j++) {
+                featureValuePairs.put(readString(in), readString(in));
+            }
+            if (typeDefinition != null && !typeDefinition.containsKey(shortName)) {
+                TypeDefinition definition = new TypeDefinition(fullTypeName, superTypeName,
+                        new ArrayList<>(featureValuePairs.keySet()));
+                definition.getFeatureValuePairs().putAll(featureValuePairs);
+                typeDefinition.put(shortName, definition);
+            }
+        }
+
+        int ruleCount = in.getInt();
+        HashMap<Integer, Rule> ruleStore = new HashMap<>();
+        for (int i = 0; i < ruleCount; i++) {
+            int id = in.getInt();
+            String rule = readString(in);
+            String ruleName = readString(in);
+            double score = in.getDouble();
+            Determinants type = Determinants.valueOf(readString(in));
+            int attributeCount = in.getInt();
+            String[] attributes = new String[attributeCount];
+            for (int j = 0; j < attributeCount; j++) {
+                attributes[j] = readString(in);
+            }
+            ruleStore.put(id, new NERRule(id, rule, ruleName, score, type, attributes));
+        }
+
+        int tokenCount = in.getInt();
+        ArrayList<String> vocabularyTokens = new ArrayList<>(tokenCount);
+        for (int i = 0; i < tokenCount; i++) {
+            vocabularyTokens.add(readString(in));
+        }
+        String[] conceptNames = new String[in.getInt()];
+        for (int i = 0; i < conceptNames.length; i++) {
+            conceptNames[i] = readString(in);
+        }
+        CompiledTrie trie;
+        if (mapped)
+            trie = new MappedCompiledTrie(readIntBuffer(in), readIntBuffer(in), readIntBuffer(in), readIntBuffer(in),
+                    readIntBuffer(in), readIntBuffer(in), readIntBuffer(in), conceptNames);
+        else
+            trie = new CompiledTrie(readInts(in), readInts(in), readInts(in), readInts(in),
+                    readInts(in), readInts(in), readInts(in), conceptNames);
+        fastRule.initiate(ruleStore, trie, vocabularyTokens);
+        return fastRule;
+    }
+
+    protected static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        while (out.size() % Integer.BYTES != 0)
+            out.writeByte(0);
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    protected static int[] readInts(ByteBuffer in) {
+        int[] values = new int[readIntsLength(in)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    protected static IntBuffer readIntBuffer(ByteBuffer in) {
+        int length = readIntsLength(in);
+        ByteBuffer slice = in.slice();
+        slice.limit(length * Integer.BYTES);
+        in.position(in.position() + length * Integer.BYTES);
+        return slice.asIntBuffer();
+    }
+
+    protected static int readIntsLength(ByteBuffer in) {
+        in.position((in.position() + Integer.BYTES - 1) & -Integer.BYTES);
+        return in.getInt();
+    }
+}
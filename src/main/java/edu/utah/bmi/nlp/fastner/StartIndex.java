@@ -0,0 +1,88 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import java.util.HashSet;
+
+/**
+ * The symbols that the rules of an engine can start with, read from the first level of the rules (see
+ * FastRule.getStartIndex), so that the rule walks are only started at the positions where a rule may begin, and a
+ * sentence without any of these positions is skipped as a whole.
+ * <p>
+ * The token rules start with the tokens, or with a number ("\\d+"); the char rules start with the chars, or with a
+ * char of the wildcard classes. A rule that starts with any other wildcard (e.g. "\\w+") can begin anywhere, which
+ * turns the index off.
+ *
+ * @author Jianlin Shi
+ */
+public class StartIndex {
+    //  true if a rule can begin at any position
+    public boolean any = false;
+    //  true if a token rule can begin with a number
+    public boolean numbers = false;
+    //  true if a char rule can begin at the first char of a text (e.g. "\\b")
+    public boolean textBegin = false;
+    public HashSet<String> tokens = new HashSet<>();
+    //  the bitmap of the first chars of the char rules
+    public long[] chars = new long[(Character.MAX_VALUE + 1) >>> 6];
+    //  the wildcard bits (see FastCRule.charClasses) of the first wildcards of the char rules
+    public int charClasses = 0;
+
+    public void addToken(String token) {
+        tokens.add(token);
+    }
+
+    public void addChar(char c) {
+        chars[c >>> 6] |= 1L << c;
+    }
+
+    /**
+     * @param token  a token text
+     * @param number whether the token is a number
+     * @return true if a token rule may begin at the token
+     */
+    public boolean canStart(String token, boolean number) {
+        return any || (number && numbers) || tokens.contains(token);
+    }
+
+    /**
+     * @param c       a char of the text
+     * @param classes the wildcard bits of the char
+     * @return true if a char rule may begin at the char
+     */
+    public boolean canStart(char c, int classes) {
+        return any || (chars[c >>> 6] & (1L << c)) != 0 || (classes & charClasses) != 0;
+    }
+
+    /**
+     * Scan the chars for the first one in the bitmap of the first chars (which the engine may have filled with the
+     * chars of the wildcard classes too).
+     *
+     * @param textChars the chars of a text
+     * @param from      first position to check
+     * @param to        end of the positions to check
+     * @return the first position whose char is in the bitmap, or to if none
+     */
+    public int nextStart(char[] textChars, int from, int to) {
+        long[] chars = this.chars;
+        for (int i = from; i < to; i++) {
+            char c = textChars[i];
+            if ((chars[c >>> 6] & (1L << c)) != 0)
+                return i;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import java.util.Arrays;
+
+/**
+ * Resolves the overlaps of each concept in one sort and one linear sweep.
+ * <p>
+ * The candidates of a concept are sorted by their begins (and by the order they were found at a same begin). The
+ * sweep keeps a list of non-overlapping matches: a candidate can only overlap the last kept match, which it either
+ * replaces or loses to (see FastRule.preferMatch), without a tree query, an Interval1D or a Span per candidate.
+ * <p>
+ * When the candidates are found in the order of their begins, this keeps the same matches as the default checks of
+ * the engines (see addDeterminant). The rules with groups find their candidates out of that order, so their results
+ * can differ from the default checks: the sort changes which candidates are compared, and so which ones are kept.
+ *
+ * @author Jianlin Shi
+ */
+public class SweepLineResolver implements OverlapResolver {
+
+    public void resolve(FastRule fastRule, MatchCandidates candidates, MatchContext context) {
+        int size = candidates.size;
+        if (size == 0)
+            return;
+//      group the candidates by concepts, keeping their order
+        int concepts = 0;
+        for (int i = 0; i < size; i++)
+            concepts = Math.max(concepts, candidates.conceptIds[i] + 1);
+        int[] offsets = candidates.offsets = MatchCandidates.ensure(candidates.offsets, concepts + 1);
+        Arrays.fill(offsets, 0, concepts + 1, 0);
+        for (int i = 0; i < size; i++)
+            offsets[candidates.conceptIds[i] + 1]++;
+        for (int c = 0; c < concepts; c++)
+            offsets[c + 1] += offsets[c];
+        int[] positions = candidates.positions = MatchCandidates.ensure(candidates.positions, concepts);
+        System.arraycopy(offsets, 0, positions, 0, concepts);
+//      the begin in the high bits, and the order of the candidate in the low bits, so that a sort of the keys is stable
+        long[] keys = candidates.keys = MatchCandidates.ensure(candidates.keys, size);
+        for (int i = 0; i < size; i++)
+            keys[positions[candidates.conceptIds[i]]++] = ((long) candidates.begins[i] << 32) | i;
+
+        MetricsRegistry metrics = fastRule.getMetrics();
+        int[] kept = candidates.kept = MatchCandidates.ensure(candidates.kept, size);
+        for (int conceptId = 0; conceptId < concepts; conceptId++) {
+            int from = offsets[conceptId], to = offsets[conceptId + 1];
+            if (from == to)
+                continue;
+            Arrays.sort(keys, from, to);
+            int keptSize = 0;
+            for (int k = from; k < to; k++) {
+                int i = (int) keys[k];
+                if (keptSize > 0) {
+                    int last = kept[keptSize - 1];
+                    if (candidates.ends[last] > candidates.begins[i]) {
+                        boolean replace = fastRule.preferMatch(candidates.ruleIds[i], candidates.begins[i], candidates.ends[i],
+                                candidates.ruleIds[last], candidates.begins[last], candidates.ends[last]);
+                        if (metrics != null) {
+                            if (replace)
+                                metrics.recordOverlap(candidates.ruleIds[i], candidates.ruleIds[last]);
+                            else
+                                metrics.recordOverlap(candidates.ruleIds[last], candidates.ruleIds[i]);
+                        }
+                        if (replace)
+                            kept[keptSize - 1] = i;
+                        continue;
+                    }
+                }
+                kept[keptSize++] = i;
+            }
+            for (int k = 0; k < keptSize; k++) {
+                int i = kept[k];
+                fastRule.keepMatch(context, conceptId, candidates.begins[i], candidates.ends[i], candidates.ruleIds[i]);
+            }
+        }
+    }
+}
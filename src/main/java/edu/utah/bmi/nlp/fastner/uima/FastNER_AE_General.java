@@ -18,6 +18,11 @@ package edu.utah.bmi.nlp.fastner.uima;
 import edu.utah.bmi.nlp.core.*;
 import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
 import edu.utah.bmi.nlp.fastner.FastNER;
+import edu.utah.bmi.nlp.fastner.FastRule;
+import edu.utah.bmi.nlp.fastner.FastRuleWOG;
+import edu.utah.bmi.nlp.fastner.MatchContext;
+import edu.utah.bmi.nlp.fastner.RuleMetrics;
+import edu.utah.bmi.nlp.fastner.RuleSnapshot;
 import edu.utah.bmi.nlp.type.system.*;
 import edu.utah.bmi.nlp.uima.ae.RuleBasedAEInf;
 import edu.utah.bmi.nlp.uima.common.AnnotationComparator;
@@ -33,6 +38,7 @@ import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -87,6 +93,16 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
     public static final String ADV_PARAM_SPAN_COMPARE_METHOD = "SpanCompareMethod";
     public static final String ADV_PARAM_WIDTH_COMPARE_METHOD = "WidthCompareMethod";
 
+    public static final String PARAM_COMPILE_RULES = "CompileRules";
+
+    //  when the rule file is a RuleSnapshot, read its compiled trie in place from the memory-mapped file,
+    //  so that the worker processes on a same host share one copy through the OS page cache
+    public static final String PARAM_MAP_RULE_SNAPSHOT = "MapRuleSnapshot";
+
+    //  if set, count the runtime metrics of the rules (throughput, latencies, per-rule matches), and register them
+    //  in JMX under this name (see RuleMetrics)
+    public static final String PARAM_METRICS_NAME = "MetricsName";
+
     //    @ConfigurationParameter(name = TOKEN_TYPE_NAME)
 //    protected String tokenTypeName;
 //    public static final String PARAM_CONCEPT_TYPE_NAME = "conceptTypeName";
@@ -108,8 +124,9 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
     protected HashMap<String, Class<? extends Concept>> ConceptTypes = new HashMap<>();
     protected HashMap<String, Constructor<? extends Concept>> ConceptTypeConstructors = new HashMap<>();
     protected LinkedHashMap<String, LinkedHashMap<String, Method>> setMethods = new LinkedHashMap<>();
-    protected boolean markPseudo = false, logRuleInfo = false;
+    protected boolean markPseudo = false, logRuleInfo = false, compileRules = false, mapRuleSnapshot = false;
     protected boolean caseSenstive = true, forceAssignSections = true, assignSection = true;
+    protected RuleMetrics metrics = null;
     private String spanCompareMethod = scorewidth;
     private String widthCompareMethod = byRuleLength;
     @Deprecated
@@ -158,6 +175,14 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
         if (obj != null && obj instanceof Boolean && (Boolean) obj != false)
             logRuleInfo = true;
 
+        obj = cont.getConfigParameterValue(PARAM_COMPILE_RULES);
+        if (obj != null && obj instanceof Boolean && (Boolean) obj != false)
+            compileRules = true;
+
+        obj = cont.getConfigParameterValue(PARAM_MAP_RULE_SNAPSHOT);
+        if (obj != null && obj instanceof Boolean && (Boolean) obj != false)
+            mapRuleSnapshot = true;
+
         obj = cont.getConfigParameterValue(PARAM_CASE_SENSITIVE);
         if (obj != null && obj instanceof Boolean && (Boolean) obj != true)
             caseSenstive = false;
@@ -183,6 +208,12 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
             TokenTypeConstructor = TokenType.getConstructor(new Class[]{JCas.class, int.class, int.class});
             SentenceTypeConstructor = SentenceType.getConstructor(new Class[]{JCas.class, int.class, int.class});
             LinkedHashMap<String, TypeDefinition> conceptNames = initFastNER(cont, ruleStr);
+            obj = cont.getConfigParameterValue(PARAM_METRICS_NAME);
+            if (obj != null && obj instanceof String && ((String) obj).trim().length() > 0) {
+//              the instances of this AE (one per pipeline thread) share the metrics of the name
+                metrics = RuleMetrics.forName(((String) obj).trim());
+                fastNER.setMetrics(metrics);
+            }
             for (Map.Entry<String, TypeDefinition> conceptTypeDefPair : conceptNames.entrySet()) {
                 String shortTypeName = conceptTypeDefPair.getKey();
                 TypeDefinition typeDefinition = conceptTypeDefPair.getValue();
@@ -223,22 +254,41 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
     }
 
     protected LinkedHashMap<String, TypeDefinition> initFastNER(UimaContext cont, String ruleStr) {
-        fastNER = new FastNER(ruleStr, caseSenstive);
+        if (mapRuleSnapshot && RuleSnapshot.isSnapshot(ruleStr)) {
+            LinkedHashMap<String, TypeDefinition> typeDefinition = new LinkedHashMap<>();
+            fastNER = new FastNER(loadMappedSnapshot(ruleStr, typeDefinition, caseSenstive), typeDefinition);
+        } else {
+            fastNER = new FastNER(ruleStr, caseSenstive);
+        }
         if (markPseudo)
             fastNER.setRemovePseudo(false);
         fastNER.setCompareMethod(this.spanCompareMethod);
         fastNER.setWidthCompareMethod(this.widthCompareMethod);
+//      the rules are lowercased, match the token texts without lowercasing a copy of them
+        if (!caseSenstive)
+            fastNER.setCaseFolding(true);
+        if (compileRules)
+            fastNER.setCompiled(true);
         return fastNER.getTypeDefinitions();
     }
 
+    protected FastRule loadMappedSnapshot(String snapshotFile, LinkedHashMap<String, TypeDefinition> typeDefinition,
+                                          boolean caseSensitive) {
+        try {
+            return RuleSnapshot.load(snapshotFile, typeDefinition, caseSensitive, true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 
     public void process(JCas jcas) throws AnalysisEngineProcessException {
+        long start = metrics == null ? 0 : System.nanoTime();
         IntervalST<String> sectionTree = new IntervalST<>();
         int totalSections = 0;
         if (assignSection || forceAssignSections)
             totalSections = indexSections(jcas, sectionTree);
         LinkedHashMap<String, ArrayList<Annotation>> sections = new LinkedHashMap<>();
-        ArrayList<Annotation> tokens = new ArrayList<>();
         FSIndex annoIndex = jcas.getAnnotationIndex(SentenceType);
         Iterator annoIter = annoIndex.iterator();
         int totalSentences = 0;
@@ -260,44 +310,63 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
 
         }
 
-        // get token annotations
-        annoIndex = jcas.getAnnotationIndex(TokenType);
-        annoIter = annoIndex.iterator();
-        while (annoIter.hasNext()) {
-            tokens.add((Annotation) annoIter.next());
-        }
-
         if (totalSentences > 0) {
+//          index the tokens once per CAS, so that the tokens of each sentence are a contiguous range of the arrays
+            ArrayList<Annotation> tokens = new ArrayList<>();
+            annoIndex = jcas.getAnnotationIndex(TokenType);
+            annoIter = annoIndex.iterator();
+            while (annoIter.hasNext()) {
+                tokens.add((Annotation) annoIter.next());
+            }
+            tokens.sort(new AnnotationComparator());
+            int totalTokens = tokens.size();
+            String[] texts = new String[totalTokens];
+            int[] begins = new int[totalTokens];
+            int[] ends = new int[totalTokens];
+            String text = jcas.getDocumentText();
+//          the token rules fold the case while matching, otherwise the document is lowercased here, once: the token
+//          strings are then cut from it, unless lowercasing changes the length of the text (and so the token offsets)
+            boolean lowercase = !fastNER.isCaseSensitive() && !fastNER.isCaseFolding();
+            String source = lowercase ? text.toLowerCase() : text;
+            boolean lowercaseTokens = source.length() != text.length();
+            if (lowercaseTokens)
+                source = text;
+            for (int i = 0; i < totalTokens; i++) {
+                Annotation token = tokens.get(i);
+                begins[i] = token.getBegin();
+                ends[i] = token.getEnd();
+                texts[i] = lowercaseTokens ? source.substring(begins[i], ends[i]).toLowerCase() : source.substring(begins[i], ends[i]);
+            }
+//          look up the token ids once per CAS, in the version of the rules that processes all the sentences of the CAS
+            FastRuleWOG fastRule = (FastRuleWOG) fastNER.fastRule;
+            int[] tokenIds = fastRule.tokenIds(texts);
+//          the sentences are walked in place, through one context whose token buffers are reused
+            MatchContext context = new MatchContext();
+
             for (String sectionName : sections.keySet()) {
                 // make sure all the annotations are in ascending order regarding span offset
-                Collections.sort(sections.get(sectionName), new AnnotationComparator());
-                Collections.sort(tokens, new AnnotationComparator());
-
-//     Construct annotation_id-annotation_id map, easier and faster to find related annotations.
-                TreeMap<Integer, TreeSet<Integer>> sentence2TokenMap = new TreeMap<Integer, TreeSet<Integer>>();
-                AnnotationOper.buildAnnoMap(sections.get(sectionName), tokens, sentence2TokenMap);
-//                boolean outsiders = true;
-//                if ((includeSections.size() == 0 && excludeSections.size() > 0 && !excludeSections.contains(sectionName))
-//                        || (includeSections.size() > 0 && includeSections.contains(sectionName))
-//                        || (includeSections.size() == 0 && excludeSections.size() == 0)) {
-//                    outsiders = false;
-//                }
-
-//        process each sentence that has at least one concept inside
-                for (Map.Entry<Integer, TreeSet<Integer>> sentence : sentence2TokenMap.entrySet()) {
-                    int sentenceId = sentence.getKey();
-                    TreeSet<Integer> sentenceTokenIds = sentence2TokenMap.get(sentenceId);
-                    ArrayList<Annotation> tokensInThisSentence = new ArrayList<Annotation>();
-                    for (int tokenId : sentenceTokenIds) {
-                        tokensInThisSentence.add(tokens.get(tokenId));
-                    }
-                    HashMap<String, ArrayList<Span>> concepts = fastNER.processAnnotationList(tokensInThisSentence);
+                ArrayList<Annotation> sectionSentences = sections.get(sectionName);
+                sectionSentences.sort(new AnnotationComparator());
+                int tokenId = Arrays.binarySearch(begins, sectionSentences.get(0).getBegin());
+                if (tokenId < 0)
+                    tokenId = -tokenId - 1;
+//        process each sentence that has at least one token inside
+                for (Annotation sentence : sectionSentences) {
+                    int sentenceBegin = sentence.getBegin(), sentenceEnd = sentence.getEnd();
+//                  merge to the first token of the sentence (backwards, if the sentences overlap)
+                    while (tokenId > 0 && begins[tokenId - 1] >= sentenceBegin)
+                        tokenId--;
+                    while (tokenId < totalTokens && begins[tokenId] < sentenceBegin)
+                        tokenId++;
+                    int tokenEnd = tokenId;
+                    while (tokenEnd < totalTokens && begins[tokenEnd] < sentenceEnd && ends[tokenEnd] <= sentenceEnd)
+                        tokenEnd++;
+                    if (tokenEnd == tokenId)
+                        continue;
+                    HashMap<String, ArrayList<Span>> concepts = fastRule.processTokenIds(texts, tokenIds, begins, ends, tokenId, tokenEnd, context);
 //              store found concepts in annotation
                     if (concepts.size() > 0) {
-//                        if (outsiders)
-//                            saveOutsideScopeConcepts(jcas, concepts, sectionName);
-//                        else
-                            saveConcepts(jcas, concepts, sectionName);
+                        saveConcepts(jcas, concepts, sectionName);
                     }
                 }
             }
@@ -322,6 +391,17 @@ public class FastNER_AE_General extends JCasAnnotator_ImplBase implements RuleBa
                 }
             }
         }
+        if (metrics != null)
+            recordDocument(jcas, start);
+    }
+
+    /**
+     * @param jcas  the processed document
+     * @param start the System.nanoTime when the processing of the document started
+     */
+    protected void recordDocument(JCas jcas, long start) {
+        metrics.recordDocument(System.nanoTime() - start, jcas.getDocumentText().length(),
+                jcas.getAnnotationIndex(TokenType).size());
     }
 
 
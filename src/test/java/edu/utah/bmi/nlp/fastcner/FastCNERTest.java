@@ -19,6 +19,7 @@ package edu.utah.bmi.nlp.fastcner;
 import edu.utah.bmi.nlp.core.NERRule;
 import edu.utah.bmi.nlp.core.Rule;
 import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastner.MatchContext;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -26,7 +27,9 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.LogManager;
@@ -34,6 +37,7 @@ import java.util.logging.Logger;
 
 import static edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants.ACTUAL;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
  * Created by
@@ -474,6 +478,148 @@ public class FastCNERTest {
         printMatches(result, input, fcrp);
     }
 
+    @Test
+    public void testProcessDocuments() {
+        String rule = "@fastcner\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n";
+        FastCNER fastCNER = new FastCNER(rule);
+        fastCNER.setReplicationSupport(true);
+        ArrayList<String> documents = new ArrayList<>();
+        ArrayList<Span> spans = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String document = i % 2 == 0 ? "T 101.2 on 12/20 " : "seen on " + (i % 12 + 1) + "/3 ";
+            documents.add(document);
+            spans.add(new Span(i * 100, i * 100 + document.length(), document));
+        }
+        ArrayList<HashMap<String, ArrayList<Span>>> results = fastCNER.processDocuments(documents);
+        ArrayList<HashMap<String, ArrayList<Span>>> spanResults = fastCNER.processTextSpans(spans);
+        assertEquals(documents.size(), results.size());
+        for (int i = 0; i < documents.size(); i++) {
+            HashMap<String, ArrayList<Span>> expected = fastCNER.processString(documents.get(i));
+            assertEquals(expected.keySet(), results.get(i).keySet());
+            for (String key : expected.keySet()) {
+                assertEquals(expected.get(key).size(), results.get(i).get(key).size());
+                for (int j = 0; j < expected.get(key).size(); j++) {
+                    assertEquals(expected.get(key).get(j).begin, results.get(i).get(key).get(j).begin);
+                    assertEquals(expected.get(key).get(j).begin + i * 100, spanResults.get(i).get(key).get(j).begin);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testProcessSpanLists() {
+        FastCNER fastCNER = new FastCNER("@fastcner\nT\\s+1\\d\\d.\\d\t0.1\tFever\n");
+        ArrayList<ArrayList<Span>> tokenLists = new ArrayList<>();
+        tokenLists.add(new ArrayList<>(Collections.singletonList(new Span(0, 7, "T 101.2"))));
+        assertThrows(UnsupportedOperationException.class, () -> fastCNER.processSpanLists(tokenLists));
+    }
+
+    @Test
+    public void testProcessReader() throws IOException {
+        String rule = "@fastcner\n" +
+                "\\b(\\d+/\\d+)\\e\t0\tDate\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "pulmonary\t0\tConcept\n" +
+                "pulmonary emboli\t0\tConcept\n" +
+                "no pulmonary\t0\tConcept\tPSEUDO\n";
+        StringBuilder sb = new StringBuilder("1/2 ");
+        for (int i = 0; i < 200; i++) {
+            sb.append(i % 3 == 0 ? "T 101.2 pulmonary emboli " : "no pulmonary embolism on " + (i % 12 + 1) + "/3 ");
+        }
+        sb.append("12/20");
+        String text = sb.toString();
+        FastCNER fastCNER = new FastCNER(rule);
+        fastCNER.setReplicationSupport(true);
+        HashMap<String, ArrayList<Span>> expected = fastCNER.processString(text);
+//      a small chunk, so that many matches cross the window boundaries
+        ((FastCRule) fastCNER.fastRule).setStreamChunkSize(7);
+        HashMap<String, ArrayList<Span>> actual = new HashMap<>();
+        fastCNER.processReader(new StringReader(text), (concept, span) ->
+                actual.computeIfAbsent(concept, k -> new ArrayList<>()).add(span));
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertEquals(expected.get(key).size(), actual.get(key).size());
+            for (int j = 0; j < expected.get(key).size(); j++) {
+                assertEquals(expected.get(key).get(j).begin, actual.get(key).get(j).begin);
+                assertEquals(expected.get(key).get(j).end, actual.get(key).get(j).end);
+                assertEquals(expected.get(key).get(j).ruleId, actual.get(key).get(j).ruleId);
+            }
+        }
+    }
+
+    @Test
+    public void testProcessSpanToSink() {
+        String rule = "@fastcner\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "pulmonary emboli\t0\tConcept\n" +
+                "no pulmonary\t0\tConcept\tPSEUDO\n";
+        FastCNER fastCNER = new FastCNER(rule);
+        fastCNER.setReplicationSupport(true);
+        MatchContext context = new MatchContext();
+        String[] sentences = {"12/20 pulmonary emboli, T 101.2", "no pulmonary emboli on 11/3, pulmonary emboli"};
+        int offset = 0;
+        for (String sentence : sentences) {
+            Span span = new Span(offset, offset + sentence.length(), sentence);
+            HashMap<String, ArrayList<Span>> expected = fastCNER.processSpan(span);
+            HashMap<String, ArrayList<Span>> actual = new HashMap<>();
+            fastCNER.processSpan(span, context, (conceptId, begin, end, ruleId, score) ->
+                    actual.computeIfAbsent(fastCNER.getConceptName(conceptId), k -> new ArrayList<>())
+                            .add(new Span(begin, end, ruleId, score)));
+            expected.values().removeIf(ArrayList::isEmpty);
+            assertEquals(expected.keySet(), actual.keySet());
+            for (String key : expected.keySet()) {
+                assertEquals(expected.get(key).size(), actual.get(key).size());
+                for (int j = 0; j < expected.get(key).size(); j++) {
+                    assertEquals(expected.get(key).get(j).begin, actual.get(key).get(j).begin);
+                    assertEquals(expected.get(key).get(j).end, actual.get(key).get(j).end);
+                    assertEquals(expected.get(key).get(j).ruleId, actual.get(key).get(j).ruleId);
+                }
+            }
+            offset += sentence.length() + 1;
+        }
+    }
+
+    @Test
+    public void testDeepRule() throws InterruptedException {
+//      a rule of 3000 wildcards used to recurse 6000 calls deep
+        StringBuilder rule = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            rule.append("\\d");
+            text.append(i % 10);
+        }
+        rule.append("\\s+x");
+        text.append("      x");
+        HashMap<Integer, Rule> rules = new HashMap<>();
+        rules.put(0, new NERRule(0, rule.toString(), "Digits", 0, ACTUAL));
+        for (boolean compiled : new boolean[]{false, true}) {
+            FastCNER fastCNER = new FastCNER(rules);
+            fastCNER.setReplicationSupport(true);
+            fastCNER.setCompiled(compiled);
+            fastCNER.processString("1 x");
+            Object[] result = new Object[1];
+//          a small call stack, which the walk does not depend on
+            Thread thread = new Thread(null, () -> {
+                try {
+                    result[0] = fastCNER.processString(text.toString());
+                } catch (Throwable e) {
+                    result[0] = e;
+                }
+            }, "deep-rule", 1 << 17);
+            thread.start();
+            thread.join();
+            assert (result[0] instanceof HashMap) : result[0];
+            ArrayList<Span> spans = ((HashMap<String, ArrayList<Span>>) result[0]).get("Digits");
+            assertEquals(1, spans.size());
+            assertEquals(0, spans.get(0).begin);
+            assertEquals(text.length(), spans.get(0).end);
+        }
+    }
+
     private void printMatches(HashMap<String, ArrayList<Span>> result, String input) {
         logger.finest("Results for: " + input);
         for (Map.Entry<String, ArrayList<Span>> ent : result.entrySet()) {
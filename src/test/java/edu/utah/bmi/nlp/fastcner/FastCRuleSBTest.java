@@ -27,6 +27,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 /**
  * @author Jianlin Shi
  *         Created on 6/2/16.
@@ -47,6 +49,20 @@ public class FastCRuleSBTest {
 
 
 
+    @Test
+    public void testCharClasses() {
+//      each engine class has its own table, built from its own wildcard definitions
+        for (FastCRule fastCRule : new FastCRule[]{new FastCRuleSB(new HashMap<>()), new FastCRuleCN(new HashMap<>())}) {
+            for (char wildCard : "sndCcpauw()+bx".toCharArray()) {
+                for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                    assertEquals(fastCRule.checkWildCard(wildCard, (char) c), fastCRule.isWildCard(wildCard, (char) c));
+                }
+            }
+        }
+        assert (!new FastCRuleSB(new HashMap<>()).isWildCard('C', '胸'));
+        assert (new FastCRuleCN(new HashMap<>()).isWildCard('C', '胸'));
+    }
+
     @Test
     public void test() {
         HashMap<Integer, Rule>rules=new HashMap<>();
@@ -56,6 +72,26 @@ public class FastCRuleSBTest {
 //        fcruleSB.addRule(fcruleSB.ruleStore.get(0));
     }
 
+    @Test
+    public void testAlternationNodes() {
+        HashMap<Integer, Rule> rules = new HashMap<>();
+        rules.put(1, new NERRule(1, "[a|b|c|d][e|f|g|h][i|j|k|l][m|n|o|p][q|r|s|t]z", "R1", 1, DeterminantValueSet.Determinants.ACTUAL));
+        rules.put(2, new NERRule(2, "pulmonary [emboli|embolism] on", "R2", 1, DeterminantValueSet.Determinants.ACTUAL));
+        rules.put(3, new NERRule(3, "[x|y]w", "R3", 1, DeterminantValueSet.Determinants.ACTUAL));
+        rules.put(4, new NERRule(4, "xv", "R3", 1, DeterminantValueSet.Determinants.ACTUAL));
+        FastCRuleSB fcruleSB = new FastCRuleSB(rules);
+        fcruleSB.setCompiled(true);
+//      1024 expanded rules would take more than 2000 nodes
+        assert (fcruleSB.getCompiledTrie().getNodeCount() < 60);
+        HashMap<String, ArrayList<Span>> res = fcruleSB.processString("aeimqz dhlptz bfjnrz");
+        assertEquals(3, res.get("R1").size());
+        res = fcruleSB.processString("pulmonary emboli on, pulmonary embolism on, pulmonary embolismsm on");
+        assertEquals(2, res.get("R2").size());
+//      the rule added through the shared continuation of "[x|y]" does not apply to "y"
+        res = fcruleSB.processString("xw yw xv yv");
+        assertEquals("[(0-2):3, (3-5):3, (6-8):4]", res.get("R3").toString());
+    }
+
     @Test
     public void test2() {
         HashMap<Integer, Rule>rules=new HashMap<>();
@@ -0,0 +1,123 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.utah.bmi.nlp.fastcner;
+
+import edu.utah.bmi.nlp.core.Span;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Jianlin Shi
+ */
+public class LiteralAutomatonTest {
+
+    @Test
+    public void testMatch() {
+        LiteralAutomaton automaton = new LiteralAutomaton();
+        automaton.addRule("he", 0, 1);
+        automaton.addRule("she", 0, 2);
+        automaton.addRule("hers", 1, 3);
+        automaton.addRule("his", 1, 4);
+        automaton.build();
+        char[] text = "ushers his".toCharArray();
+        LiteralAutomaton.Hits hits = automaton.match(text);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < text.length; i++) {
+            for (int h = hits.offsets[i]; h < hits.offsets[i + 1]; h++) {
+                sb.append(i).append("-").append(hits.ends[h]).append(" ");
+            }
+        }
+        assertEquals("1-4 2-4 2-6 7-10 ", sb.toString());
+    }
+
+    @Test
+    public void testIsLiteral() {
+        assert (LiteralAutomaton.isLiteral("chest pain"));
+        assert (!LiteralAutomaton.isLiteral("T\\s+1\\d\\d"));
+        assert (!LiteralAutomaton.isLiteral("(pain)"));
+        assert (!LiteralAutomaton.isLiteral("胸[痛|闷]"));
+    }
+
+    @Test
+    public void testLiteralRules() {
+        String rule = "@fastcner\n" +
+                "pulmonary\t0\tConcept\n" +
+                "pulmonary emboli\t0\tConcept\n" +
+                "emboli\t0\tConcept\n" +
+                "emboli\t0\tFinding\n" +
+                "no pulmonary emboli\t0\tConcept\tPSEUDO\n";
+        compare(rule, "Pulmonary emboli, pulmonary embolism, no pulmonary emboli, emboli");
+    }
+
+    @Test
+    public void testMixedRules() {
+        String rule = "@fastcner\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n" +
+                "fever\t0\tFever\n" +
+                "febrile\t0\tFever\n" +
+                "afebrile\t0\tFever\tPSEUDO\n";
+        compare(rule, "12/20 febrile, T 101.2, afebrile since 11/3, no fever");
+    }
+
+    @Test
+    public void testTiesAtSameBegin() {
+//      the literal "a" and "aab" are reached before "ab\\c" and "a+b" in the trie, which keeps them when the scores tie
+        String rule = "@fastcner\n" +
+                "a\t0\tConcept\n" +
+                "ab\\c\t0\tConcept\n" +
+                "aab\t0\tFinding\n" +
+                "a+b\t0\tFinding\n";
+        compare(rule, "abc, aab", "score");
+        compare(rule, "abc, aab", "width");
+    }
+
+    private void compare(String rule, String text) {
+        compare(rule, text, null);
+    }
+
+    private void compare(String rule, String text, String compareMethod) {
+        FastCNER fastCNER = new FastCNER(rule);
+        fastCNER.setReplicationSupport(true);
+        if (compareMethod != null)
+            fastCNER.setCompareMethod(compareMethod);
+        String expected = serialize(fastCNER.processString(text));
+        fastCNER.setLiteralAutomaton(true);
+        String actual = serialize(fastCNER.processString(text));
+        assert (expected.length() > 0);
+        assertEquals(expected, actual);
+        fastCNER.setCompiled(true);
+        assertEquals(expected, serialize(fastCNER.processString(text)));
+    }
+
+    private String serialize(HashMap<String, ArrayList<Span>> res) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : new TreeMap<>(res).keySet()) {
+            sb.append(key).append(":");
+            for (Span span : res.get(key)) {
+                sb.append(" ").append(span.begin).append("-").append(span.end).append("/").append(span.ruleId);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
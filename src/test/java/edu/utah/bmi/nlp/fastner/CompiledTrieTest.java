@@ -0,0 +1,211 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.DeterminantValueSet;
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compare the matches of compiled rules with the matches of the chained-up HashMaps.
+ *
+ * @author Jianlin Shi
+ */
+public class CompiledTrieTest {
+
+    private String serialize(HashMap<String, ArrayList<Span>> res) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : new TreeMap<>(res).keySet()) {
+            sb.append(key).append(":");
+            for (Span span : res.get(key)) {
+                sb.append(" ").append(span.begin).append("-").append(span.end).append("/").append(span.ruleId);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private void compareTokenRules(String rule, String text) {
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        String expected = serialize(fastNER.processSpanList(tokens));
+        fastNER.setCompiled(true);
+        assert (fastNER.isCompiled());
+        String actual = serialize(fastNER.processSpanList(tokens));
+        System.out.println(actual);
+        assert (expected.length() > 0);
+        assert (expected.equals(actual));
+        fastNER.setCompiled(false);
+        assert (!fastNER.isCompiled());
+        assert (expected.equals(serialize(fastNER.processSpanList(tokens))));
+    }
+
+    @Test
+    public void testWOG() {
+        String rule = "@fastner\n" +
+                "emboli\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "\\w+ treatment\t0\tTreatment\tACTUAL\n" +
+                "no further \\w+\t0\tConcept\tPSEUDO\n" +
+                "HbA \\d+ C\t0\tLab\tACTUAL\n";
+        compareTokenRules(rule, "Exam was done yesterday. Positive for pulmonary emboli protocol. " +
+                "No further treatment needed. HbA 1 C was normal.");
+    }
+
+    @Test
+    public void testWG() {
+        String rule = "@fastner\n" +
+                "was \\( done \\) yesterday\t0\tConcept\tACTUAL\n" +
+                "\\( pulmonary emboli \\) protocol\t0\tConcept\tACTUAL\n" +
+                "for \\( \\w+ \\)\t0\tOther\tACTUAL\n";
+        compareTokenRules(rule, "Exam was done yesterday. Positive for pulmonary emboli protocol. No further treatment needed.");
+    }
+
+    @Test
+    public void testWGN() {
+        String rule = "@fastner\n" +
+                "was done \\< 6 \\> 3\t0\tConcept\tACTUAL\n" +
+                "HbA \\d+ C \\> 100\t0\tLab\tACTUAL\n" +
+                "HbA \\d+ C \\< 60\t0\tLowLab\tACTUAL\n";
+        compareTokenRules(rule, "Exam was done 5 yesterday. Positive when HbA 1 C 105 but not HbA 1 C 50.");
+    }
+
+    @Test
+    public void testFastCNER() {
+        String rule = "@fastcner\n" +
+                "\\b(\\d+/\\d+)\\e\t0\tDate\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "(\\C\\c+) emboli\t0\tConcept\n" +
+                "pulmonary\t0\tConcept\n" +
+                "pulmonary\t0\tOrgan\n" +
+                "no pulmonary\t0\tConcept\tPSEUDO\n";
+        String text = "12/20 Pulmonary emboli, T 101.2, no pulmonary embolism on 11/3";
+        FastCNER fastCNER = new FastCNER(rule);
+        fastCNER.setReplicationSupport(true);
+        String expected = serialize(fastCNER.processString(text));
+        fastCNER.setCompiled(true);
+        String actual = serialize(fastCNER.processString(text));
+        System.out.println(actual);
+        assert (expected.length() > 0);
+        assert (expected.equals(actual));
+    }
+
+    @Test
+    public void testWildCardTies() {
+//      both rules match ",;" with the same score and width, so the kept span depends on the order the wildcards are tried
+        String rule = "@fastcner\n" +
+                "\\p\\p\t0\tMark\n" +
+                "\\a\\a\t0\tMark\n";
+        String text = "x ,; y";
+        FastCNER fastCNER = new FastCNER(rule);
+        HashMap<String, ArrayList<Span>> res = fastCNER.processString(text);
+//      the wildcards are tried in the iteration order of the HashMap node, where "p" comes before "a"
+        assert (res.get("Mark").size() == 1);
+        assert (fastCNER.fastRule.getRuleString(res.get("Mark").get(0).ruleId).equals("\\p\\p"));
+        String expected = serialize(res);
+        fastCNER.setCompiled(true);
+        assert (expected.equals(serialize(fastCNER.processString(text))));
+    }
+
+    @Test
+    public void testSharedWildCardTies() {
+//      "b" and "\\a" share the node before "z", which is numbered under the root before "\\p" is numbered under "\\"
+        String rule = "@fastcner\n" +
+                "[b|\\a]z\t0\tMark\n" +
+                "\\pz\t0\tMark\n";
+        String text = "x ,z y";
+        FastCNER fastCNER = new FastCNER(rule);
+        HashMap<String, ArrayList<Span>> res = fastCNER.processString(text);
+        assert (res.get("Mark").size() == 1);
+        String expected = serialize(res);
+        fastCNER.setCompiled(true);
+        CompiledTrie trie = fastCNER.fastRule.getCompiledTrie();
+        int escape = trie.child(CompiledTrie.ROOT, '\\');
+        assert (trie.child(trie.child(CompiledTrie.ROOT, 'b'), 'z') == trie.child(trie.child(escape, 'a'), 'z'));
+        assert (trie.child(CompiledTrie.ROOT, 'b') < trie.child(escape, 'p'));
+        assertEquals(expected, serialize(fastCNER.processString(text)));
+    }
+
+    @Test
+    public void testTokenIds() {
+        String rule = "@fastner\n" +
+                "was done \\< 6 \\> 3\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "HbA \\d+ C \\> 100\t0\tLab\tACTUAL\n";
+        String text = "Exam was done 5 yesterday. Positive for pulmonary emboli when HbA 1 C 105. But not HbA 1 C 50.";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        String[] texts = new String[tokens.size()];
+        int[] begins = new int[tokens.size()], ends = new int[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++) {
+            texts[i] = tokens.get(i).text;
+            begins[i] = tokens.get(i).begin;
+            ends[i] = tokens.get(i).end;
+        }
+        for (boolean compiled : new boolean[]{false, true}) {
+            FastNER fastNER = new FastNER(rule);
+            fastNER.setCompiled(compiled);
+            FastRuleWOG fastRule = (FastRuleWOG) fastNER.fastRule;
+            int[] tokenIds = fastRule.tokenIds(texts);
+            assert (compiled == (tokenIds != null));
+            if (compiled) {
+                assert (tokenIds[0] == CompiledTrie.NONE);
+                assert (tokenIds[1] != CompiledTrie.NONE);
+            }
+//          process the tokens sentence by sentence, as the ranges of the document arrays
+            int from = 0;
+            for (int to = 1; to <= texts.length; to++) {
+                if (to < texts.length && !texts[to - 1].equals("."))
+                    continue;
+                String expected = serialize(fastRule.processTokens(texts, begins, ends, from, to));
+                assert (expected.equals(serialize(fastRule.processTokenIds(texts, tokenIds, begins, ends, from, to))));
+                from = to;
+            }
+            String expected = serialize(fastRule.processTokens(texts, begins, ends));
+            assert (expected.contains("Concept:"));
+            assert (expected.equals(serialize(fastRule.processTokenIds(texts, tokenIds, begins, ends, 0, texts.length))));
+        }
+    }
+
+    @Test
+    public void testCompile() {
+        HashMap rulesMap = new HashMap();
+        HashMap child = new HashMap();
+        HashMap end = new HashMap();
+        end.put("Concept", 1);
+        child.put(DeterminantValueSet.Determinants.END, end);
+        for (char c = 'a'; c <= 'z'; c++)
+            rulesMap.put(c, child);
+        CompiledTrie trie = CompiledTrie.compile(rulesMap, (key) -> (Character) key);
+//      the shared sub-map is compiled into one node
+        assert (trie.getNodeCount() == 2);
+        for (char c = 'a'; c <= 'z'; c++)
+            assert (trie.child(CompiledTrie.ROOT, c) == 1);
+        assert (trie.child(CompiledTrie.ROOT, 'A') == CompiledTrie.NONE);
+        assert (!trie.hasEnd(CompiledTrie.ROOT) && trie.hasEnd(1));
+        assert (trie.getConceptName(trie.endConcept(trie.endBegin(1))).equals("Concept"));
+        assert (trie.endRule(trie.endBegin(1)) == 1);
+    }
+}
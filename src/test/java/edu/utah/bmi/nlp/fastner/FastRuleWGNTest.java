@@ -23,7 +23,9 @@ import org.junit.jupiter.api.Test;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Created by Jianlin Shi on 7/25/17.
@@ -262,4 +264,38 @@ public class FastRuleWGNTest {
         assert (res.size()==1);
         assert (res.getOrDefault("ONSET_RANGE", new ArrayList<>()).size()==2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void processThresholds() throws Exception {
+        String text = "glucose 95 mg , hba1c 7.5 % , ldl 0x1F mg";
+        StringBuilder rule = new StringBuilder("@fastner\n");
+//      many thresholds under a same node, which are found by binary search
+        for (int i = 0; i < 100; i++) {
+            rule.append("glucose \\> ").append(i * 2).append(" \\< ").append(i * 2 + 2).append(" mg\tGlucose").append(i).append("\n");
+        }
+        rule.append("hba1c \\< 7.5 %\tNormal\n");
+        rule.append("hba1c \\> 7 %\tHigh\n");
+        rule.append("\\> 0 mg\tDose\n");
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        String expected = null;
+        for (boolean compiled : new boolean[]{false, true}) {
+            fastNER = new FastNER(rule.toString());
+            fastNER.setCompiled(compiled);
+            HashMap<String, ArrayList<Span>> res = fastNER.processSpanList(tokens);
+//          95 is only between 94 and 96; a hexadecimal token is a number, but is not compared
+            assert (res.keySet().equals(new HashSet<>(Arrays.asList("Glucose47", "High", "Dose")))) : res.keySet();
+            assert (res.get("Dose").size() == 1);
+//          the HashMap walk and the compiled walk keep the same spans of the same rules
+            StringBuilder sb = new StringBuilder();
+            for (String type : new TreeSet<>(res.keySet())) {
+                for (Span span : res.get(type))
+                    sb.append(type).append(" ").append(span.begin).append("-").append(span.end).append("/")
+                            .append(fastNER.getRuleString(span.ruleId)).append("\n");
+            }
+            if (expected == null)
+                expected = sb.toString();
+            else
+                assert (expected.equals(sb.toString())) : sb;
+        }
+    }
+}
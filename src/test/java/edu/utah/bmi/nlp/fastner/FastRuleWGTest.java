@@ -24,6 +24,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -173,4 +176,81 @@ public class FastRuleWGTest {
         }
 //        assert (res.containsKey("MUTATION") && res.get("MUTATION").size() == 2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void processSpansInThreads() throws Exception {
+        String text = "He has brac 1 and 2. Exam was done yesterday.";
+        String rule = "@fastner\n" +
+                "brac 1 \\) and 2	0	MUTATION\n" +
+                "brac 1 and \\( 2	0	MUTATION\n" +
+                "was \\( done \\)	0	Concept\n";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        fastNER = new FastNER(rule);
+        String expected = fastNER.processSpanList(tokens).toString();
+//      one FastNER instance shared by all threads
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ArrayList<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(executor.submit(() -> fastNER.processSpanList(tokens).toString()));
+        }
+        for (Future<String> future : futures) {
+            assert (future.get().equals(expected));
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void processSpansToSink() throws Exception {
+        String[] texts = {"He has brac 1 and 2. Exam was done yesterday.",
+                "No brac 1 and 2 found, but was done."};
+        String rule = "@fastner\n" +
+                "brac 1 \\) and 2	0	MUTATION\n" +
+                "brac 1 and \\( 2	0	MUTATION\n" +
+                "was \\( done \\)	0	Concept\n" +
+                "no brac	0	MUTATION	PSEUDO\n";
+        fastNER = new FastNER(rule);
+//      one context reused by both calls
+        MatchContext context = new MatchContext();
+        for (String text : texts) {
+            ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+            HashMap<String, ArrayList<Span>> res = fastNER.processSpanList(tokens);
+//          the sink receives the matches in the order of the concept ids
+            StringBuilder expected = new StringBuilder();
+            for (int conceptId = 0; conceptId < fastNER.fastRule.getConceptCount(); conceptId++) {
+                String concept = fastNER.getConceptName(conceptId);
+                for (Span span : res.getOrDefault(concept, new ArrayList<>()))
+                    expected.append(concept).append(" ").append(span.begin).append("-").append(span.end).append("\n");
+            }
+            String[] tokenTexts = new String[tokens.size()];
+            int[] begins = new int[tokens.size()], ends = new int[tokens.size()];
+            for (int i = 0; i < tokens.size(); i++) {
+                tokenTexts[i] = tokens.get(i).text;
+                begins[i] = tokens.get(i).begin;
+                ends[i] = tokens.get(i).end;
+            }
+            StringBuilder actual = new StringBuilder();
+            fastNER.processTokenArrays(tokenTexts, begins, ends, context, (conceptId, begin, end, ruleId, score) ->
+                    actual.append(fastNER.getConceptName(conceptId)).append(" ").append(begin).append("-").append(end).append("\n"));
+            assert (expected.length() > 0);
+            assert (expected.toString().equals(actual.toString()));
+        }
+    }
+
+    @Test
+    public void processAlternations() throws Exception {
+        String text = "Exam found pulmonary emboli. Positive for lung embolism treatment. No lung emboli.";
+        String rule = "@fastner\n" +
+                "[pulmonary|lung] [emboli|embolism] [treatment|]\t0\tConcept\tACTUAL\n" +
+                "lung emboli\t0\tLung\tACTUAL\n";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        fastNER = new FastNER(rule);
+        for (boolean compiled : new boolean[]{false, true}) {
+            fastNER.setCompiled(compiled);
+            HashMap<String, ArrayList<Span>> res = fastNER.processSpanList(tokens);
+            assert (res.get("Concept").size() == 3);
+            assert (text.substring(res.get("Concept").get(1).begin).startsWith("lung embolism"));
+//          "lung emboli" is added through the shared nodes of the alternations, but does not apply to "pulmonary emboli"
+            assert (res.get("Lung").size() == 1);
+        }
+    }
+}
@@ -24,6 +24,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by Jianlin Shi on 7/25/17.
@@ -82,4 +84,80 @@ public class FastRuleWOGTest {
             entry.getValue().forEach((span)->{System.out.println(text.substring(span.getBegin(),span.getEnd()));});
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void processTokenArrays() throws Exception {
+        String text = "Exam was done yesterday. Positive for pulmonary emboli protocol. No further treatment needed.";
+        String rule = "@fastner\n" +
+                "pulmonary emboli	0	Concept	ACTUAL\n" +
+                "\\w+ treatment	0	Treatment	ACTUAL";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, false).get(0);
+        String[] texts = new String[tokens.size()];
+        int[] begins = new int[tokens.size()], ends = new int[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++) {
+            texts[i] = tokens.get(i).text;
+            begins[i] = tokens.get(i).begin;
+            ends[i] = tokens.get(i).end;
+        }
+
+        fastNER = new FastNER(rule);
+        HashMap<String, ArrayList<Span>> res = fastNER.processTokenArrays(texts, begins, ends);
+        assert (res.size() == 2);
+        assert (text.substring(res.get("Concept").get(0).begin, res.get("Concept").get(0).end).equals("pulmonary emboli"));
+        assert (text.substring(res.get("Treatment").get(0).begin, res.get("Treatment").get(0).end).equals("further treatment"));
+        assert (res.toString().equals(fastNER.processSpanList(tokens).toString()));
+
+//      a range of the arrays matches as the sub list of the tokens, and no match goes beyond its end
+        int from = 5, to = tokens.size() - 5;
+        for (boolean compiled : new boolean[]{false, true}) {
+            fastNER.setCompiled(compiled);
+            res = fastNER.processTokenArrays(texts, begins, ends, from, to);
+            assert (res.toString().equals(fastNER.processSpanList(new ArrayList<>(tokens.subList(from, to))).toString()));
+            assert (res.get("Treatment") == null || res.get("Treatment").isEmpty());
+            assert (text.substring(res.get("Concept").get(0).begin, res.get("Concept").get(0).end).equals("pulmonary emboli"));
+            res = fastNER.processTokenArrays(texts, begins, ends, from, 8);
+            assert (res.get("Concept") == null || res.get("Concept").isEmpty());
+        }
+//      the ranges of the token ids, walked through one reused context
+        FastRuleWOG fastRule = (FastRuleWOG) fastNER.fastRule;
+        int[] tokenIds = fastRule.tokenIds(texts);
+        MatchContext context = new MatchContext();
+        for (int[] range : new int[][]{{from, to}, {from, 8}, {0, texts.length}}) {
+            HashMap<String, ArrayList<Span>> expected = fastNER.processTokenArrays(texts, begins, ends, range[0], range[1]);
+            HashMap<String, ArrayList<Span>> actual = fastRule.processTokenIds(texts, tokenIds, begins, ends, range[0], range[1], context);
+            assert (expected.toString().equals(actual.toString())) : actual;
+        }
+    }
+
+    @Test
+    public void processCaseFolding() throws Exception {
+        String text = "Positive for Pulmonary EMBOLI protocol. No further Treatment needed.";
+        String rule = "@fastner\n" +
+                "pulmonary emboli	0	Concept	ACTUAL\n" +
+                "\\w+ treatment	0	Treatment	ACTUAL";
+        ArrayList<Span> tokens = new ArrayList<>(), lowercased = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\\w+|\\S").matcher(text);
+        while (matcher.find()) {
+            tokens.add(new Span(matcher.start(), matcher.end(), matcher.group()));
+            lowercased.add(new Span(matcher.start(), matcher.end(), matcher.group().toLowerCase()));
+        }
+        for (boolean compiled : new boolean[]{false, true}) {
+            fastNER = new FastNER(rule);
+            fastNER.setCompiled(compiled);
+            fastNER.setCaseFolding(true);
+            assert (fastNER.isCaseFolding());
+            HashMap<String, ArrayList<Span>> res = fastNER.processSpanList(tokens);
+            assert (res.toString().equals(fastNER.processSpanList(lowercased).toString()));
+            assert (text.substring(res.get("Concept").get(0).begin, res.get("Concept").get(0).end).equals("Pulmonary EMBOLI"));
+            assert (text.substring(res.get("Treatment").get(0).begin, res.get("Treatment").get(0).end).equals("further Treatment"));
+//          the folded tokens are cached, and the input tokens are not modified
+            assert (res.toString().equals(fastNER.processSpanList(tokens).toString()));
+            assert (tokens.get(2).text.equals("Pulmonary"));
+        }
+
+        fastNER = new FastNER(rule);
+        assert (!fastNER.isCaseFolding());
+        HashMap<String, ArrayList<Span>> res = fastNER.processSpanList(tokens);
+        assert (res.get("Concept") == null || res.get("Concept").isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static edu.utah.bmi.nlp.core.NERSpan.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Jianlin Shi
+ */
+public class MatchContextTest {
+
+    @Test
+    public void testPooledTokens() {
+        FastNER fastNER = new FastNER("@fastner\n" +
+                "emboli\t2\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli protocol\t1\tConcept\tACTUAL\n" +
+                "no pulmonary\t0\tNeg\tACTUAL\n" +
+                "no\t0\tNeg\tPSEUDO\n");
+        fastNER.setCompiled(true);
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(
+                "No pulmonary emboli protocol. No pulmonary emboli or no emboli found.", true).get(0);
+        String[] texts = new String[tokens.size()];
+        int[] begins = new int[tokens.size()], ends = new int[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++) {
+            texts[i] = tokens.get(i).text;
+            begins[i] = tokens.get(i).begin;
+            ends[i] = tokens.get(i).end;
+        }
+        String expected = fastNER.processTokenArrays(texts, begins, ends, 0, texts.length).toString();
+        assert (expected.contains("Concept=") && expected.contains("Neg="));
+
+        MatchContext context = MatchContext.forThread();
+        assert (context.pooled);
+        assertEquals(expected, fastNER.processTokenArrays(texts, begins, ends, context).toString());
+        int[] buffer = context.getKeptMatches().begins;
+//      the returned spans are not changed by the following calls, which reuse the pooled arrays
+        HashMap<String, ArrayList<Span>> res = fastNER.processTokenArrays(texts, begins, ends, context);
+        fastNER.processTokenArrays(new String[]{"emboli"}, new int[]{0}, new int[]{6}, context);
+        assertEquals(expected, res.toString());
+        assert (buffer == context.getKeptMatches().begins);
+
+        StringBuilder sb = new StringBuilder();
+        fastNER.processTokenArrays(texts, begins, ends, context, (conceptId, begin, end, ruleId, score) ->
+                sb.append(fastNER.fastRule.getConceptName(conceptId)).append(begin).append('-').append(end).append(' '));
+        StringBuilder expectedSb = new StringBuilder();
+        fastNER.processTokenArrays(texts, begins, ends, new MatchContext(), (conceptId, begin, end, ruleId, score) ->
+                expectedSb.append(fastNER.fastRule.getConceptName(conceptId)).append(begin).append('-').append(end).append(' '));
+        assertEquals(expectedSb.toString(), sb.toString());
+    }
+
+    @Test
+    public void testPooledChars() {
+        FastCNER fastCNER = new FastCNER("@fastcner\n" +
+                "\\d+/\\d+\t0\tDate\n" +
+                "\\d+/\\d+/\\d+\t0\tDate\n" +
+                "\\d+ mg\t0\tDose\n");
+        Span span = new Span(10, 45, "seen on 12/20/2019 and 11/3, 20 mg");
+        String expected = fastCNER.processSpan(span).toString();
+        MatchContext context = MatchContext.forThread();
+        HashMap<String, ArrayList<Span>> res = fastCNER.processSpan(span, context);
+        assertEquals(expected, res.toString());
+        assertEquals("20 mg", res.get("Dose").get(0).text);
+        fastCNER.processSpan(new Span(0, 4, "3/4"), context);
+        assertEquals(expected, res.toString());
+
+//      a context that is not pooled returns copies of its lists too
+        context = new MatchContext();
+        res = fastCNER.processSpan(span, context);
+        fastCNER.processSpan(new Span(0, 4, "3/4"), context);
+        assertEquals(expected, res.toString());
+    }
+
+    @Test
+    public void testReusedContext() {
+        FastCNER fastCNER = new FastCNER("@fastcner\n" +
+                "\\d+/\\d+\t0\tDate\n" +
+                "\\d+ mg\t0\tDose\n");
+        MatchContext context = new MatchContext();
+        assertEquals(2, fastCNER.processSpan(new Span(0, 16, "on 11/3 of 20 mg"), context).size());
+//      the concepts matched by the earlier call are not returned as empty lists
+        assertEquals(Collections.singleton("Date"), fastCNER.processSpan(new Span(0, 7, "on 11/3"), context).keySet());
+        assertEquals(0, fastCNER.processSpan(new Span(0, 4, "none"), context).size());
+    }
+
+    @Test
+    public void testPooledGroupTokens() {
+//      "x a ( b c )" is found before "a b", but begins after it: a tie keeps the one found first
+        FastNER fastNER = new FastNER("@fastner\n" +
+                "x a \\( b c \\)\t0\tConcept\tACTUAL\n" +
+                "a b\t0\tConcept\tACTUAL\n" +
+                "\\( c d \\) e\t1\tConcept\tACTUAL\n" +
+                "d e f\t1\tConcept\tACTUAL\n");
+        assert (fastNER.fastRule instanceof FastRuleWG);
+        String[] texts = "x a b c d e f".split(" ");
+        int[] begins = new int[texts.length], ends = new int[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            begins[i] = i * 2;
+            ends[i] = i * 2 + 1;
+        }
+        for (boolean compiled : new boolean[]{false, true}) {
+            fastNER.setCompiled(compiled);
+            for (String compareMethod : new String[]{scoreOnly, scorewidth, widthscore, widthOnly}) {
+                fastNER.setCompareMethod(compareMethod);
+                String expected = fastNER.processTokenArrays(texts, begins, ends, new MatchContext()).toString();
+                assertEquals(expected, fastNER.processTokenArrays(texts, begins, ends, MatchContext.forThread()).toString(),
+                        compareMethod);
+            }
+        }
+    }
+
+    @Test
+    public void testPooledGroupChars() {
+        FastCNER fastCNER = new FastCNER("@fastcner\n" +
+                "xa(bc)\t0\tConcept\n" +
+                "ab\t0\tConcept\n" +
+                "(cd)e\t1\tConcept\n" +
+                "def\t1\tConcept\n");
+        Span span = new Span(0, 11, "xabcdef xab");
+        for (String method : new String[]{"score", "scorewidth", "widthscore", "width"}) {
+            fastCNER.setCompareMethod(method);
+            String expected = fastCNER.processSpan(span, new MatchContext()).toString();
+            assertEquals(expected, fastCNER.processSpan(span, MatchContext.forThread()).toString(), method);
+        }
+    }
+
+    @Test
+    public void testSpanText() {
+        FastCNER fastCNER = new FastCNER("@fastcner\n" +
+                "\\d+/\\d+\t0\tDate\n" +
+                "\\d+ mg\t0\tDose\n");
+        Span span = new Span(10, 33, "seen on 11/3, and 20 mg");
+        assertEquals("11/3", fastCNER.processSpan(span).get("Date").get(0).text);
+        fastCNER.setOverlapResolver(new SweepLineResolver());
+        assertEquals("20 mg", fastCNER.processSpan(span).get("Dose").get(0).text);
+        fastCNER.setOverlapResolver(null);
+
+//      a caller that only reads the offsets does not get the matched texts
+        for (MatchContext offsetsOnly : new MatchContext[]{new MatchContext(), MatchContext.forThread()}) {
+            offsetsOnly.spanText = false;
+            Span match = fastCNER.processSpan(span, offsetsOnly).get("Dose").get(0);
+            assertEquals(28, match.begin);
+            assertEquals(33, match.end);
+            assert (match.text == null || match.text.isEmpty());
+        }
+        MatchContext.forThread().spanText = true;
+
+//      the streaming reader keeps the texts of the matches of each chunk
+        StringBuilder sb = new StringBuilder();
+        fastCNER.processCharSequence(span.text, (conceptName, match) -> sb.append(match.text).append(' '));
+        assert (sb.toString().contains("11/3 ") && sb.toString().contains("20 mg "));
+    }
+}
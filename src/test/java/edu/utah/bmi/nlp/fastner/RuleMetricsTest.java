@@ -0,0 +1,167 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Jianlin Shi
+ */
+public class RuleMetricsTest {
+
+    private int ruleId(FastNER fastNER, String ruleString) {
+        for (int ruleId : fastNER.getRuleStore().keySet()) {
+            if (fastNER.getRuleStore().get(ruleId).rule.equals(ruleString))
+                return ruleId;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testTokenRules() {
+        String rule = "@fastner\n" +
+                "emboli\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "never matched\t0\tConcept\tACTUAL\n";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("positive for pulmonary emboli protocol .", true).get(0);
+        for (boolean compiled : new boolean[]{false, true}) {
+            FastNER fastNER = new FastNER(rule);
+            fastNER.setCompiled(compiled);
+            HashMap<String, ArrayList<Span>> expected = fastNER.processSpanList(tokens);
+            RuleMetrics metrics = new RuleMetrics();
+            fastNER.setMetrics(metrics);
+            for (int i = 0; i < 3; i++)
+                assertEquals(expected.toString(), fastNER.processSpanList(tokens).toString());
+
+            assertEquals(3, metrics.getCalls());
+            assertEquals(3 * tokens.size(), metrics.getTokens());
+            assert (metrics.getVisitedNodes() > 0);
+            assertEquals(3, Arrays.stream(metrics.getCallLatencyHistogram()).sum());
+            assert (metrics.getCallLatencyPercentile(99) > 0);
+            int longRule = ruleId(fastNER, "pulmonary emboli"), shortRule = ruleId(fastNER, "emboli");
+            assertEquals(3, metrics.getRuleMatches(longRule));
+            assertEquals(3, metrics.getRuleMatches(shortRule));
+//          the longer match wins over the match within it
+            assertEquals(3, metrics.getRuleWins(longRule));
+            assertEquals(3, metrics.getRuleLosses(shortRule));
+            assert (Arrays.equals(new int[]{ruleId(fastNER, "never matched")},
+                    metrics.getUnmatchedRuleIds(fastNER.getRuleStore().keySet())));
+            assertEquals(longRule + " 3 3 0", metrics.getTopRules(2)[0].startsWith(longRule + " ") ?
+                    metrics.getTopRules(2)[0] : metrics.getTopRules(2)[1]);
+
+//          the updated versions of the rules keep the metrics
+            fastNER.removeRule(shortRule);
+            fastNER.processSpanList(tokens);
+            assertEquals(4, metrics.getCalls());
+            assertEquals(4, metrics.getRuleMatches(longRule));
+
+            metrics.reset();
+            assertEquals(0, metrics.getCalls());
+            assertEquals(0, metrics.getRuleMatches(longRule));
+        }
+    }
+
+    @Test
+    public void testGroupRules() {
+        FastNER fastNER = new FastNER("@fastner\n" +
+                "emboli\t0\tConcept\tACTUAL\n" +
+                "\\( pulmonary emboli \\) protocol\t0\tConcept\tACTUAL\n");
+        assert (fastNER.fastRule instanceof FastRuleWG);
+        RuleMetrics metrics = new RuleMetrics();
+        fastNER.setMetrics(metrics);
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("positive for pulmonary emboli protocol .", true).get(0);
+        assertEquals(1, fastNER.processSpanList(tokens).get("Concept").size());
+        int groupRule = ruleId(fastNER, "\\( pulmonary emboli \\) protocol"), shortRule = ruleId(fastNER, "emboli");
+        assertEquals(1, metrics.getRuleMatches(groupRule));
+        assertEquals(1, metrics.getRuleMatches(shortRule));
+        assertEquals(1, metrics.getRuleWins(groupRule) + metrics.getRuleWins(shortRule));
+        assertEquals(1, metrics.getRuleLosses(groupRule) + metrics.getRuleLosses(shortRule));
+    }
+
+    @Test
+    public void testCharRules() {
+        FastCNER fastCNER = new FastCNER("@fastcner\n" +
+                "\\d+/\\d+\t0\tDate\n" +
+                "\\d+/\\d+/\\d+\t0\tDate\n");
+        RuleMetrics metrics = new RuleMetrics();
+        fastCNER.setMetrics(metrics);
+        String text = "seen on 12/20/2019 and 11/3";
+        HashMap<String, ArrayList<Span>> res = fastCNER.processString(text);
+        assertEquals(2, res.get("Date").size());
+        assertEquals(1, metrics.getCalls());
+        assertEquals(text.length(), metrics.getChars());
+        assert (metrics.getVisitedNodes() > 0);
+        assert (metrics.getMatches() >= 2);
+        assertEquals(2, metrics.getMatchedRuleIds().length);
+    }
+
+    @Test
+    public void testJMX() throws Exception {
+        RuleMetrics metrics = new RuleMetrics();
+        ObjectName objectName = metrics.register("RuleMetricsTest");
+        try {
+            metrics.recordCall(2500, 10, 3, 7);
+            metrics.recordDocument(5000, 10, 3);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(objectName, "Calls"));
+            assertEquals(3L, server.getAttribute(objectName, "Tokens"));
+            assertEquals(1L, server.getAttribute(objectName, "Documents"));
+            assertEquals(10L, server.getAttribute(objectName, "DocumentChars"));
+            assertEquals(3L, server.getAttribute(objectName, "DocumentTokens"));
+            long[] histogram = (long[]) server.getAttribute(objectName, "CallLatencyHistogram");
+            assertEquals(1, histogram[RuleMetrics.bucket(2500)]);
+            assertEquals(4L, server.invoke(objectName, "getCallLatencyPercentile", new Object[]{50.0}, new String[]{"double"}));
+        } finally {
+            metrics.unregister();
+        }
+        assert (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+
+    @Test
+    public void testForName() {
+//      the engines of a same name count into one registered RuleMetrics
+        RuleMetrics metrics = RuleMetrics.forName("RuleMetricsTest.forName");
+        try {
+            assert (metrics == RuleMetrics.forName("RuleMetricsTest.forName"));
+            assert (ManagementFactory.getPlatformMBeanServer().isRegistered(metrics.objectName));
+            metrics.recordMatch(3);
+            RuleMetrics.forName("RuleMetricsTest.forName").recordMatch(3);
+//          a rule id beyond the first block of counters
+            metrics.recordOverlap(5000, 3);
+            assertEquals(2, metrics.getRuleMatches(3));
+            assertEquals(1, metrics.getRuleLosses(3));
+            assertEquals(1, metrics.getRuleWins(5000));
+            assert (Arrays.equals(new int[]{3}, metrics.getMatchedRuleIds()));
+            assertEquals("3 2 0 1", metrics.getTopRules(1)[0]);
+        } finally {
+            metrics.unregister();
+        }
+        assert (metrics != RuleMetrics.forName("RuleMetricsTest.forName"));
+        RuleMetrics.forName("RuleMetricsTest.forName").unregister();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import edu.utah.bmi.nlp.fastcner.FastCRuleSB;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import static edu.utah.bmi.nlp.core.NERSpan.byStrWidth;
+import static edu.utah.bmi.nlp.core.NERSpan.widthscore;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Compare the matches of the rules loaded from a snapshot with the matches of the original rules.
+ *
+ * @author Jianlin Shi
+ */
+public class RuleSnapshotTest {
+
+    private String serialize(HashMap<String, ArrayList<Span>> res) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : new TreeMap<>(res).keySet()) {
+            sb.append(key).append(":");
+            for (Span span : res.get(key)) {
+                sb.append(" ").append(span.begin).append("-").append(span.end).append("/").append(span.ruleId);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private File snapshotFile() throws IOException {
+        File file = File.createTempFile("rules", RuleSnapshot.EXTENSION);
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testTokenRules() throws IOException {
+        String rule = "@fastner\n" +
+                "@CONCEPT_FEATURES\tConcept\tCertainty\n" +
+                "emboli\t0\tConcept\tACTUAL\tcertain\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "for \\( \\w+ \\)\t0\tOther\tACTUAL\n" +
+                "no further \\w+\t0\tConcept\tPSEUDO\n" +
+                "HbA \\d+ C \\> 100\t0\tLab\tACTUAL\n";
+        String text = "Positive for pulmonary emboli protocol. No further treatment needed. HbA 1 C 105 was high.";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        String expected = serialize(fastNER.processSpanList(tokens));
+        File file = snapshotFile();
+        fastNER.saveSnapshot(file.getAbsolutePath());
+//      the rules are compiled on a copy, the saved engine keeps its mode
+        assert (!fastNER.isCompiled());
+
+        FastNER loaded = new FastNER(file.getAbsolutePath());
+        assert (loaded.isCompiled());
+        assertEquals(fastNER.fastRule.getClass(), loaded.fastRule.getClass());
+        assertEquals(fastNER.getTypeDefinitions().keySet(), loaded.getTypeDefinitions().keySet());
+        assertEquals(fastNER.getRuleStore().size(), loaded.getRuleStore().size());
+        assertEquals(expected, serialize(loaded.processSpanList(tokens)));
+//      the HashMap chain can still be rebuilt from the loaded rule store
+        loaded.setCompiled(false);
+        assertEquals(expected, serialize(loaded.processSpanList(tokens)));
+    }
+
+    @Test
+    public void testOverlapSettings() throws IOException {
+        String rule = "@fastner\n" +
+                "emboli\t1\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "no further \\w+\t0\tConcept\tPSEUDO\n";
+        String text = "Positive for pulmonary emboli protocol. No further treatment needed.";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        String defaults = serialize(fastNER.processSpanList(tokens));
+        fastNER.setCompareMethod(widthscore);
+        fastNER.setWidthCompareMethod(byStrWidth);
+        fastNER.setRemovePseudo(false);
+        String expected = serialize(fastNER.processSpanList(tokens));
+        assert (!expected.equals(defaults));
+        File file = snapshotFile();
+        fastNER.saveSnapshot(file.getAbsolutePath());
+
+        FastRuleWOG loaded = (FastRuleWOG) RuleSnapshot.load(file.getAbsolutePath(), null, false);
+        assertEquals(widthscore, loaded.spanCompareMethod);
+        assertEquals(byStrWidth, loaded.widthCompareMethod);
+        assert (!loaded.removePseudo);
+        assertEquals(expected, serialize(loaded.processSpans(tokens)));
+    }
+
+    @Test
+    public void testCharRules() throws IOException {
+        String rule = "@fastcner\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "(\\C\\c+) emboli\t0\tConcept\n" +
+                "pulmonary [emboli|embolism]\t0\tConcept\n" +
+                "no pulmonary\t0\tConcept\tPSEUDO\n";
+        String text = "12/20 Pulmonary emboli, T 101.2, no pulmonary embolism on 11/3";
+        FastCNER fastCNER = new FastCNER(rule);
+        fastCNER.setReplicationSupport(true);
+        fastCNER.setLiteralAutomaton(true);
+        fastCNER.setMaxRepeatLength(50);
+        fastCNER.setSpecialCharacterSupport(true);
+        String expected = serialize(fastCNER.processString(text));
+        File file = snapshotFile();
+        fastCNER.saveSnapshot(file.getAbsolutePath());
+
+        FastCNER loaded = new FastCNER(file.getAbsolutePath());
+        assert (loaded.fastRule instanceof FastCRuleSB);
+        assertEquals(50, ((FastCRuleSB) loaded.fastRule).getMaxRepeatLength());
+        assert (((FastCRuleSB) loaded.fastRule).getSpecialCharacterSupport());
+        assertEquals(expected, serialize(loaded.processString(text)));
+    }
+
+    @Test
+    public void testMapped() throws IOException {
+        String rule = "@fastner\n" +
+                "emboli\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "\\w+ treatment\t0\tTreatment\tACTUAL\n" +
+                "HbA \\d+ C\t0\tLab\tACTUAL\n";
+        String text = "Positive for pulmonary emboli protocol. No further treatment needed. HbA 1 C was normal.";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        String expected = serialize(fastNER.processSpanList(tokens));
+        File file = snapshotFile();
+        fastNER.saveSnapshot(file.getAbsolutePath());
+
+        FastRule mapped = RuleSnapshot.load(file.getAbsolutePath(), null, false, true);
+        assert (mapped.getCompiledTrie() instanceof MappedCompiledTrie);
+        assertEquals(expected, serialize(mapped.processSpans(tokens)));
+        for (int ruleId : fastNER.getRuleStore().keySet())
+            assertEquals(fastNER.getRuleString(ruleId), mapped.getRuleString(ruleId));
+//      a mapped trie can be saved again
+        File copy = snapshotFile();
+        RuleSnapshot.save(mapped, null, false, copy.getAbsolutePath());
+        assertEquals(expected, serialize(RuleSnapshot.load(copy.getAbsolutePath(), null, false).processSpans(tokens)));
+    }
+
+    @Test
+    public void testVersion() throws IOException {
+        File file = snapshotFile();
+        new FastNER("@fastner\nemboli\t0\tConcept\n").saveSnapshot(file.getAbsolutePath());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(RuleSnapshot.VERSION + 1);
+        }
+        assertThrows(IOException.class, () -> RuleSnapshot.load(file.getAbsolutePath(), null, false));
+    }
+}
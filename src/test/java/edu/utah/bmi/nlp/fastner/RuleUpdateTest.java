@@ -0,0 +1,266 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
+import edu.utah.bmi.nlp.core.NERRule;
+import edu.utah.bmi.nlp.core.Rule;
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import edu.utah.bmi.nlp.fastcner.FastCRuleSB;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compare the matches of updated rules with the matches of the rules built from scratch.
+ *
+ * @author Jianlin Shi
+ */
+public class RuleUpdateTest {
+
+    private String serialize(HashMap<String, ArrayList<Span>> res) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : new TreeMap<>(res).keySet()) {
+            if (res.get(key).isEmpty())
+                continue;
+            sb.append(key).append(":");
+            for (Span span : res.get(key)) {
+                sb.append(" ").append(span.begin).append("-").append(span.end).append("/").append(span.ruleId);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private HashMap<Integer, Rule> edit(HashMap<Integer, Rule> ruleStore, List<Rule> rules, List<Integer> removedRuleIds) {
+        HashMap<Integer, Rule> edited = new HashMap<>(ruleStore);
+        for (int ruleId : removedRuleIds)
+            edited.remove(ruleId);
+        for (Rule rule : rules)
+            edited.put(rule.id, rule);
+        return edited;
+    }
+
+    private int ruleId(HashMap<Integer, Rule> ruleStore, String ruleString) {
+        for (Rule rule : ruleStore.values()) {
+            if (rule.rule.equals(ruleString))
+                return rule.id;
+        }
+        return -1;
+    }
+
+    private void testTokenRules(boolean compiled) {
+        String rule = "@fastner\n" +
+                "emboli\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "\\w+ treatment\t0\tTreatment\tACTUAL\n" +
+                "HbA \\d+ C\t0\tLab\tACTUAL\n";
+        String text = "Positive for pulmonary emboli protocol. No further treatment needed. HbA 1 C was normal.";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        fastNER.setCompiled(compiled);
+        FastRule original = fastNER.fastRule;
+        String expected = serialize(fastNER.processSpanList(tokens));
+        int nextId = Collections.max(fastNER.getRuleStore().keySet()) + 1;
+
+        List<Rule> rules = Arrays.asList(
+                new NERRule(nextId, "further treatment", "Treatment", 1, Determinants.ACTUAL),
+                new NERRule(nextId + 1, "protocol", "Procedure", 0, Determinants.ACTUAL),
+                new NERRule(nextId + 2, "pulmonary emboli protocol", "Procedure", 0, Determinants.ACTUAL),
+                new NERRule(nextId + 3, "[no|further] treatment [needed|given]", "Treatment", 2, Determinants.ACTUAL));
+        List<Integer> removedRuleIds = Collections.singletonList(ruleId(fastNER.getRuleStore(), "pulmonary emboli"));
+        HashMap<Integer, Rule> edited = edit(fastNER.getRuleStore(), rules, removedRuleIds);
+        fastNER.updateRules(rules, removedRuleIds);
+        assert (fastNER.fastRule.hasRuleUpdates());
+        assertEquals(serialize(new FastRuleWGN(edited).processSpans(tokens)), serialize(fastNER.processSpanList(tokens)));
+//      the old version is not changed
+        assertEquals(expected, serialize(original.processSpans(tokens)));
+
+//      replace a rule, and remove a rule that was added by the previous update
+        List<Rule> replaced = Collections.singletonList(new NERRule(ruleId(edited, "hba \\d+ c"), "hba \\d+", "Lab", 0, Determinants.ACTUAL));
+        edited = edit(edited, replaced, Collections.singletonList(nextId + 1));
+        fastNER.addRule(replaced.get(0));
+        fastNER.removeRule(nextId + 1);
+        String updated = serialize(fastNER.processSpanList(tokens));
+        assertEquals(serialize(new FastRuleWGN(edited).processSpans(tokens)), updated);
+
+        fastNER.compactRules();
+        assert (!fastNER.fastRule.hasRuleUpdates());
+        assertEquals(compiled, fastNER.isCompiled());
+        assertEquals(updated, serialize(fastNER.processSpanList(tokens)));
+    }
+
+    @Test
+    public void testTokenRules() {
+        testTokenRules(false);
+    }
+
+    @Test
+    public void testCompiledTokenRules() {
+        testTokenRules(true);
+    }
+
+    private int ruleId(HashMap<Integer, Rule> ruleStore, String ruleString, String ruleName) {
+        for (Rule rule : ruleStore.values()) {
+            if (rule.rule.equals(ruleString) && rule.ruleName.equals(ruleName))
+                return rule.id;
+        }
+        return -1;
+    }
+
+    private FastRule rebuild(FastRule fastRule, HashMap<Integer, Rule> ruleStore) {
+        try {
+            return fastRule.getClass().getConstructor(HashMap.class).newInstance(ruleStore);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void testSharedAlternations(boolean compiled) {
+        String rule = "@fastner\n" +
+                "[pulmonary|lung] emboli\t0\tConcept\tACTUAL\n" +
+                "[pulmonary|lung] emboli protocol\t0\tProcedure\tACTUAL\n" +
+                "acute [emboli|embolism]\t0\tConcept\tACTUAL\n" +
+                "acute [emboli|embolism]\t0\tFinding\tACTUAL\n";
+        String text = "positive for pulmonary emboli protocol . no lung emboli protocol . acute embolism and acute emboli .";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        fastNER.setCompiled(compiled);
+        HashMap<Integer, Rule> edited = new HashMap<>(fastNER.getRuleStore());
+        FastRule first = fastNER.fastRule;
+        String firstExpected = serialize(first.processSpans(tokens));
+        assert (firstExpected.contains("Procedure:") && firstExpected.contains("Finding:"));
+
+//      remove a rule that passes through the node shared by "pulmonary" and "lung"
+        int protocolId = ruleId(edited, "[pulmonary|lung] emboli protocol");
+        edited = edit(edited, Collections.emptyList(), Collections.singletonList(protocolId));
+        fastNER.removeRule(protocolId);
+        String expected = serialize(rebuild(first, edited).processSpans(tokens));
+        assert (expected.contains("Concept: 13-29/") && expected.contains(" 44-55/"));
+        assertEquals(expected, serialize(fastNER.processSpanList(tokens)));
+
+//      replace one of the two rules that end at the same alternation nodes, and add a rule through one alternative
+        int findingId = ruleId(edited, "acute [emboli|embolism]", "Finding");
+        int nextId = Collections.max(edited.keySet()) + 1;
+        List<Rule> rules = Arrays.asList(
+                new NERRule(findingId, "acute emboli", "Finding", 0, Determinants.ACTUAL),
+                new NERRule(nextId, "pulmonary emboli protocol", "Finding", 0, Determinants.ACTUAL));
+        edited = edit(edited, rules, Collections.emptyList());
+        fastNER.updateRules(rules, Collections.emptyList());
+        expected = serialize(rebuild(first, edited).processSpans(tokens));
+        assertEquals(expected, serialize(fastNER.processSpanList(tokens)));
+
+//      a compacted version rebuilds the shared nodes, and can be updated again
+        fastNER.compactRules();
+        assertEquals(compiled, fastNER.isCompiled());
+        FastRule compacted = fastNER.fastRule;
+        assertEquals(expected, serialize(compacted.processSpans(tokens)));
+        int conceptId = ruleId(edited, "[pulmonary|lung] emboli");
+        edited = edit(edited, Collections.emptyList(), Collections.singletonList(conceptId));
+        fastNER.removeRule(conceptId);
+        assertEquals(serialize(rebuild(first, edited).processSpans(tokens)), serialize(fastNER.processSpanList(tokens)));
+        assertEquals(expected, serialize(compacted.processSpans(tokens)));
+
+//      none of the updates changed the first version, on either walk
+        assertEquals(firstExpected, serialize(first.processSpans(tokens)));
+        first.setCompiled(!compiled);
+        assertEquals(firstExpected, serialize(first.processSpans(tokens)));
+    }
+
+    @Test
+    public void testSharedAlternations() {
+        testSharedAlternations(false);
+    }
+
+    @Test
+    public void testCompiledSharedAlternations() {
+        testSharedAlternations(true);
+    }
+
+    @Test
+    public void testCharRules() {
+        String rule = "@fastcner\n" +
+                "(\\d+/\\d+)\\w\t0\tDate\n" +
+                "T\\s+1\\d\\d.\\d\t0.1\tFever\n" +
+                "pulmonary [emboli|embolism]\t0\tConcept\n" +
+                "no pulmonary\t0\tConcept\tPSEUDO\n";
+        String text = "12/20 Pulmonary emboli, T 101.2, no pulmonary embolism on 11/3";
+        for (boolean literalAutomaton : new boolean[]{false, true}) {
+            FastCNER fastCNER = new FastCNER(rule);
+            fastCNER.setReplicationSupport(true);
+            fastCNER.setLiteralAutomaton(literalAutomaton);
+            fastCNER.setCompiled(literalAutomaton);
+            FastRule original = fastCNER.fastRule;
+            String expected = serialize(fastCNER.processString(text));
+            int nextId = Collections.max(fastCNER.getRuleStore().keySet()) + 1;
+
+            List<Rule> rules = Arrays.asList(
+                    new NERRule(nextId, "embolism on", "Finding", 0, Determinants.ACTUAL),
+                    new NERRule(nextId + 1, "(\\C\\c+) emboli", "Finding", 0, Determinants.ACTUAL));
+            List<Integer> removedRuleIds = Collections.singletonList(ruleId(fastCNER.getRuleStore(), "pulmonary [emboli|embolism]"));
+            HashMap<Integer, Rule> edited = edit(fastCNER.getRuleStore(), rules, removedRuleIds);
+            fastCNER.updateRules(rules, removedRuleIds);
+
+            FastCRuleSB fresh = new FastCRuleSB(edited);
+            fresh.setReplicationSupport(true);
+            assertEquals(serialize(fresh.processString(text)), serialize(fastCNER.processString(text)));
+            assertEquals(expected, serialize(original.processString(text)));
+        }
+    }
+
+    @Test
+    public void testSettings() {
+        FastNER fastNER = new FastNER("@fastner\nemboli\t0\tConcept\tACTUAL\npulmonary emboli\t0\tConcept\tACTUAL\n");
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("Positive for pulmonary emboli.", true).get(0);
+        String expected = serialize(fastNER.processSpanList(tokens));
+        FastRule original = fastNER.fastRule;
+//      the settings are changed on a new version, the calls that hold the original one are not affected
+        fastNER.setCompiled(true);
+        fastNER.setMetrics(new RuleMetrics());
+        fastNER.setOverlapResolver(new SweepLineResolver());
+        assert (!original.isCompiled() && original.getMetrics() == null && original.getOverlapResolver() == null);
+        assert (fastNER.isCompiled() && fastNER.getMetrics() != null && fastNER.getOverlapResolver() != null);
+        assertEquals(expected, serialize(original.processSpans(tokens)));
+        assertEquals(expected, serialize(fastNER.processSpanList(tokens)));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        FastNER fastNER = new FastNER("@fastner\nemboli\t0\tConcept\tACTUAL\npulmonary\t0\tConcept\tACTUAL\n");
+        fastNER.setCompiled(true);
+        fastNER.updateRules(Collections.singletonList(new NERRule(5, "pulmonary emboli", "Concept", 1, Determinants.ACTUAL)),
+                Collections.singletonList(0));
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("Positive for pulmonary emboli.", true).get(0);
+        String expected = serialize(fastNER.processSpanList(tokens));
+        File file = File.createTempFile("rules", RuleSnapshot.EXTENSION);
+        file.deleteOnExit();
+        fastNER.saveSnapshot(file.getAbsolutePath());
+//      the saved rules are rebuilt, while the live version is kept
+        assert (fastNER.fastRule.hasRuleUpdates());
+        assertEquals(expected, serialize(new FastNER(file.getAbsolutePath()).processSpanList(tokens)));
+    }
+}
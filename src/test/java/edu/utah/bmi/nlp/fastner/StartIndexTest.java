@@ -0,0 +1,115 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.DeterminantValueSet.Determinants;
+import edu.utah.bmi.nlp.core.NERRule;
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Jianlin Shi
+ */
+public class StartIndexTest {
+
+    @Test
+    public void testTokenRules() {
+        String rule = "@fastner\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "\\( emboli \\) protocol\t0\tConcept\tACTUAL\n" +
+                "\\d+ mg\t0\tDose\tACTUAL\n";
+        for (boolean compiled : new boolean[]{false, true}) {
+            FastNER fastNER = new FastNER(rule);
+            fastNER.setCompiled(compiled);
+            StartIndex index = fastNER.fastRule.getStartIndex();
+            assert (!index.any);
+            assert (index.numbers);
+            assert (index.tokens.containsAll(Arrays.asList("pulmonary", "emboli")));
+            assert (!index.canStart("no", false));
+
+            ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("no evidence of embolism .", true).get(0);
+            RuleMetrics metrics = new RuleMetrics();
+            fastNER.setMetrics(metrics);
+            assert (fastNER.processSpanList(tokens).isEmpty());
+//          the sentence is skipped without walking the rules
+            assertEquals(0, metrics.getVisitedNodes());
+
+            tokens = SimpleParser.tokenizeDecimalSmartWSentences("no pulmonary emboli protocol , 20 mg .", true).get(0);
+            HashMap<String, ArrayList<Span>> res = fastNER.processSpanList(tokens);
+            assertEquals(1, res.get("Concept").size());
+            assertEquals(1, res.get("Dose").size());
+        }
+    }
+
+    @Test
+    public void testWildcardStart() {
+        FastNER fastNER = new FastNER("@fastner\n" +
+                "\\w+ emboli\t0\tConcept\tACTUAL\n");
+        assert (fastNER.fastRule.getStartIndex().any);
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("no emboli .", true).get(0);
+        assertEquals(1, fastNER.processSpanList(tokens).get("Concept").size());
+    }
+
+    @Test
+    public void testUpdatedRules() {
+        FastNER fastNER = new FastNER("@fastner\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n");
+        fastNER.setCompiled(true);
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences("no evidence of embolism .", true).get(0);
+        assert (fastNER.processSpanList(tokens).isEmpty());
+        fastNER.addRule(new NERRule(10, "embolism", "Concept", 0, Determinants.ACTUAL));
+        assert (fastNER.fastRule.getStartIndex().tokens.contains("embolism"));
+        assertEquals(1, fastNER.processSpanList(tokens).get("Concept").size());
+    }
+
+    @Test
+    public void testCharRules() {
+        FastCNER fastCNER = new FastCNER("@fastcner\n" +
+                "\\d+/\\d+\t0\tDate\n" +
+                "(\\C\\c+) \\d+\t0\tDate\n" +
+                "mg\t0\tDose\n");
+        StartIndex index = fastCNER.fastRule.getStartIndex();
+        assert (!index.any);
+        assert (index.canStart('m', 0));
+        assert (!index.canStart('x', 0));
+//      the digits and the uppercase chars through the wildcards
+        assert (index.charClasses != 0);
+        assert (!index.canStart('x', ~index.charClasses));
+
+        String text = "seen on Dec 20, 12/20 with 5 mg";
+//      the chars of the wildcard classes are merged into the bitmap that the text is scanned with
+        char[] textChars = text.toCharArray();
+        assertEquals(text.indexOf('D'), index.nextStart(textChars, 0, textChars.length));
+        assertEquals(text.indexOf('5'), index.nextStart(textChars, text.indexOf("with"), textChars.length));
+        assertEquals(text.indexOf("mg"), index.nextStart(textChars, text.indexOf("5") + 1, textChars.length));
+        assertEquals(3, index.nextStart("no date".toCharArray(), 0, 3));
+        RuleMetrics metrics = new RuleMetrics();
+        fastCNER.setMetrics(metrics);
+        assert (fastCNER.processString("no date here").isEmpty());
+        assertEquals(0, metrics.getVisitedNodes());
+        HashMap<String, ArrayList<Span>> res = fastCNER.processString(text);
+        assertEquals(2, res.get("Date").size());
+        assertEquals(1, res.get("Dose").size());
+    }
+}
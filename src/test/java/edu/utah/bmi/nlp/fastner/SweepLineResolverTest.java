@@ -0,0 +1,99 @@
+/*
+ * Copyright  2017  Department of Biomedical Informatics, University of Utah
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.utah.bmi.nlp.fastner;
+
+import edu.utah.bmi.nlp.core.SimpleParser;
+import edu.utah.bmi.nlp.core.Span;
+import edu.utah.bmi.nlp.fastcner.FastCNER;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static edu.utah.bmi.nlp.core.NERSpan.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Jianlin Shi
+ */
+public class SweepLineResolverTest {
+
+    private final String text = "Positive for pulmonary emboli protocol. No pulmonary emboli or acute pulmonary emboli found.";
+
+    private void assertSameMatches(FastNER fastNER, ArrayList<Span> tokens) {
+        for (String compareMethod : new String[]{scoreOnly, scorewidth, widthscore, widthOnly}) {
+            for (String widthCompareMethod : new String[]{byStrWidth, byRuleLength}) {
+                fastNER.setCompareMethod(compareMethod);
+                fastNER.setWidthCompareMethod(widthCompareMethod);
+                fastNER.setOverlapResolver(null);
+                String expected = fastNER.processSpanList(tokens).toString();
+                fastNER.setOverlapResolver(new SweepLineResolver());
+                assertEquals(expected, fastNER.processSpanList(tokens).toString(), compareMethod + " " + widthCompareMethod);
+            }
+        }
+    }
+
+    @Test
+    public void testTokenRules() {
+        String rule = "@fastner\n" +
+                "emboli\t2\tConcept\tACTUAL\n" +
+                "pulmonary emboli\t0\tConcept\tACTUAL\n" +
+                "pulmonary emboli protocol\t1\tConcept\tACTUAL\n" +
+                "emboli protocol\t3\tConcept\tACTUAL\n" +
+                "acute pulmonary\t1\tConcept\tACTUAL\n" +
+                "no pulmonary\t0\tNeg\tACTUAL\n" +
+                "pulmonary emboli or acute\t0\tNeg\tACTUAL\n";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        for (boolean compiled : new boolean[]{false, true}) {
+            FastNER fastNER = new FastNER(rule);
+            fastNER.setCompiled(compiled);
+            assert (fastNER.fastRule instanceof FastRuleWOG && !(fastNER.fastRule instanceof FastRuleWG));
+            assertSameMatches(fastNER, tokens);
+        }
+    }
+
+    @Test
+    public void testGroupRules() {
+        String rule = "@fastner\n" +
+                "emboli\t2\tConcept\tACTUAL\n" +
+                "\\( pulmonary emboli \\) protocol\t1\tConcept\tACTUAL\n" +
+                "\\( pulmonary emboli \\) or\t0\tConcept\tACTUAL\n" +
+                "acute pulmonary\t1\tConcept\tACTUAL\n";
+        ArrayList<Span> tokens = SimpleParser.tokenizeDecimalSmartWSentences(text, true).get(0);
+        FastNER fastNER = new FastNER(rule);
+        assert (fastNER.fastRule instanceof FastRuleWG);
+        assertSameMatches(fastNER, tokens);
+    }
+
+    @Test
+    public void testCharRules() {
+        String rule = "@fastcner\n" +
+                "\\d+/\\d+\t0\tDate\n" +
+                "\\d+/\\d+/\\d+\t0\tDate\n" +
+                "\\d+/\\d+/\\d+ \\d+\t1\tDate\n" +
+                "\\d+ \\d+\t2\tDate\n" +
+                "\\d+\t-1\tDate\n" +
+                "\\d+/\\d+,\t0\tFraction\n";
+        String text = "seen on 12/20/2019 10 and 11/3, 3/4/5 6 then 7 8";
+        FastCNER fastCNER = new FastCNER(rule);
+        for (String method : new String[]{"score", "scorewidth", "widthscore", "width"}) {
+            fastCNER.setCompareMethod(method);
+            fastCNER.setOverlapResolver(null);
+            String expected = fastCNER.processString(text).toString();
+            fastCNER.setOverlapResolver(new SweepLineResolver());
+            assertEquals(expected, fastCNER.processString(text).toString(), method);
+        }
+    }
+}